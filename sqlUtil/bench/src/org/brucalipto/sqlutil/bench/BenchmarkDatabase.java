@@ -0,0 +1,153 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil.bench;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+import org.brucalipto.sqlutil.SQLParameter;
+
+/**
+ * In-process H2 database used by the benchmarks: table BENCH has an ID primary key
+ * and MAX_COLUMNS columns C1..Cn of the benchmarked type
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class BenchmarkDatabase
+{
+    public final static int MAX_COLUMNS = 16;
+
+    private static int counter = 0;
+
+    private final Connection connection;
+    private final String columnType;
+
+    /**
+     * Constructor: creates and fills a new in-memory database
+     * @param columnType One of INTEGER, VARCHAR, DOUBLE, TIMESTAMP
+     * @param rows The number of rows to insert in table BENCH
+     */
+    public BenchmarkDatabase(final String columnType, final int rows) throws SQLException
+    {
+        this.columnType = columnType;
+        synchronized (BenchmarkDatabase.class)
+        {
+            counter++;
+            this.connection = DriverManager.getConnection("jdbc:h2:mem:bench"+counter+";DB_CLOSE_DELAY=-1");
+        }
+        final StringBuffer ddl = new StringBuffer("CREATE TABLE BENCH (ID INT PRIMARY KEY");
+        final StringBuffer dml = new StringBuffer("INSERT INTO BENCH VALUES (?");
+        for (int i=1; i<=MAX_COLUMNS; i++)
+        {
+            ddl.append(", C").append(i).append(' ').append(columnType.equals("VARCHAR") ? "VARCHAR(64)" : columnType);
+            dml.append(",?");
+        }
+        final Statement stmt = this.connection.createStatement();
+        stmt.execute(ddl.append(')').toString());
+        stmt.execute("CREATE ALIAS BENCH_ROWS FOR \""+BenchmarkDatabase.class.getName()+".benchRows\"");
+        stmt.close();
+        final PreparedStatement pstmt = this.connection.prepareStatement(dml.append(')').toString());
+        for (int row=1; row<=rows; row++)
+        {
+            pstmt.setInt(1, row);
+            for (int i=1; i<=MAX_COLUMNS; i++)
+            {
+                pstmt.setObject(i+1, value(row).getValue());
+            }
+            pstmt.addBatch();
+        }
+        pstmt.executeBatch();
+        pstmt.close();
+    }
+
+    /**
+     * @return The Connection to the database
+     */
+    public Connection getConnection()
+    {
+        return this.connection;
+    }
+
+    /**
+     * Method to get a parameter of the benchmarked type
+     * @param seed The value seed (eg. the row ID)
+     * @return A SQLParameter of the benchmarked type
+     */
+    public SQLParameter value(final int seed)
+    {
+        if ("INTEGER".equals(this.columnType))
+        {
+            return new SQLParameter(Types.INTEGER, new Integer(seed));
+        }
+        if ("VARCHAR".equals(this.columnType))
+        {
+            return new SQLParameter(Types.VARCHAR, "value number "+seed);
+        }
+        if ("DOUBLE".equals(this.columnType))
+        {
+            return new SQLParameter(Types.DOUBLE, new Double(seed/3.0));
+        }
+        if ("TIMESTAMP".equals(this.columnType))
+        {
+            return new SQLParameter(Types.TIMESTAMP, new Timestamp(1000000000000L+seed*1000L));
+        }
+        throw new IllegalArgumentException("Unsupported column type: "+this.columnType);
+    }
+
+    /**
+     * Method to get the list of columns C1..Cn
+     * @param columns The number of columns
+     * @param separator The separator (eg. ", " or "=?, ")
+     * @param suffix Text appended to each column
+     * @return The column list
+     */
+    public static String columns(final int columns, final String suffix, final String separator)
+    {
+        final StringBuffer result = new StringBuffer();
+        for (int i=1; i<=columns; i++)
+        {
+            if (i>1)
+            {
+                result.append(separator);
+            }
+            result.append('C').append(i).append(suffix);
+        }
+        return result.toString();
+    }
+
+    public void close() throws SQLException
+    {
+        final Statement stmt = this.connection.createStatement();
+        stmt.execute("SHUTDOWN");
+        stmt.close();
+        this.connection.close();
+    }
+
+    /**
+     * Stored procedure BENCH_ROWS(n): returns the first n rows of BENCH
+     */
+    public static ResultSet benchRows(final Connection conn, final int rows) throws SQLException
+    {
+        final PreparedStatement pstmt = conn.prepareStatement("SELECT * FROM BENCH WHERE ID<=?");
+        pstmt.setInt(1, rows);
+        return pstmt.executeQuery();
+    }
+}
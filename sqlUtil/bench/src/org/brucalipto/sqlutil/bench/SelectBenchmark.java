@@ -0,0 +1,93 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil.bench;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.beanutils.RowSetDynaClass;
+import org.brucalipto.sqlutil.DB2SQLManager;
+import org.brucalipto.sqlutil.RowHandler;
+import org.brucalipto.sqlutil.SQLManager;
+import org.brucalipto.sqlutil.SQLParameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmark of SQLManager.dynaSelect and streamSelect returning rowCount rows of 4 columns
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class SelectBenchmark
+{
+    @Param({"1", "100", "10000"})
+    public int rowCount;
+
+    @Param({"INTEGER", "VARCHAR", "DOUBLE", "TIMESTAMP"})
+    public String columnType;
+
+    private BenchmarkDatabase database;
+    private SQLManager manager;
+    private String sql;
+    private SQLParameter[] parameters;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException
+    {
+        this.database = new BenchmarkDatabase(this.columnType, this.rowCount);
+        this.manager = new DB2SQLManager(this.database.getConnection());
+        this.sql = "SELECT ID, "+BenchmarkDatabase.columns(4, "", ", ")+" FROM BENCH WHERE ID<=?";
+        this.parameters = new SQLParameter[]{new SQLParameter(Types.INTEGER, new Integer(this.rowCount))};
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException
+    {
+        this.database.close();
+    }
+
+    @Benchmark
+    public RowSetDynaClass dynaSelect() throws SQLException
+    {
+        return this.manager.dynaSelect(this.sql, this.parameters);
+    }
+
+    @Benchmark
+    public int streamSelect(final Blackhole blackhole) throws SQLException
+    {
+        return this.manager.streamSelect(this.sql, this.parameters, new RowHandler()
+        {
+            public boolean handleRow(final ResultSet rs) throws SQLException
+            {
+                blackhole.consume(rs.getObject(2));
+                return true;
+            }
+        });
+    }
+}
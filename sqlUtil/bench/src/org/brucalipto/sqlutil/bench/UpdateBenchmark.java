@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil.bench;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+import org.brucalipto.sqlutil.DB2SQLManager;
+import org.brucalipto.sqlutil.SQLManager;
+import org.brucalipto.sqlutil.SQLParameter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmark of SQLManager.update (executeSimpleQuery): UPDATE of paramCount columns by ID
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class UpdateBenchmark
+{
+    private final static int ROWS = 1000;
+
+    @Param({"1", "4", "16"})
+    public int paramCount;
+
+    @Param({"INTEGER", "VARCHAR", "DOUBLE", "TIMESTAMP"})
+    public String columnType;
+
+    @Param({"0", "64"})
+    public int statementCacheSize;
+
+    private BenchmarkDatabase database;
+    private SQLManager manager;
+    private String sql;
+    private SQLParameter[][] parameters;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException
+    {
+        this.database = new BenchmarkDatabase(this.columnType, ROWS);
+        this.manager = new DB2SQLManager(this.database.getConnection());
+        if (this.statementCacheSize>0)
+        {
+            this.manager.enableStatementCache(this.statementCacheSize);
+        }
+        this.sql = "UPDATE BENCH SET "+BenchmarkDatabase.columns(this.paramCount, "=?", ", ")+" WHERE ID=?";
+        this.parameters = new SQLParameter[ROWS][];
+        for (int row=0; row<ROWS; row++)
+        {
+            this.parameters[row] = new SQLParameter[this.paramCount+1];
+            for (int i=0; i<this.paramCount; i++)
+            {
+                this.parameters[row][i] = this.database.value(row+i);
+            }
+            this.parameters[row][this.paramCount] = new SQLParameter(Types.INTEGER, new Integer(row+1));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException
+    {
+        this.manager.disableStatementCache();
+        this.database.close();
+    }
+
+    @Benchmark
+    public int update()
+    {
+        this.next = (this.next+1)%ROWS;
+        return this.manager.update(this.sql, this.parameters[this.next]);
+    }
+}
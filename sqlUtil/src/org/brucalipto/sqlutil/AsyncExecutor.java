@@ -0,0 +1,331 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.LinkedList;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounded executor running the asynchronous {@link SQLManager} operations.
+ * On runtimes with virtual threads (Java 21+) each task runs in its own virtual
+ * thread and at most <code>maxConcurrency</code> run at the same time; elsewhere
+ * a pool of <code>maxConcurrency</code> platform threads is used. In both cases at most
+ * <code>maxQueued</code> tasks wait for a free slot: further tasks are rejected.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public abstract class AsyncExecutor
+{
+    private final static Log log = LogFactory.getLog(AsyncExecutor.class);
+
+    public final static int DEFAULT_MAX_CONCURRENCY = 64;
+    public final static int DEFAULT_MAX_QUEUED = 10000;
+
+    private final static Method START_VIRTUAL_THREAD = findStartVirtualThread();
+
+    protected final int maxConcurrency;
+    protected final int maxQueued;
+    protected final LinkedList queue = new LinkedList();
+    protected boolean shutdown = false;
+
+    protected AsyncExecutor(final int maxConcurrency, final int maxQueued)
+    {
+        if (maxConcurrency<1)
+        {
+            throw new IllegalArgumentException("Concurrency must be greater than 0: "+maxConcurrency);
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Method to get an executor using virtual threads when the runtime has them
+     * @param maxConcurrency The maximum number of tasks running at the same time
+     * @param maxQueued The maximum number of tasks waiting to run
+     * @return The AsyncExecutor
+     */
+    public static AsyncExecutor newExecutor(final int maxConcurrency, final int maxQueued)
+    {
+        if (isVirtualThreadsAvailable())
+        {
+            return new VirtualThreadExecutor(maxConcurrency, maxQueued);
+        }
+        return newThreadPoolExecutor(maxConcurrency, maxQueued);
+    }
+
+    /**
+     * Method to get an executor using a pool of platform threads
+     * @param threads The number of threads
+     * @param maxQueued The maximum number of tasks waiting for a free thread
+     * @return The AsyncExecutor
+     */
+    public static AsyncExecutor newThreadPoolExecutor(final int threads, final int maxQueued)
+    {
+        return new ThreadPoolExecutor(threads, maxQueued);
+    }
+
+    /**
+     * @return true if the runtime can start virtual threads
+     */
+    public static boolean isVirtualThreadsAvailable()
+    {
+        return START_VIRTUAL_THREAD!=null;
+    }
+
+    /**
+     * Method to run a task
+     * @param task The task to run
+     * @throws SQLException If the executor is shut down or too many tasks are waiting
+     */
+    public abstract void execute(final Runnable task) throws SQLException;
+
+    /**
+     * Method to stop accepting tasks: queued and running tasks are completed
+     */
+    public void shutdown()
+    {
+        synchronized (this.queue)
+        {
+            this.shutdown = true;
+            this.queue.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of tasks waiting to run
+     */
+    public int getQueued()
+    {
+        synchronized (this.queue)
+        {
+            return this.queue.size();
+        }
+    }
+
+    /**
+     * @return The maximum number of tasks running at the same time
+     */
+    public int getMaxConcurrency()
+    {
+        return this.maxConcurrency;
+    }
+
+    protected void enqueue(final Runnable task) throws SQLException
+    {
+        if (this.shutdown)
+        {
+            throw new SQLException("AsyncExecutor is shut down");
+        }
+        if (this.queue.size()>=this.maxQueued)
+        {
+            throw new SQLException("AsyncExecutor rejected task: "+this.maxQueued+" tasks already waiting");
+        }
+        this.queue.addLast(task);
+    }
+
+    protected static void runTask(final Runnable task)
+    {
+        try
+        {
+            task.run();
+        }
+        catch (Throwable t)
+        {
+            log.error("Error running asynchronous task", t);
+        }
+    }
+
+    /**
+     * Method to find Thread.startVirtualThread, probing it with a no-op thread: on Java 19 and 20
+     * it exists as a preview API and fails without --enable-preview
+     * @return The method or null if virtual threads cannot be started
+     */
+    private static Method findStartVirtualThread()
+    {
+        try
+        {
+            final Method method = Thread.class.getMethod("startVirtualThread", new Class[]{Runnable.class});
+            method.invoke(null, new Object[]{new Runnable()
+            {
+                public void run()
+                {
+                }
+            }});
+            return method;
+        }
+        catch (Exception e)
+        {
+            log.debug("Virtual threads not available: "+e);
+            return null;
+        }
+    }
+
+    /**
+     * Fixed pool of daemon platform threads
+     */
+    private static final class ThreadPoolExecutor extends AsyncExecutor implements Runnable
+    {
+        private static int poolNumber = 0;
+
+        private ThreadPoolExecutor(final int threads, final int maxQueued)
+        {
+            super(threads, maxQueued);
+            final int pool;
+            synchronized (ThreadPoolExecutor.class)
+            {
+                pool = ++poolNumber;
+            }
+            for (int i=0; i<threads; i++)
+            {
+                final Thread worker = new Thread(this, "sqlutil-async-"+pool+"-"+(i+1));
+                worker.setDaemon(true);
+                worker.start();
+            }
+        }
+
+        public void execute(final Runnable task) throws SQLException
+        {
+            synchronized (this.queue)
+            {
+                enqueue(task);
+                this.queue.notify();
+            }
+        }
+
+        public void run()
+        {
+            while (true)
+            {
+                final Runnable task;
+                synchronized (this.queue)
+                {
+                    while (this.queue.isEmpty())
+                    {
+                        if (this.shutdown)
+                        {
+                            return;
+                        }
+                        try
+                        {
+                            this.queue.wait();
+                        }
+                        catch (InterruptedException e)
+                        {
+                            return;
+                        }
+                    }
+                    task = (Runnable)this.queue.removeFirst();
+                }
+                runTask(task);
+            }
+        }
+    }
+
+    /**
+     * A new virtual thread per task, with at most maxConcurrency running: excess tasks
+     * wait in the queue (not in a blocked thread) and each ending task starts the next one
+     */
+    private static final class VirtualThreadExecutor extends AsyncExecutor
+    {
+        private int running = 0;
+
+        private VirtualThreadExecutor(final int maxConcurrency, final int maxQueued)
+        {
+            super(maxConcurrency, maxQueued);
+        }
+
+        public void execute(final Runnable task) throws SQLException
+        {
+            synchronized (this.queue)
+            {
+                if (this.shutdown)
+                {
+                    throw new SQLException("AsyncExecutor is shut down");
+                }
+                if (this.running>=this.maxConcurrency)
+                {
+                    enqueue(task);
+                    return;
+                }
+                this.running++;
+            }
+            try
+            {
+                start(task);
+            }
+            catch (SQLException e)
+            {
+                synchronized (this.queue)
+                {
+                    this.running--;
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Method to start a task in a new virtual thread: when it ends the thread goes on with
+         * the queued tasks, starting the next one in a new thread or, if that fails, running it itself
+         */
+        private void start(final Runnable task) throws SQLException
+        {
+            final Runnable wrapper = new Runnable()
+            {
+                public void run()
+                {
+                    Runnable current = task;
+                    while (current!=null)
+                    {
+                        runTask(current);
+                        final Runnable next;
+                        synchronized (VirtualThreadExecutor.this.queue)
+                        {
+                            if (VirtualThreadExecutor.this.queue.isEmpty())
+                            {
+                                VirtualThreadExecutor.this.running--;
+                                return;
+                            }
+                            next = (Runnable)VirtualThreadExecutor.this.queue.removeFirst();
+                        }
+                        try
+                        {
+                            start(next);
+                            current = null;
+                        }
+                        catch (SQLException e)
+                        {
+                            log.warn("Error starting queued asynchronous task: running it in the current thread", e);
+                            current = next;
+                        }
+                    }
+                }
+            };
+            try
+            {
+                START_VIRTUAL_THREAD.invoke(null, new Object[]{wrapper});
+            }
+            catch (Exception e)
+            {
+                final SQLException sqle = new SQLException("Unable to start virtual thread: "+e);
+                sqle.initCause(e);
+                throw sqle;
+            }
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Pipeline loading many rows with a prepared INSERT: the calling thread reads the rows and
+ * queues them in batches, writer threads execute the batches with {@link SQLManager#insertBatch(String, List)},
+ * each in its own {@link UnitOfWork} (so on its own Connection) committed every <code>commitInterval</code> rows.
+ * The queue is bounded: when writers fall behind the reader waits (backpressure).
+ * If a writer fails the load stops: rows already committed stay in the database.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class BulkLoader
+{
+    private final static Log log = LogFactory.getLog(BulkLoader.class);
+
+    public final static int DEFAULT_WRITERS = 4;
+    public final static int DEFAULT_QUEUE_CAPACITY = 10000;
+    public final static int DEFAULT_COMMIT_INTERVAL = 10000;
+
+    private final static Object END = new Object();
+
+    private final SQLManager manager;
+    private final String insertStatement;
+    private int writers = DEFAULT_WRITERS;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int batchSize;
+    private int commitInterval = DEFAULT_COMMIT_INTERVAL;
+
+    private long startMillis = 0;
+    private long endMillis = 0;
+    private long rowsRead = 0;
+    private long rowsCommitted = 0;
+    private long backpressureWaits = 0;
+
+    /**
+     * Constructor
+     * @param manager The SQLManager to use: it must work on a DataSource to use more than one writer
+     * @param insertStatement The prepared INSERT to execute for each row
+     */
+    public BulkLoader(final SQLManager manager, final String insertStatement)
+    {
+        this.manager = manager;
+        this.insertStatement = insertStatement;
+        this.batchSize = manager.getBatchSize();
+    }
+
+    /**
+     * @param writers The number of writer threads (and Connections)
+     */
+    public void setWriters(final int writers)
+    {
+        if (writers<1)
+        {
+            throw new IllegalArgumentException("Writers must be greater than 0: "+writers);
+        }
+        this.writers = writers;
+    }
+
+    /**
+     * @param queueCapacity The maximum number of rows read and not yet written
+     */
+    public void setQueueCapacity(final int queueCapacity)
+    {
+        if (queueCapacity<1)
+        {
+            throw new IllegalArgumentException("Queue capacity must be greater than 0: "+queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * @param batchSize The number of rows of each JDBC batch (default {@link SQLManager#getBatchSize()})
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        if (batchSize<1)
+        {
+            throw new IllegalArgumentException("Batch size must be greater than 0: "+batchSize);
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @param commitInterval The number of rows each writer inserts between two commits
+     */
+    public void setCommitInterval(final int commitInterval)
+    {
+        if (commitInterval<1)
+        {
+            throw new IllegalArgumentException("Commit interval must be greater than 0: "+commitInterval);
+        }
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Method to load the rows of a CSV file
+     * @param file The CSV file
+     * @param charsetName The file encoding (eg. "UTF-8")
+     * @param separator The field separator
+     * @param sqlTypes The java.sql.Types of each column
+     * @param skipHeader true to skip the first record
+     * @return The number of rows loaded
+     * @throws SQLException
+     */
+    public long loadCsv(final File file, final String charsetName, final char separator, final int[] sqlTypes, final boolean skipHeader) throws SQLException
+    {
+        final CsvSource source;
+        try
+        {
+            source = new CsvSource(file, charsetName, separator, sqlTypes, skipHeader);
+        }
+        catch (IOException e)
+        {
+            final SQLException sqle = new SQLException("Error opening CSV file '"+file+"': "+e.getMessage());
+            sqle.initCause(e);
+            throw sqle;
+        }
+        try
+        {
+            return load(source);
+        }
+        finally
+        {
+            source.close();
+        }
+    }
+
+    /**
+     * Method to load rows
+     * @param rows Iterator of SQLParameter[], one array for each row
+     * @return The number of rows loaded
+     * @throws SQLException If reading or writing fails
+     */
+    public long load(final Iterator rows) throws SQLException
+    {
+        if (this.writers>1 && this.manager.isBoundToConnection())
+        {
+            throw new IllegalStateException("More than one writer needs a SQLManager working on a DataSource");
+        }
+        synchronized (this)
+        {
+            this.startMillis = System.currentTimeMillis();
+            this.endMillis = 0;
+            this.rowsRead = 0;
+            this.rowsCommitted = 0;
+            this.backpressureWaits = 0;
+        }
+        final BatchQueue queue = new BatchQueue(Math.max(1, this.queueCapacity/this.batchSize));
+        final Writer[] writerThreads = new Writer[this.writers];
+        for (int i=0; i<writerThreads.length; i++)
+        {
+            writerThreads[i] = new Writer(queue, i);
+            writerThreads[i].start();
+        }
+
+        SQLException error = null;
+        try
+        {
+            List batch = new ArrayList(this.batchSize);
+            while (rows.hasNext() && !queue.isAborted())
+            {
+                batch.add(rows.next());
+                if (batch.size()==this.batchSize)
+                {
+                    put(queue, batch);
+                    batch = new ArrayList(this.batchSize);
+                }
+            }
+            if (!batch.isEmpty())
+            {
+                put(queue, batch);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            log.error("Error reading rows to load", e);
+            error = new SQLException("Error reading rows to load: "+e.getMessage());
+            error.initCause(e);
+            queue.abort();
+        }
+        catch (InterruptedException e)
+        {
+            error = new SQLException("Interrupted while loading rows");
+            error.initCause(e);
+            queue.abort();
+        }
+        for (int i=0; i<writerThreads.length; i++)
+        {
+            try
+            {
+                queue.put(END);
+            }
+            catch (InterruptedException e)
+            {
+                queue.abort();
+            }
+        }
+        for (int i=0; i<writerThreads.length; i++)
+        {
+            while (writerThreads[i].isAlive())
+            {
+                try
+                {
+                    writerThreads[i].join();
+                }
+                catch (InterruptedException e)
+                {
+                    queue.abort();
+                }
+            }
+            if (error==null && writerThreads[i].error!=null)
+            {
+                error = writerThreads[i].error;
+            }
+        }
+        synchronized (this)
+        {
+            this.endMillis = System.currentTimeMillis();
+        }
+        log.info("Loaded "+getRowsCommitted()+" of "+getRowsRead()+" rows in "+getElapsedMillis()+" millis ("+getRowsPerSecond()+" rows/sec, "+getBackpressureWaits()+" waits for writers)");
+        if (error!=null)
+        {
+            throw error;
+        }
+        return getRowsCommitted();
+    }
+
+    /**
+     * @return The number of rows read in the actual (or last) load
+     */
+    public synchronized long getRowsRead()
+    {
+        return this.rowsRead;
+    }
+
+    /**
+     * @return The number of rows committed in the actual (or last) load
+     */
+    public synchronized long getRowsCommitted()
+    {
+        return this.rowsCommitted;
+    }
+
+    /**
+     * @return How many times the reader waited for the writers because the queue was full
+     */
+    public synchronized long getBackpressureWaits()
+    {
+        return this.backpressureWaits;
+    }
+
+    /**
+     * @return The duration of the actual (or last) load
+     */
+    public synchronized long getElapsedMillis()
+    {
+        if (this.startMillis==0)
+        {
+            return 0;
+        }
+        return (this.endMillis==0 ? System.currentTimeMillis() : this.endMillis)-this.startMillis;
+    }
+
+    /**
+     * @return The committed rows per second of the actual (or last) load
+     */
+    public synchronized long getRowsPerSecond()
+    {
+        final long elapsed = getElapsedMillis();
+        return elapsed==0 ? 0 : this.rowsCommitted*1000/elapsed;
+    }
+
+    public String toString()
+    {
+        return "BulkLoader[read="+getRowsRead()+"; committed="+getRowsCommitted()+"; rows/sec="+getRowsPerSecond()+"; waits="+getBackpressureWaits()+"]";
+    }
+
+    private void put(final BatchQueue queue, final List batch) throws InterruptedException
+    {
+        final boolean waited = queue.put(batch);
+        synchronized (this)
+        {
+            this.rowsRead += batch.size();
+            if (waited)
+            {
+                this.backpressureWaits++;
+            }
+        }
+    }
+
+    private synchronized void committed(final long rows)
+    {
+        this.rowsCommitted += rows;
+    }
+
+    private final class Writer extends Thread
+    {
+        private final BatchQueue queue;
+        private SQLException error = null;
+
+        private Writer(final BatchQueue queue, final int index)
+        {
+            super("BulkLoader-writer-"+index);
+            setDaemon(true);
+            this.queue = queue;
+        }
+
+        public void run()
+        {
+            UnitOfWork unitOfWork = null;
+            long uncommitted = 0;
+            try
+            {
+                unitOfWork = BulkLoader.this.manager.beginUnitOfWork();
+                Object batch = this.queue.take();
+                while (batch!=END && batch!=null)
+                {
+                    final List rows = (List)batch;
+                    BulkLoader.this.manager.insertBatch(BulkLoader.this.insertStatement, rows);
+                    uncommitted += rows.size();
+                    if (uncommitted>=BulkLoader.this.commitInterval)
+                    {
+                        unitOfWork.commit();
+                        committed(uncommitted);
+                        uncommitted = 0;
+                    }
+                    batch = this.queue.take();
+                }
+                if (batch==END)
+                {
+                    unitOfWork.commit();
+                    committed(uncommitted);
+                }
+            }
+            catch (SQLException e)
+            {
+                log.error(getName()+" failed", e);
+                this.error = e;
+                this.queue.abort();
+            }
+            catch (InterruptedException e)
+            {
+                this.error = new SQLException(getName()+" interrupted");
+                this.queue.abort();
+            }
+            catch (RuntimeException e)
+            {
+                log.error(getName()+" failed", e);
+                this.error = new SQLException(getName()+" failed: "+e.getMessage());
+                this.error.initCause(e);
+                this.queue.abort();
+            }
+            finally
+            {
+                if (unitOfWork!=null)
+                {
+                    unitOfWork.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Bounded queue of batches: once aborted put does not wait and take returns null
+     */
+    private static final class BatchQueue
+    {
+        private final LinkedList items = new LinkedList();
+        private final int capacity;
+        private boolean aborted = false;
+
+        private BatchQueue(final int capacity)
+        {
+            this.capacity = capacity;
+        }
+
+        /**
+         * @return true if the caller had to wait for room
+         */
+        synchronized boolean put(final Object item) throws InterruptedException
+        {
+            boolean waited = false;
+            while (this.items.size()>=this.capacity && !this.aborted && item!=END)
+            {
+                waited = true;
+                wait();
+            }
+            if (!this.aborted)
+            {
+                this.items.addLast(item);
+                notifyAll();
+            }
+            return waited;
+        }
+
+        synchronized Object take() throws InterruptedException
+        {
+            while (this.items.isEmpty() && !this.aborted)
+            {
+                wait();
+            }
+            if (this.aborted)
+            {
+                return null;
+            }
+            final Object item = this.items.removeFirst();
+            notifyAll();
+            return item;
+        }
+
+        synchronized void abort()
+        {
+            this.aborted = true;
+            this.items.clear();
+            notifyAll();
+        }
+
+        synchronized boolean isAborted()
+        {
+            return this.aborted;
+        }
+    }
+}
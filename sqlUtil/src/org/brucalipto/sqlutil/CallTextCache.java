@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memoizes the text used to prepare stored procedure calls (eg. <code>{ call NAME(?,?) }</code>)
+ * per procedure name and number of parameters. Lookups read a copy-on-write map without locking.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+class CallTextCache
+{
+    private final String prefix;
+    private final String suffix;
+    private volatile Map texts = new HashMap();
+
+    /**
+     * Constructor
+     * @param prefix The text before the procedure name (eg. "{ call ")
+     * @param suffix The text after the closing parenthesis (eg. " }")
+     */
+    CallTextCache(final String prefix, final String suffix)
+    {
+        this.prefix = prefix;
+        this.suffix = suffix;
+    }
+
+    /**
+     * Method to get the call text of a procedure
+     * @param procedureName The stored procedure name
+     * @param inputParametersSize The number of input parameters
+     * @param outputParametersSize The number of output parameters
+     * @return The call text with a placeholder for each parameter
+     */
+    String getCallText(final String procedureName, final int inputParametersSize, final int outputParametersSize)
+    {
+        final int totalParameters = inputParametersSize+outputParametersSize;
+        final String[] byArity = (String[])this.texts.get(procedureName);
+        if (byArity!=null && totalParameters<byArity.length && byArity[totalParameters]!=null)
+        {
+            return byArity[totalParameters];
+        }
+        return buildCallText(procedureName, totalParameters);
+    }
+
+    private synchronized String buildCallText(final String procedureName, final int totalParameters)
+    {
+        String[] byArity = (String[])this.texts.get(procedureName);
+        if (byArity!=null && totalParameters<byArity.length && byArity[totalParameters]!=null)
+        {
+            return byArity[totalParameters];
+        }
+
+        final StringBuffer spName = new StringBuffer(this.prefix).append(procedureName).append('(');
+        for(int i=0; i<totalParameters; i++)
+        {
+            if(i!=totalParameters-1)
+            {
+                spName.append("?,");
+            }
+            else
+            {
+                spName.append('?');
+            }
+        }
+        spName.append(')').append(this.suffix);
+        final String callText = spName.toString();
+
+        final String[] newByArity = new String[Math.max(totalParameters+1, byArity==null ? 0 : byArity.length)];
+        if (byArity!=null)
+        {
+            System.arraycopy(byArity, 0, newByArity, 0, byArity.length);
+        }
+        newByArity[totalParameters] = callText;
+        final Map newTexts = new HashMap(this.texts);
+        newTexts.put(procedureName, newByArity);
+        this.texts = newTexts;
+        return callText;
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.io.Serializable;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/**
+ * Query result stored by column instead of by row, an alternative to RowSetDynaClass for big results.
+ * Integer, BIGINT (and NUMERIC without decimals up to 18 digits) and floating point columns are read
+ * with the typed getters into growable int[], long[] and double[] arrays with a null bitmap; BIT and BOOLEAN
+ * columns are kept in a bitmap and returned as Boolean; character columns are kept in a String[] sharing
+ * the driver Strings; any other column is kept as Object[].
+ * Rows and columns are numbered starting from 0.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class ColumnarResult implements Serializable
+{
+    private static final long serialVersionUID = 4412719387093325217L;
+
+    private final static int INITIAL_CAPACITY = 64;
+
+    private final String[] names;
+    private final int[] sqlTypes;
+    private final Column[] columns;
+    private int rows = 0;
+    private int capacity = INITIAL_CAPACITY;
+
+    /**
+     * Constructor: reads all remaining rows of the ResultSet (that is not closed)
+     * @param rs The ResultSet to read
+     * @throws SQLException
+     */
+    public ColumnarResult(final ResultSet rs) throws SQLException
+    {
+        final ResultSetMetaData metaData = rs.getMetaData();
+        final int columnCount = metaData.getColumnCount();
+        this.names = new String[columnCount];
+        this.sqlTypes = new int[columnCount];
+        this.columns = new Column[columnCount];
+        for (int i=0; i<columnCount; i++)
+        {
+            this.names[i] = metaData.getColumnLabel(i+1);
+            this.sqlTypes[i] = metaData.getColumnType(i+1);
+            this.columns[i] = newColumn(this.sqlTypes[i], metaData.getPrecision(i+1), metaData.getScale(i+1));
+        }
+        while (rs.next())
+        {
+            if (this.rows==this.capacity)
+            {
+                this.capacity *= 2;
+                for (int i=0; i<columnCount; i++)
+                {
+                    this.columns[i].grow(this.capacity);
+                }
+            }
+            for (int i=0; i<columnCount; i++)
+            {
+                this.columns[i].read(rs, i+1, this.rows);
+            }
+            this.rows++;
+        }
+    }
+
+    public int getRowCount()
+    {
+        return this.rows;
+    }
+
+    public int getColumnCount()
+    {
+        return this.columns.length;
+    }
+
+    /**
+     * @param column The column index
+     * @return The column label
+     */
+    public String getColumnName(final int column)
+    {
+        return this.names[column];
+    }
+
+    /**
+     * @param column The column index
+     * @return The java.sql.Types type of the column
+     */
+    public int getColumnType(final int column)
+    {
+        return this.sqlTypes[column];
+    }
+
+    /**
+     * Method to find a column by label, ignoring case
+     * @param name The column label
+     * @return The column index
+     * @throws IllegalArgumentException If there is no such column
+     */
+    public int findColumn(final String name)
+    {
+        for (int i=0; i<this.names.length; i++)
+        {
+            if (this.names[i].equalsIgnoreCase(name))
+            {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("No column named '"+name+"'");
+    }
+
+    /**
+     * @param row The row index
+     * @param column The column index
+     * @return true if the value is SQL NULL
+     */
+    public boolean isNull(final int row, final int column)
+    {
+        checkRow(row);
+        return this.columns[column].isNull(row);
+    }
+
+    /**
+     * @param row The row index
+     * @param column The column index
+     * @return The value as int, 0 if SQL NULL
+     */
+    public int getInt(final int row, final int column)
+    {
+        checkRow(row);
+        return (int)this.columns[column].getLong(row);
+    }
+
+    /**
+     * @param row The row index
+     * @param column The column index
+     * @return The value as long, 0 if SQL NULL
+     */
+    public long getLong(final int row, final int column)
+    {
+        checkRow(row);
+        return this.columns[column].getLong(row);
+    }
+
+    /**
+     * @param row The row index
+     * @param column The column index
+     * @return The value as double, 0 if SQL NULL
+     */
+    public double getDouble(final int row, final int column)
+    {
+        checkRow(row);
+        return this.columns[column].getDouble(row);
+    }
+
+    /**
+     * @param row The row index
+     * @param column The column index
+     * @return The value as boolean (not 0 for numbers), false if SQL NULL
+     */
+    public boolean getBoolean(final int row, final int column)
+    {
+        checkRow(row);
+        return this.columns[column].getLong(row)!=0;
+    }
+
+    /**
+     * @param row The row index
+     * @param column The column index
+     * @return The value as String, null if SQL NULL
+     */
+    public String getString(final int row, final int column)
+    {
+        checkRow(row);
+        final Object value = this.columns[column].getObject(row);
+        return value==null ? null : value.toString();
+    }
+
+    /**
+     * @param row The row index
+     * @param column The column index
+     * @return The value, boxed for primitive columns, null if SQL NULL
+     */
+    public Object getObject(final int row, final int column)
+    {
+        checkRow(row);
+        return this.columns[column].getObject(row);
+    }
+
+    /**
+     * @return The approximate heap size of the stored values in bytes
+     */
+    public long getSizeInBytes()
+    {
+        long size = 0;
+        for (int i=0; i<this.columns.length; i++)
+        {
+            size += this.columns[i].getSizeInBytes(this.rows);
+        }
+        return size;
+    }
+
+    public String toString()
+    {
+        return "ColumnarResult["+this.rows+" rows; "+this.columns.length+" columns]";
+    }
+
+    private void checkRow(final int row)
+    {
+        if (row<0 || row>=this.rows)
+        {
+            throw new IndexOutOfBoundsException("Row "+row+" not in [0, "+this.rows+")");
+        }
+    }
+
+    private static Column newColumn(final int sqlType, final int precision, final int scale)
+    {
+        switch(sqlType)
+        {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return new IntColumn();
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return new BooleanColumn();
+            case Types.BIGINT:
+                return new LongColumn();
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                if (scale==0 && precision>0 && precision<=18)
+                {
+                    return new LongColumn();
+                }
+                return new ObjectColumn();
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return new DoubleColumn();
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+                return new StringColumn();
+            default:
+                return new ObjectColumn();
+        }
+    }
+
+    private static abstract class Column implements Serializable
+    {
+        private static final long serialVersionUID = -2650238741932775641L;
+
+        abstract void grow(final int capacity);
+
+        abstract void read(final ResultSet rs, final int index, final int row) throws SQLException;
+
+        abstract boolean isNull(final int row);
+
+        abstract long getLong(final int row);
+
+        abstract double getDouble(final int row);
+
+        abstract Object getObject(final int row);
+
+        abstract long getSizeInBytes(final int rows);
+    }
+
+    private static abstract class PrimitiveColumn extends Column
+    {
+        private static final long serialVersionUID = 6205395113702913946L;
+
+        long[] nulls = new long[(INITIAL_CAPACITY+63)/64];
+
+        void growNulls(final int capacity)
+        {
+            final long[] newNulls = new long[(capacity+63)/64];
+            System.arraycopy(this.nulls, 0, newNulls, 0, this.nulls.length);
+            this.nulls = newNulls;
+        }
+
+        void setNull(final int row)
+        {
+            this.nulls[row>>>6] |= 1L<<(row&63);
+        }
+
+        boolean isNull(final int row)
+        {
+            return (this.nulls[row>>>6]&(1L<<(row&63)))!=0;
+        }
+
+        Object getObject(final int row)
+        {
+            return isNull(row) ? null : box(row);
+        }
+
+        abstract Object box(final int row);
+    }
+
+    private static final class IntColumn extends PrimitiveColumn
+    {
+        private static final long serialVersionUID = 1905374618302784510L;
+
+        private int[] values = new int[INITIAL_CAPACITY];
+
+        void grow(final int capacity)
+        {
+            final int[] newValues = new int[capacity];
+            System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+            this.values = newValues;
+            growNulls(capacity);
+        }
+
+        void read(final ResultSet rs, final int index, final int row) throws SQLException
+        {
+            this.values[row] = rs.getInt(index);
+            if (rs.wasNull())
+            {
+                setNull(row);
+            }
+        }
+
+        long getLong(final int row)
+        {
+            return this.values[row];
+        }
+
+        double getDouble(final int row)
+        {
+            return this.values[row];
+        }
+
+        Object box(final int row)
+        {
+            return new Integer(this.values[row]);
+        }
+
+        long getSizeInBytes(final int rows)
+        {
+            return 4L*rows+rows/8;
+        }
+    }
+
+    private static final class BooleanColumn extends PrimitiveColumn
+    {
+        private static final long serialVersionUID = -7310588462941153094L;
+
+        private long[] values = new long[(INITIAL_CAPACITY+63)/64];
+
+        void grow(final int capacity)
+        {
+            final long[] newValues = new long[(capacity+63)/64];
+            System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+            this.values = newValues;
+            growNulls(capacity);
+        }
+
+        void read(final ResultSet rs, final int index, final int row) throws SQLException
+        {
+            if (rs.getBoolean(index))
+            {
+                this.values[row>>>6] |= 1L<<(row&63);
+            }
+            else if (rs.wasNull())
+            {
+                setNull(row);
+            }
+        }
+
+        long getLong(final int row)
+        {
+            return (this.values[row>>>6]&(1L<<(row&63)))!=0 ? 1 : 0;
+        }
+
+        double getDouble(final int row)
+        {
+            return getLong(row);
+        }
+
+        Object box(final int row)
+        {
+            return getLong(row)!=0 ? Boolean.TRUE : Boolean.FALSE;
+        }
+
+        long getSizeInBytes(final int rows)
+        {
+            return rows/4;
+        }
+    }
+
+    private static final class LongColumn extends PrimitiveColumn
+    {
+        private static final long serialVersionUID = -4727296905164513027L;
+
+        private long[] values = new long[INITIAL_CAPACITY];
+
+        void grow(final int capacity)
+        {
+            final long[] newValues = new long[capacity];
+            System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+            this.values = newValues;
+            growNulls(capacity);
+        }
+
+        void read(final ResultSet rs, final int index, final int row) throws SQLException
+        {
+            this.values[row] = rs.getLong(index);
+            if (rs.wasNull())
+            {
+                setNull(row);
+            }
+        }
+
+        long getLong(final int row)
+        {
+            return this.values[row];
+        }
+
+        double getDouble(final int row)
+        {
+            return this.values[row];
+        }
+
+        Object box(final int row)
+        {
+            return new Long(this.values[row]);
+        }
+
+        long getSizeInBytes(final int rows)
+        {
+            return 8L*rows+rows/8;
+        }
+    }
+
+    private static final class DoubleColumn extends PrimitiveColumn
+    {
+        private static final long serialVersionUID = 8339212561287361904L;
+
+        private double[] values = new double[INITIAL_CAPACITY];
+
+        void grow(final int capacity)
+        {
+            final double[] newValues = new double[capacity];
+            System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+            this.values = newValues;
+            growNulls(capacity);
+        }
+
+        void read(final ResultSet rs, final int index, final int row) throws SQLException
+        {
+            this.values[row] = rs.getDouble(index);
+            if (rs.wasNull())
+            {
+                setNull(row);
+            }
+        }
+
+        long getLong(final int row)
+        {
+            return (long)this.values[row];
+        }
+
+        double getDouble(final int row)
+        {
+            return this.values[row];
+        }
+
+        Object box(final int row)
+        {
+            return new Double(this.values[row]);
+        }
+
+        long getSizeInBytes(final int rows)
+        {
+            return 8L*rows+rows/8;
+        }
+    }
+
+    private static class ObjectColumn extends Column
+    {
+        private static final long serialVersionUID = -7020958329105246412L;
+
+        Object[] values = new Object[INITIAL_CAPACITY];
+
+        void grow(final int capacity)
+        {
+            final Object[] newValues = new Object[capacity];
+            System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+            this.values = newValues;
+        }
+
+        void read(final ResultSet rs, final int index, final int row) throws SQLException
+        {
+            this.values[row] = rs.getObject(index);
+        }
+
+        boolean isNull(final int row)
+        {
+            return this.values[row]==null;
+        }
+
+        long getLong(final int row)
+        {
+            final Object value = this.values[row];
+            if (value==null)
+            {
+                return 0;
+            }
+            if (value instanceof Number)
+            {
+                return ((Number)value).longValue();
+            }
+            if (value instanceof Boolean)
+            {
+                return ((Boolean)value).booleanValue() ? 1 : 0;
+            }
+            return Long.parseLong(value.toString().trim());
+        }
+
+        double getDouble(final int row)
+        {
+            final Object value = this.values[row];
+            if (value==null)
+            {
+                return 0;
+            }
+            if (value instanceof Number)
+            {
+                return ((Number)value).doubleValue();
+            }
+            return Double.parseDouble(value.toString().trim());
+        }
+
+        Object getObject(final int row)
+        {
+            return this.values[row];
+        }
+
+        long getSizeInBytes(final int rows)
+        {
+            long size = 4L*rows;
+            for (int i=0; i<rows; i++)
+            {
+                size += ResultCache.estimateSize(this.values[i]);
+            }
+            return size;
+        }
+    }
+
+    private static final class StringColumn extends ObjectColumn
+    {
+        private static final long serialVersionUID = 2284946405374306311L;
+
+        StringColumn()
+        {
+            this.values = new String[INITIAL_CAPACITY];
+        }
+
+        void grow(final int capacity)
+        {
+            final String[] newValues = new String[capacity];
+            System.arraycopy(this.values, 0, newValues, 0, this.values.length);
+            this.values = newValues;
+        }
+
+        void read(final ResultSet rs, final int index, final int row) throws SQLException
+        {
+            this.values[row] = rs.getString(index);
+        }
+    }
+}
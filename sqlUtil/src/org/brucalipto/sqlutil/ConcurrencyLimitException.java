@@ -0,0 +1,62 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.SQLException;
+
+/**
+ * Thrown when a {@link ConcurrencyLimiter} rejects a statement: too many statements are in flight
+ * and the queue is full, or the statement waited too long in the queue
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class ConcurrencyLimitException extends SQLException
+{
+    private static final long serialVersionUID = 2286312513476041307L;
+
+    private final int limit;
+    private final int inFlight;
+    private final int queueDepth;
+
+    /**
+     * Constructor
+     * @param reason Why the statement has been rejected
+     * @param limit The allowed in flight statements
+     * @param inFlight The in flight statements
+     * @param queueDepth The statements waiting for a permit
+     */
+    public ConcurrencyLimitException(final String reason, final int limit, final int inFlight, final int queueDepth)
+    {
+        super("Statement rejected by the concurrency limiter ("+reason+"): limit="+limit+"; inFlight="+inFlight+"; queueDepth="+queueDepth);
+        this.limit = limit;
+        this.inFlight = inFlight;
+        this.queueDepth = queueDepth;
+    }
+
+    public int getLimit()
+    {
+        return this.limit;
+    }
+
+    public int getInFlight()
+    {
+        return this.inFlight;
+    }
+
+    public int getQueueDepth()
+    {
+        return this.queueDepth;
+    }
+}
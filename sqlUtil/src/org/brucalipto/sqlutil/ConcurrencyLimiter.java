@@ -0,0 +1,282 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounds the statements a {@link SQLManager} runs at the same time (see {@link SQLManager#setConcurrencyLimiter(ConcurrencyLimiter)}),
+ * adjusting the bound from the observed latency (AIMD): a statement taking more than <code>tolerance</code> times
+ * the baseline latency (the fastest one of the last window of statements) cuts the limit by 10%, at most once
+ * every <code>limit</code> statements; a fast statement run while at least half of the limit is in use raises it by 1/limit.
+ * Statements over the limit wait in a bounded queue for a bounded time, then are rejected with a {@link ConcurrencyLimitException}.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class ConcurrencyLimiter
+{
+    private final static Log log = LogFactory.getLog(ConcurrencyLimiter.class);
+
+    public final static long DEFAULT_MAX_WAIT_MILLIS = 1000;
+    public final static double DEFAULT_TOLERANCE = 2.0;
+
+    private final static double BACKOFF = 0.9;
+    private final static int WINDOW = 100;
+    private final static long MIN_SLACK_MILLIS = 10;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private int maxQueue;
+    private long maxWaitMillis = DEFAULT_MAX_WAIT_MILLIS;
+    private double tolerance = DEFAULT_TOLERANCE;
+
+    private double limit;
+    private int inFlight = 0;
+    private int queueDepth = 0;
+    private long baselineMillis = Long.MAX_VALUE;
+    private long windowMinMillis = Long.MAX_VALUE;
+    private int windowSamples = 0;
+    private int sinceDecrease = 0;
+    private long accepted = 0;
+    private long rejected = 0;
+
+    /**
+     * Constructor: the queue holds up to <code>maxLimit</code> statements
+     * @param initialLimit The starting limit
+     * @param minLimit The lowest limit
+     * @param maxLimit The highest limit
+     */
+    public ConcurrencyLimiter(final int initialLimit, final int minLimit, final int maxLimit)
+    {
+        if (minLimit<1 || maxLimit<minLimit || initialLimit<minLimit || initialLimit>maxLimit)
+        {
+            throw new IllegalArgumentException("Invalid limits: initial="+initialLimit+"; min="+minLimit+"; max="+maxLimit);
+        }
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueue = maxLimit;
+    }
+
+    /**
+     * @param maxQueue The statements that can wait for a permit, 0 to reject at once
+     */
+    public synchronized void setMaxQueue(final int maxQueue)
+    {
+        if (maxQueue<0)
+        {
+            throw new IllegalArgumentException("Max queue must not be negative: "+maxQueue);
+        }
+        this.maxQueue = maxQueue;
+    }
+
+    /**
+     * @param maxWaitMillis The time a statement waits for a permit before being rejected
+     */
+    public synchronized void setMaxWaitMillis(final long maxWaitMillis)
+    {
+        if (maxWaitMillis<0)
+        {
+            throw new IllegalArgumentException("Max wait must not be negative: "+maxWaitMillis);
+        }
+        this.maxWaitMillis = maxWaitMillis;
+    }
+
+    /**
+     * @param tolerance How many times the baseline latency a statement can take before the limit is cut
+     */
+    public synchronized void setTolerance(final double tolerance)
+    {
+        if (tolerance<=1)
+        {
+            throw new IllegalArgumentException("Tolerance must be greater than 1: "+tolerance);
+        }
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Method to take a permit to run a statement, waiting in the queue if the limit is reached
+     * @return The permit to {@link Permit#release(long)} when the statement ends
+     * @throws ConcurrencyLimitException If the queue is full or the wait times out
+     */
+    public synchronized Permit acquire() throws ConcurrencyLimitException
+    {
+        if (this.inFlight>=getLimit())
+        {
+            if (this.queueDepth>=this.maxQueue)
+            {
+                throw reject("queue full");
+            }
+            this.queueDepth++;
+            try
+            {
+                final long deadline = System.currentTimeMillis()+this.maxWaitMillis;
+                long remaining = this.maxWaitMillis;
+                while (this.inFlight>=getLimit())
+                {
+                    if (remaining<=0)
+                    {
+                        throw reject("waited "+this.maxWaitMillis+" millis");
+                    }
+                    wait(remaining);
+                    remaining = deadline-System.currentTimeMillis();
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw reject("interrupted");
+            }
+            finally
+            {
+                this.queueDepth--;
+            }
+        }
+        this.inFlight++;
+        this.accepted++;
+        return new Permit();
+    }
+
+    /**
+     * @return The allowed in flight statements
+     */
+    public synchronized int getLimit()
+    {
+        return (int)this.limit;
+    }
+
+    /**
+     * @return The statements running now
+     */
+    public synchronized int getInFlight()
+    {
+        return this.inFlight;
+    }
+
+    /**
+     * @return The statements waiting for a permit
+     */
+    public synchronized int getQueueDepth()
+    {
+        return this.queueDepth;
+    }
+
+    /**
+     * @return The fastest latency of the last window of statements, -1 if none ended yet
+     */
+    public synchronized long getBaselineMillis()
+    {
+        return this.baselineMillis==Long.MAX_VALUE ? -1 : this.baselineMillis;
+    }
+
+    public synchronized long getAccepted()
+    {
+        return this.accepted;
+    }
+
+    public synchronized long getRejected()
+    {
+        return this.rejected;
+    }
+
+    public synchronized String toString()
+    {
+        return "ConcurrencyLimiter[limit="+getLimit()+"; inFlight="+this.inFlight+"; queueDepth="+this.queueDepth
+            +"; baselineMillis="+getBaselineMillis()+"; accepted="+this.accepted+"; rejected="+this.rejected+"]";
+    }
+
+    private synchronized void release(final long latencyMillis)
+    {
+        final int used = this.inFlight;
+        this.inFlight--;
+        if (latencyMillis<0)
+        {
+            notifyAll();
+            return;
+        }
+        if (latencyMillis<this.baselineMillis)
+        {
+            this.baselineMillis = latencyMillis;
+        }
+        this.windowMinMillis = Math.min(this.windowMinMillis, latencyMillis);
+        if (++this.windowSamples>=WINDOW)
+        {
+            // lets the baseline follow a database that got permanently slower or faster
+            this.baselineMillis = this.windowMinMillis;
+            this.windowMinMillis = Long.MAX_VALUE;
+            this.windowSamples = 0;
+        }
+        this.sinceDecrease++;
+        final long threshold = Math.max((long)(this.baselineMillis*this.tolerance), this.baselineMillis+MIN_SLACK_MILLIS);
+        if (latencyMillis>threshold)
+        {
+            if (this.sinceDecrease>=this.limit && this.limit>this.minLimit)
+            {
+                this.limit = Math.max(this.minLimit, this.limit*BACKOFF);
+                this.sinceDecrease = 0;
+                if (log.isDebugEnabled())
+                {
+                    log.debug("Latency "+latencyMillis+" millis over "+threshold+": limit cut to "+getLimit());
+                }
+            }
+        }
+        else if (used*2>=this.limit)
+        {
+            this.limit = Math.min(this.maxLimit, this.limit+1/this.limit);
+        }
+        notifyAll();
+    }
+
+    private ConcurrencyLimitException reject(final String reason)
+    {
+        this.rejected++;
+        return new ConcurrencyLimitException(reason, getLimit(), this.inFlight, this.queueDepth);
+    }
+
+    /**
+     * Permit to run a statement, taken with {@link ConcurrencyLimiter#acquire()}
+     */
+    public class Permit
+    {
+        private final long startMillis = System.currentTimeMillis();
+        private boolean released = false;
+
+        /**
+         * Method to give the permit back when the statement ends, using the time since it was taken as latency
+         */
+        public void release()
+        {
+            release(System.currentTimeMillis()-this.startMillis);
+        }
+
+        /**
+         * Method to give the permit back when the statement ends: only the first call counts
+         * @param latencyMillis The time the database took to run the statement, -1 if unknown (the limit is not adjusted)
+         */
+        public void release(final long latencyMillis)
+        {
+            synchronized (ConcurrencyLimiter.this)
+            {
+                if (this.released)
+                {
+                    return;
+                }
+                this.released = true;
+            }
+            ConcurrencyLimiter.this.release(latencyMillis);
+        }
+    }
+}
@@ -0,0 +1,696 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Lightweight bounded pool of Connections wrapping any DataSource (eg. a plain
+ * driver backed one). Idle connections, free slots and counters are kept in stripes
+ * so borrowing threads seldom contend on the same lock: a pool wide lock is taken only
+ * when no stripe has a free slot and the borrower must wait. Connections are validated
+ * on borrow and closed when idle for too long. Use {@link #getDataSource()} to hand the
+ * pool to a {@link SQLManager}: closing a borrowed Connection gives it back to the pool.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class ConnectionPool
+{
+    private final static Log log = LogFactory.getLog(ConnectionPool.class);
+
+    public final static long DEFAULT_ACQUIRE_TIMEOUT = 30000;
+    public final static long DEFAULT_MAX_IDLE_TIME = 600000;
+    public final static int DEFAULT_VALIDATION_TIMEOUT = 5;
+
+    private final static Object NO_IDLE = new Object();
+
+    private final DataSource target;
+    private final int maxSize;
+    private final Stripe[] stripes;
+    private final Object waitLock = new Object();
+    private final DataSource dataSource;
+    private long acquireTimeout = DEFAULT_ACQUIRE_TIMEOUT;
+    private long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+    private String validationQuery = null;
+    private int validationTimeout = DEFAULT_VALIDATION_TIMEOUT;
+    private Timer evictor = null;
+    private volatile boolean closed = false;
+    private volatile int waiters = 0;
+    private long timeouts = 0;
+
+    /**
+     * Constructor
+     * @param target The DataSource physical connections are got from
+     * @param maxSize The maximum number of connections open at the same time
+     */
+    public ConnectionPool(final DataSource target, final int maxSize)
+    {
+        if (target==null)
+        {
+            throw new IllegalArgumentException("Target DataSource cannot be null");
+        }
+        if (maxSize<1)
+        {
+            throw new IllegalArgumentException("Pool size must be greater than 0: "+maxSize);
+        }
+        this.target = target;
+        this.maxSize = maxSize;
+        int stripesNumber = 1;
+        while (stripesNumber<Runtime.getRuntime().availableProcessors() && stripesNumber<maxSize)
+        {
+            stripesNumber <<= 1;
+        }
+        this.stripes = new Stripe[stripesNumber];
+        for (int i=0; i<stripesNumber; i++)
+        {
+            this.stripes[i] = new Stripe(maxSize/stripesNumber+(i<maxSize%stripesNumber ? 1 : 0));
+        }
+        this.dataSource = (DataSource)Proxy.newProxyInstance(DataSource.class.getClassLoader(), new Class[]{DataSource.class}, new PooledDataSourceHandler());
+        scheduleEviction(this.maxIdleTime);
+    }
+
+    /**
+     * Method to get a DataSource whose getConnection() borrows from this pool
+     * @return The pooled DataSource
+     */
+    public DataSource getDataSource()
+    {
+        return this.dataSource;
+    }
+
+    /**
+     * Method to borrow a Connection: it is given back to the pool when closed
+     * @return A validated Connection
+     * @throws SQLException If the pool is closed, no connection gets free within the acquire timeout or the DataSource fails
+     */
+    public Connection getConnection() throws SQLException
+    {
+        final Stripe stripe = homeStripe();
+        final Object acquired = acquirePermit(stripe);
+        try
+        {
+            PooledConnection pooled = null;
+            if (acquired!=NO_IDLE)
+            {
+                pooled = (PooledConnection)acquired;
+                if (!pooled.isValid(this.validationQuery, this.validationTimeout))
+                {
+                    log.warn("Discarding invalid connection "+pooled.physical);
+                    pooled.closePhysical();
+                    pooled = null;
+                }
+            }
+            for (int i=0; pooled==null && i<this.stripes.length; i++)
+            {
+                pooled = pollIdle(this.stripes[i]);
+            }
+            if (pooled==null)
+            {
+                pooled = new PooledConnection(this.target.getConnection());
+                synchronized (stripe)
+                {
+                    stripe.created++;
+                }
+                log.debug("Created new physical connection "+pooled.physical);
+            }
+            return pooled.borrow();
+        }
+        catch (SQLException e)
+        {
+            releasePermit(stripe, null, true);
+            throw e;
+        }
+        catch (RuntimeException e)
+        {
+            releasePermit(stripe, null, true);
+            throw e;
+        }
+    }
+
+    /**
+     * Method to close all idle connections and stop the pool: borrowed connections
+     * are closed when given back
+     */
+    public void close()
+    {
+        synchronized (this.waitLock)
+        {
+            this.closed = true;
+            this.waitLock.notifyAll();
+        }
+        scheduleEviction(0);
+        for (int i=0; i<this.stripes.length; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                for (Iterator it=this.stripes[i].idle.iterator(); it.hasNext();)
+                {
+                    ((PooledConnection)it.next()).closePhysical();
+                }
+                this.stripes[i].idle.clear();
+            }
+        }
+    }
+
+    /**
+     * Method to set how long getConnection() waits for a free connection
+     * @param acquireTimeout Milliseconds to wait, 0 to fail immediately
+     */
+    public void setAcquireTimeout(final long acquireTimeout)
+    {
+        this.acquireTimeout = acquireTimeout;
+    }
+
+    /**
+     * Method to set after how long an unused connection is closed
+     * @param maxIdleTime Milliseconds a connection can stay idle, 0 to never close idle connections
+     */
+    public void setMaxIdleTime(final long maxIdleTime)
+    {
+        this.maxIdleTime = maxIdleTime;
+        scheduleEviction(maxIdleTime);
+    }
+
+    /**
+     * Method to set the query executed to validate a connection on borrow
+     * (eg. "SELECT 1 FROM DUAL" on Oracle, "SELECT 1 FROM SYSIBM.SYSDUMMY1" on DB2).
+     * If null only Connection.isClosed() is checked.
+     * @param validationQuery The validation query
+     */
+    public void setValidationQuery(final String validationQuery)
+    {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * Method to set how long the validation query can run before the connection is considered invalid
+     * @param validationTimeout Seconds to wait, 0 to wait forever
+     */
+    public void setValidationTimeout(final int validationTimeout)
+    {
+        if (validationTimeout<0)
+        {
+            throw new IllegalArgumentException("Validation timeout must not be negative: "+validationTimeout);
+        }
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * @return The maximum number of connections open at the same time
+     */
+    public int getMaxSize()
+    {
+        return this.maxSize;
+    }
+
+    /**
+     * @return The number of connections actually borrowed
+     */
+    public int getActive()
+    {
+        int free = 0;
+        for (int i=0; i<this.stripes.length; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                free += this.stripes[i].permits;
+            }
+        }
+        return this.maxSize-free;
+    }
+
+    /**
+     * @return The number of idle connections in the pool
+     */
+    public int getIdle()
+    {
+        int idle = 0;
+        for (int i=0; i<this.stripes.length; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                idle += this.stripes[i].idle.size();
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * @return The number of physical connections created so far
+     */
+    public long getCreated()
+    {
+        long created = 0;
+        for (int i=0; i<this.stripes.length; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                created += this.stripes[i].created;
+            }
+        }
+        return created;
+    }
+
+    /**
+     * @return The number of connections borrowed so far
+     */
+    public long getBorrowed()
+    {
+        long borrowed = 0;
+        for (int i=0; i<this.stripes.length; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                borrowed += this.stripes[i].borrowed;
+            }
+        }
+        return borrowed;
+    }
+
+    /**
+     * @return The number of getConnection() failed because of acquire timeout
+     */
+    public long getTimeouts()
+    {
+        synchronized (this.waitLock)
+        {
+            return this.timeouts;
+        }
+    }
+
+    public String toString()
+    {
+        return "ConnectionPool[active="+getActive()+"; idle="+getIdle()+"; max="+this.maxSize+"; created="+getCreated()+"; borrowed="+getBorrowed()+"; timeouts="+getTimeouts()+"]";
+    }
+
+    /**
+     * Method to take a free slot, from the home stripe if possible, else from any other one,
+     * else waiting for a connection to be given back
+     * @param home The stripe of the calling thread
+     * @return An idle connection of the stripe the slot was taken from or NO_IDLE
+     * @throws SQLException If the pool is closed or no slot gets free within the acquire timeout
+     */
+    private Object acquirePermit(final Stripe home) throws SQLException
+    {
+        if (this.closed)
+        {
+            throw new SQLException("Connection pool is closed");
+        }
+        Object acquired = tryAcquire(home);
+        for (int i=0; acquired==null && i<this.stripes.length; i++)
+        {
+            if (this.stripes[i]!=home)
+            {
+                acquired = tryAcquire(this.stripes[i]);
+            }
+        }
+        if (acquired!=null)
+        {
+            return acquired;
+        }
+        synchronized (this.waitLock)
+        {
+            this.waiters++;
+            try
+            {
+                final long deadline = System.currentTimeMillis()+this.acquireTimeout;
+                while (true)
+                {
+                    if (this.closed)
+                    {
+                        throw new SQLException("Connection pool is closed");
+                    }
+                    for (int i=0; i<this.stripes.length; i++)
+                    {
+                        acquired = tryAcquire(this.stripes[i]);
+                        if (acquired!=null)
+                        {
+                            return acquired;
+                        }
+                    }
+                    final long wait = deadline-System.currentTimeMillis();
+                    if (wait<=0)
+                    {
+                        this.timeouts++;
+                        throw new SQLException("Timeout waiting "+this.acquireTimeout+" millis for a free connection: all "+this.maxSize+" connections in use");
+                    }
+                    try
+                    {
+                        this.waitLock.wait(wait);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        throw new SQLException("Interrupted waiting for a free connection");
+                    }
+                }
+            }
+            finally
+            {
+                this.waiters--;
+            }
+        }
+    }
+
+    private Object tryAcquire(final Stripe stripe)
+    {
+        synchronized (stripe)
+        {
+            if (stripe.permits==0)
+            {
+                return null;
+            }
+            stripe.permits--;
+            stripe.borrowed++;
+            if (stripe.idle.isEmpty())
+            {
+                return NO_IDLE;
+            }
+            return stripe.idle.removeFirst();
+        }
+    }
+
+    /**
+     * Method to give a slot back to a stripe, waking up a waiting borrower if any
+     * @param stripe The stripe
+     * @param idle The connection to keep idle in the stripe, can be null
+     * @param failed true if the borrow failed and must not be counted
+     */
+    private void releasePermit(final Stripe stripe, final PooledConnection idle, final boolean failed)
+    {
+        synchronized (stripe)
+        {
+            stripe.permits++;
+            if (idle!=null)
+            {
+                stripe.idle.addFirst(idle);
+            }
+            if (failed)
+            {
+                stripe.borrowed--;
+            }
+        }
+        if (this.waiters>0)
+        {
+            synchronized (this.waitLock)
+            {
+                this.waitLock.notify();
+            }
+        }
+    }
+
+    private Stripe homeStripe()
+    {
+        return this.stripes[System.identityHashCode(Thread.currentThread()) & (this.stripes.length-1)];
+    }
+
+    private PooledConnection pollIdle(final Stripe stripe)
+    {
+        while (true)
+        {
+            final PooledConnection pooled;
+            synchronized (stripe)
+            {
+                if (stripe.idle.isEmpty())
+                {
+                    return null;
+                }
+                pooled = (PooledConnection)stripe.idle.removeFirst();
+            }
+            if (pooled.isValid(this.validationQuery, this.validationTimeout))
+            {
+                return pooled;
+            }
+            log.warn("Discarding invalid connection "+pooled.physical);
+            pooled.closePhysical();
+        }
+    }
+
+    private void giveBack(final PooledConnection pooled)
+    {
+        if (this.closed || !pooled.reset())
+        {
+            pooled.closePhysical();
+            releasePermit(homeStripe(), null, false);
+        }
+        else
+        {
+            releasePermit(homeStripe(), pooled, false);
+        }
+    }
+
+    private void evictIdle()
+    {
+        final long idleLimit = this.maxIdleTime;
+        if (idleLimit<=0)
+        {
+            return;
+        }
+        final long oldest = System.currentTimeMillis()-idleLimit;
+        for (int i=0; i<this.stripes.length; i++)
+        {
+            final Stripe stripe = this.stripes[i];
+            synchronized (stripe)
+            {
+                for (Iterator it=stripe.idle.iterator(); it.hasNext();)
+                {
+                    final PooledConnection pooled = (PooledConnection)it.next();
+                    if (pooled.lastUsed<oldest)
+                    {
+                        log.debug("Evicting idle connection "+pooled.physical);
+                        it.remove();
+                        pooled.closePhysical();
+                    }
+                }
+            }
+        }
+    }
+
+    private synchronized void scheduleEviction(final long maxIdle)
+    {
+        if (this.evictor!=null)
+        {
+            this.evictor.cancel();
+            this.evictor = null;
+        }
+        if (maxIdle>0)
+        {
+            final long period = Math.max(1000, maxIdle/2);
+            this.evictor = new Timer(true);
+            this.evictor.schedule(new TimerTask()
+            {
+                public void run()
+                {
+                    evictIdle();
+                }
+            }, period, period);
+        }
+    }
+
+    /**
+     * Idle connections and free slots of a stripe, with its counters: all guarded by the stripe itself
+     */
+    private static final class Stripe
+    {
+        private final LinkedList idle = new LinkedList();
+        private int permits;
+        private long borrowed = 0;
+        private long created = 0;
+
+        private Stripe(final int permits)
+        {
+            this.permits = permits;
+        }
+    }
+
+    /**
+     * A physical Connection and the proxy handed out to borrowers
+     */
+    private class PooledConnection implements InvocationHandler
+    {
+        private final Connection physical;
+        private long lastUsed = System.currentTimeMillis();
+        private Connection borrowedProxy = null;
+
+        private PooledConnection(final Connection physical)
+        {
+            this.physical = physical;
+        }
+
+        private synchronized Connection borrow()
+        {
+            this.borrowedProxy = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class[]{Connection.class}, this);
+            return this.borrowedProxy;
+        }
+
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            synchronized (this)
+            {
+                if (proxy!=this.borrowedProxy)
+                {
+                    if ("close".equals(name))
+                    {
+                        return null;
+                    }
+                    if ("isClosed".equals(name))
+                    {
+                        return Boolean.TRUE;
+                    }
+                    if (!"equals".equals(name) && !"hashCode".equals(name) && !"toString".equals(name))
+                    {
+                        throw new SQLException("Connection is closed");
+                    }
+                }
+                else if ("close".equals(name))
+                {
+                    this.borrowedProxy = null;
+                    this.lastUsed = System.currentTimeMillis();
+                }
+            }
+            if ("close".equals(name))
+            {
+                giveBack(this);
+                return null;
+            }
+            if ("equals".equals(name))
+            {
+                return proxy==args[0] ? Boolean.TRUE : Boolean.FALSE;
+            }
+            if ("hashCode".equals(name))
+            {
+                return new Integer(System.identityHashCode(proxy));
+            }
+            if ("toString".equals(name))
+            {
+                return "Pooled["+this.physical+"]";
+            }
+            try
+            {
+                return method.invoke(this.physical, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getTargetException();
+            }
+        }
+
+        private boolean isValid(final String query, final int timeout)
+        {
+            Statement stmt = null;
+            ResultSet rs = null;
+            try
+            {
+                if (this.physical.isClosed())
+                {
+                    return false;
+                }
+                if (query!=null)
+                {
+                    stmt = this.physical.createStatement();
+                    stmt.setQueryTimeout(timeout);
+                    rs = stmt.executeQuery(query);
+                }
+                return true;
+            }
+            catch (SQLException e)
+            {
+                log.debug("Connection validation failed", e);
+                return false;
+            }
+            finally
+            {
+                try{if (rs!=null)rs.close();}catch(Exception e){log.error("Error closing resultSet", e);}
+                try{if (stmt!=null)stmt.close();}catch(Exception e){log.error("Error closing statement", e);}
+            }
+        }
+
+        private boolean reset()
+        {
+            try
+            {
+                if (!this.physical.getAutoCommit())
+                {
+                    this.physical.rollback();
+                    this.physical.setAutoCommit(true);
+                }
+                this.physical.clearWarnings();
+                return true;
+            }
+            catch (SQLException e)
+            {
+                log.warn("Error resetting connection given back to pool", e);
+                return false;
+            }
+        }
+
+        private void closePhysical()
+        {
+            SQLManager.closeResources(this.physical);
+        }
+    }
+
+    /**
+     * Handler of the DataSource returned by {@link ConnectionPool#getDataSource()}
+     */
+    private class PooledDataSourceHandler implements InvocationHandler
+    {
+        public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable
+        {
+            final String name = method.getName();
+            if ("getConnection".equals(name) && (args==null || args.length==0))
+            {
+                return ConnectionPool.this.getConnection();
+            }
+            if ("equals".equals(name))
+            {
+                return proxy==args[0] ? Boolean.TRUE : Boolean.FALSE;
+            }
+            if ("hashCode".equals(name))
+            {
+                return new Integer(System.identityHashCode(proxy));
+            }
+            if ("toString".equals(name))
+            {
+                return ConnectionPool.this.toString();
+            }
+            try
+            {
+                return method.invoke(ConnectionPool.this.target, args);
+            }
+            catch (InvocationTargetException e)
+            {
+                throw e.getTargetException();
+            }
+        }
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.Charset;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Iterator over the records of a CSV file read through a FileChannel, each record
+ * converted to a SQLParameter[] according to the java.sql.Types of its columns.
+ * Fields can be quoted with '"' (a quote inside a quoted field is doubled); an empty
+ * not quoted field is NULL. Dates are <code>yyyy-mm-dd</code>, timestamps <code>yyyy-mm-dd hh:mm:ss[.f...]</code>.
+ * Errors reading or converting a record are thrown as IllegalStateException with the cause.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class CsvSource implements Iterator
+{
+    private final static int BUFFER_SIZE = 64*1024;
+
+    private final FileInputStream in;
+    private final FileChannel channel;
+    private final CharsetDecoder decoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final char separator;
+    private final int[] sqlTypes;
+    private final List fields = new ArrayList();
+    private final StringBuffer field = new StringBuffer();
+    private boolean eof = false;
+    private boolean flushed = false;
+    private long line = 1;
+    private SQLParameter[] nextRecord = null;
+
+    /**
+     * Constructor
+     * @param file The CSV file
+     * @param charsetName The file encoding (eg. "UTF-8")
+     * @param separator The field separator (eg. ',')
+     * @param sqlTypes The java.sql.Types of each column
+     * @param skipHeader true to skip the first record
+     * @throws IOException
+     */
+    public CsvSource(final File file, final String charsetName, final char separator, final int[] sqlTypes, final boolean skipHeader) throws IOException
+    {
+        this.in = new FileInputStream(file);
+        this.channel = this.in.getChannel();
+        this.decoder = Charset.forName(charsetName).newDecoder().onMalformedInput(CodingErrorAction.REPORT).onUnmappableCharacter(CodingErrorAction.REPORT);
+        this.separator = separator;
+        this.sqlTypes = sqlTypes;
+        this.bytes.flip();
+        this.chars.flip();
+        if (skipHeader)
+        {
+            readRecord();
+        }
+    }
+
+    public boolean hasNext()
+    {
+        if (this.nextRecord==null)
+        {
+            this.nextRecord = readParameters();
+        }
+        return this.nextRecord!=null;
+    }
+
+    /**
+     * @return The next record as SQLParameter[]
+     */
+    public Object next()
+    {
+        if (!hasNext())
+        {
+            throw new NoSuchElementException();
+        }
+        final SQLParameter[] result = this.nextRecord;
+        this.nextRecord = null;
+        return result;
+    }
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return The number of the line actually read
+     */
+    public long getLine()
+    {
+        return this.line;
+    }
+
+    /**
+     * Method to close the file
+     */
+    public void close()
+    {
+        try{this.in.close();}catch(IOException e){/* nothing to do */}
+    }
+
+    /**
+     * Method to convert a CSV field to a SQLParameter
+     * @param value The field value, null for NULL
+     * @param sqlType The java.sql.Types of the column
+     * @return The SQLParameter
+     * @throws IllegalArgumentException If the value cannot be converted
+     */
+    public static SQLParameter toParameter(final String value, final int sqlType)
+    {
+        if (value==null)
+        {
+            return new SQLParameter(sqlType, null);
+        }
+        switch(sqlType)
+        {
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+                return new SQLParameter(Types.INTEGER, Integer.valueOf(value.trim()));
+            case Types.BIGINT:
+                return new SQLParameter(Types.INTEGER, Long.valueOf(value.trim()));
+            case Types.DOUBLE:
+                return new SQLParameter(Types.DOUBLE, Double.valueOf(value.trim()));
+            case Types.FLOAT:
+            case Types.REAL:
+                return new SQLParameter(Types.FLOAT, Float.valueOf(value.trim()));
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return new SQLParameter(sqlType, new BigDecimal(value.trim()));
+            case Types.DATE:
+                return new SQLParameter(Types.DATE, Date.valueOf(value.trim()));
+            case Types.TIMESTAMP:
+                return new SQLParameter(Types.TIMESTAMP, Timestamp.valueOf(value.trim()));
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return new SQLParameter(Types.BOOLEAN, Boolean.valueOf(value.trim()));
+            case Types.CHAR:
+                return new SQLParameter(Types.CHAR, value);
+            default:
+                return new SQLParameter(Types.VARCHAR, value);
+        }
+    }
+
+    private SQLParameter[] readParameters()
+    {
+        final long recordLine = this.line;
+        try
+        {
+            String[] record = readRecord();
+            while (record!=null && record.length==1 && record[0]==null)
+            {
+                record = readRecord();
+            }
+            if (record==null)
+            {
+                return null;
+            }
+            if (record.length!=this.sqlTypes.length)
+            {
+                throw new IllegalArgumentException(record.length+" fields found, "+this.sqlTypes.length+" expected");
+            }
+            final SQLParameter[] result = new SQLParameter[record.length];
+            for (int i=0; i<record.length; i++)
+            {
+                result[i] = toParameter(record[i], this.sqlTypes[i]);
+            }
+            return result;
+        }
+        catch (Exception e)
+        {
+            final IllegalStateException ise = new IllegalStateException("Error reading CSV record at line "+recordLine+": "+e.getMessage());
+            ise.initCause(e);
+            throw ise;
+        }
+    }
+
+    private String[] readRecord() throws IOException
+    {
+        int c = read();
+        if (c<0)
+        {
+            return null;
+        }
+        this.fields.clear();
+        this.field.setLength(0);
+        boolean quoted = false;
+        boolean inQuotes = false;
+        while (true)
+        {
+            if (inQuotes)
+            {
+                if (c<0)
+                {
+                    throw new IOException("Quoted field not terminated");
+                }
+                if (c=='"')
+                {
+                    c = read();
+                    if (c!='"')
+                    {
+                        inQuotes = false;
+                        continue;
+                    }
+                }
+                else if (c=='\n')
+                {
+                    this.line++;
+                }
+                this.field.append((char)c);
+            }
+            else if (c<0 || c=='\n')
+            {
+                this.fields.add(endField(quoted));
+                this.line++;
+                return (String[])this.fields.toArray(new String[this.fields.size()]);
+            }
+            else if (c==this.separator)
+            {
+                this.fields.add(endField(quoted));
+                quoted = false;
+            }
+            else if (c=='"' && !quoted && this.field.length()==0)
+            {
+                quoted = true;
+                inQuotes = true;
+            }
+            else if (c!='\r')
+            {
+                this.field.append((char)c);
+            }
+            c = read();
+        }
+    }
+
+    private String endField(final boolean quoted)
+    {
+        final String value = (this.field.length()==0 && !quoted) ? null : this.field.toString();
+        this.field.setLength(0);
+        return value;
+    }
+
+    private int read() throws IOException
+    {
+        if (!this.chars.hasRemaining() && !fill())
+        {
+            return -1;
+        }
+        return this.chars.get();
+    }
+
+    private boolean fill() throws IOException
+    {
+        if (this.flushed)
+        {
+            return false;
+        }
+        this.chars.clear();
+        while (true)
+        {
+            final CoderResult result = this.decoder.decode(this.bytes, this.chars, this.eof);
+            if (result.isError())
+            {
+                result.throwException();
+            }
+            if (this.chars.position()>0)
+            {
+                break;
+            }
+            if (this.eof)
+            {
+                this.decoder.flush(this.chars);
+                this.flushed = true;
+                break;
+            }
+            this.bytes.compact();
+            if (this.channel.read(this.bytes)<0)
+            {
+                this.eof = true;
+            }
+            this.bytes.flip();
+        }
+        this.chars.flip();
+        return this.chars.hasRemaining();
+    }
+}
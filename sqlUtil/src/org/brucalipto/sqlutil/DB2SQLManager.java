@@ -17,12 +17,12 @@ package org.brucalipto.sqlutil;
 
 import java.sql.CallableStatement;
 import java.sql.Connection;
-import java.sql.Date;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.sql.DataSource;
@@ -39,6 +39,7 @@ import org.apache.commons.logging.LogFactory;
 public class DB2SQLManager extends SQLManager 
 {
 	private final static Map instances = new HashMap();
+	private final static CallTextCache callTexts = new CallTextCache("call ", "");
 	private final static Log log = LogFactory.getLog(DB2SQLManager.class);
 	
 	private DB2SQLManager()
@@ -47,13 +48,52 @@ public class DB2SQLManager extends SQLManager
 		throw new IllegalStateException("Do not call this contructor!");
 	}
 	
-	public static DB2SQLManager getInstance(String dataSourceName)
+	public static synchronized DB2SQLManager getInstance(String dataSourceName)
 	{
 		DB2SQLManager instance = (DB2SQLManager)instances.get(dataSourceName);
 		if (instance == null)
 		{
 			instance = new DB2SQLManager(dataSourceName);
 			instances.put(dataSourceName, instance);
+			instance.getStats().registerMBean(dataSourceName);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Method to get the instance working on the given DataSource (eg. a {@link ConnectionPool#getDataSource()})
+	 * @param dataSourceName The name the instance is registered with
+	 * @param dataSource The DataSource to use if the instance is not registered yet
+	 * @return The instance registered with <code>dataSourceName</code>
+	 */
+	public static synchronized DB2SQLManager getInstance(String dataSourceName, DataSource dataSource)
+	{
+		DB2SQLManager instance = (DB2SQLManager)instances.get(dataSourceName);
+		if (instance == null)
+		{
+			instance = new DB2SQLManager(dataSource);
+			instances.put(dataSourceName, instance);
+			instance.getStats().registerMBean(dataSourceName);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Method to get the instance writing on a primary DataSource and reading from replicas (see {@link ReplicaRouter})
+	 * @param dataSourceName The name the instance is registered with
+	 * @param primary The DataSource to use for insert, update, delete and executeSP
+	 * @param replicas The DataSources to spread the selects across
+	 * @return The instance registered with <code>dataSourceName</code>
+	 */
+	public static synchronized DB2SQLManager getInstance(String dataSourceName, DataSource primary, DataSource[] replicas)
+	{
+		DB2SQLManager instance = (DB2SQLManager)instances.get(dataSourceName);
+		if (instance == null)
+		{
+			instance = new DB2SQLManager(primary);
+			instance.setReplicaRouter(new ReplicaRouter(replicas));
+			instances.put(dataSourceName, instance);
+			instance.getStats().registerMBean(dataSourceName);
 		}
 		return instance;
 	}
@@ -74,144 +114,158 @@ public class DB2SQLManager extends SQLManager
 	}
 	
     /**
-     * Method useful for using STORED PROCEDURE
+     * Method useful for using STORED PROCEDURE: the output parameters are followed by all the result sets
+     * returned by the procedure, in order
      * @param spib The {@link SPInputBean} bean containing data to execute the stored procedure
      * @return The {@link SPOutputBean} containing returned values
      */
     public SPOutputBean executeSP(final SPInputBean spib) throws SQLException
     {
+        final StatementTimer timer = new StatementTimer();
         Connection conn = null;
         CallableStatement call = null;
         ResultSet resultSet = null;
         final String procedureName = spib.spName;
+        boolean failed = true;
         
         SPParameter[] inputParameters = spib.inputParams;
         int[] outputParameters = spib.outputParams;
         
         final int inputParametersSize = inputParameters.length;
-        final int outputParametersSize = outputParameters.length;
+        int outputParametersSize = outputParameters.length;
         
-        final StringBuffer spName = new StringBuffer("call ").append(procedureName).append('(');
-        int totalParameters = inputParametersSize+outputParametersSize;
-        for(int i=0; i<totalParameters; i++)
+        String callText = procedureName;
+        
+        try
         {
-            if(i!=totalParameters-1)
+            conn = getConnection();
+            final ProcedureSignature signature = getProcedureSignature(conn, spib);
+            if (signature!=null)
             {
-                spName.append("?,");
+                outputParametersSize = signature.getOutputCount();
+                callText = callTexts.getCallText(procedureName, signature.getParameterCount(), 0);
             }
             else
             {
-                spName.append('?');
+                callText = callTexts.getCallText(procedureName, inputParametersSize, outputParametersSize);
             }
-        }
-        spName.append(")");
-        
-        try
-        {
-            if (this.dataSource!=null)
-        	{
-            	conn = this.dataSource.getConnection();
-        	}
-        	else
-        	{
-        		conn = this.connection;
-        	}
-            call = conn.prepareCall(spName.toString());
-            for (int i=0; i<inputParametersSize; i++)
+            call = prepareCall(conn, callText);
+            applyStatementOptions(call, procedureName, 0);
+            if (log.isDebugEnabled())
             {
-                final SPParameter inputParam = inputParameters[i];
-                final int sqlType = inputParam.sqlType;
-                final Object inputParamValue = inputParam.value;
-                log.debug((i+1)+") Setting input value: "+inputParam);
-                if (inputParamValue==null)
+                for (int i=0; i<inputParametersSize; i++)
                 {
-                    call.setNull(i+1, sqlType);
-                    continue;
-                }
-                switch(sqlType)
-                {
-                    case Types.VARCHAR:
-                        call.setString(i+1, (String)inputParamValue);
-                        break;
-                    case Types.INTEGER:
-                        if (inputParamValue instanceof Integer)
-                        {
-                            call.setInt(i+1, ((Integer)inputParamValue).intValue());
-                        }
-                        else if (inputParamValue instanceof Long)
-                        {
-                            call.setLong(i+1, ((Long)inputParamValue).longValue());
-                        }
-                        break;
-                    case Types.DATE:
-                        call.setDate(i+1, (Date)inputParamValue);
-                        break;
-                    case Types.BOOLEAN:
-                        call.setBoolean(i+1, ((Boolean)inputParamValue).booleanValue());
-                        break;
-                    case Types.CHAR:
-                        call.setString(i+1, ((Character)inputParamValue).toString());
-                        break;
-                    case Types.DOUBLE:
-                        call.setDouble(i+1, ((Double)inputParamValue).doubleValue());
-                        break;
-                    case Types.FLOAT:
-                        call.setFloat(i+1, ((Float)inputParamValue).floatValue());
-                        break;
-                    case Types.TIMESTAMP:
-                        call.setTimestamp(i+1, (Timestamp)inputParamValue);
-                        break;
-                    default:
-                        call.setObject(i+1, inputParamValue);
-                        break;
+                    log.debug((i+1)+") Setting input value: "+spib.getInputParam(i));
                 }
             }
-
-            for (int i=0; i<outputParametersSize; i++)
+            if (signature!=null)
+            {
+                signature.prepare(call, spib);
+            }
+            else
             {
-                int sqlType = outputParameters[i];
-                log.debug((i+1)+") Registering output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'");
-                call.registerOutParameter(inputParametersSize+i+1, sqlType);
+                spib.bind(call);
+
+                for (int i=0; i<outputParametersSize; i++)
+                {
+                    int sqlType = outputParameters[i];
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug((i+1)+") Registering output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'");
+                    }
+                    call.registerOutParameter(inputParametersSize+i+1, sqlType);
+                }
             }
 			
-			log.debug("Going to call: '"+procedureName+"'");
-			long elapsedTime = System.currentTimeMillis();
+			if (log.isDebugEnabled())
+			{
+				log.debug("Going to call: '"+procedureName+"'");
+			}
+			timer.prepared();
             boolean hasResultSet = call.execute();
-            log.debug("SP '"+procedureName+"' executed in "+(System.currentTimeMillis()-elapsedTime)+"millis");
-            if (hasResultSet)
+            timer.executed();
+            if (log.isDebugEnabled())
+            {
+                log.debug("SP '"+procedureName+"' executed in "+timer.getExecuteMillis()+"millis");
+            }
+            // result sets come before output parameters to be portable across drivers
+            final List resultSets = new ArrayList();
+            while (hasResultSet || call.getUpdateCount()!=-1)
             {
-            	log.debug("This SP is going to return also a resultSet");
+                if (hasResultSet)
+                {
+                    resultSet = call.getResultSet();
+                    resultSets.add(readResultSet(spib, resultSets.size(), resultSet));
+                }
+                hasResultSet = call.getMoreResults();
+            }
+            resultSet = null;
+            if (log.isDebugEnabled())
+            {
+                log.debug("SP '"+procedureName+"' returned "+resultSets.size()+" result sets");
             }
             
             final SPOutputBean output = new SPOutputBean();
             for(int i=0; i<outputParametersSize; i++)
             {
-                int sqlType = outputParameters[i];
-                log.debug((i+1)+") Getting output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'");
-                final Object spResult = call.getObject(inputParametersSize+i+1);
+                int sqlType = signature!=null ? signature.getOutputType(i) : outputParameters[i];
+                if (log.isDebugEnabled())
+                {
+                    log.debug((i+1)+") Getting output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'");
+                }
+                final Object spResult = call.getObject(signature!=null ? signature.getOutputPosition(i) : inputParametersSize+i+1);
                 SPParameter outParam = new SPParameter(sqlType, spResult);
                 output.addResult(outParam);
             }
-            if (hasResultSet)
+            for (int i=0; i<resultSets.size(); i++)
             {
-            	RowSetDynaClass rowSetDynaClass = new RowSetDynaClass(call.getResultSet(), false);
-            	if (log.isDebugEnabled())
-            	{
-            		log.debug("Going to return a RowSetDynaClass with following properties:");
-            		DynaProperty[] properties = rowSetDynaClass.getDynaProperties();
-            		for (int i=0; i<properties.length; i++)
-            		{
-            			log.debug("Name: '"+properties[i].getName()+"'; Type: '"+properties[i].getType().getName()+"'");
-            		}
-            	}
-            	SPParameter outParam = new SPParameter(Types.JAVA_OBJECT, rowSetDynaClass);
-            	output.addResult(outParam);
+                output.addResult(resultSets.get(i));
             }
+            failed = false;
             return output;
         }
         finally
         {
-            closeResources(resultSet, call, conn);
+            releaseResources(resultSet, call, conn, timer);
+            markUnitOfWorkWritten();
+            recordExecution(callText, spib, timer, 0, failed);
+        }
+    }
+
+    /**
+     * Method to read a result set of a STORED PROCEDURE
+     * @return The result set as RowSetDynaClass or {@link ColumnarResult}, or the Integer number of rows
+     * handed to the {@link ResultSetHandler}
+     */
+    private SPParameter readResultSet(final SPInputBean spib, final int index, final ResultSet rs) throws SQLException
+    {
+        final ResultSetHandler handler = spib.getResultSetHandler();
+        if (handler!=null)
+        {
+            final RowHandler rowHandler = handler.getRowHandler(index, rs.getMetaData());
+            final int rows = rowHandler==null ? 0 : streamResultSet(rs, rowHandler, spib.getFetchSize());
+            if (log.isDebugEnabled())
+            {
+                log.debug("Streamed "+rows+" rows of result set "+index);
+            }
+            return new SPParameter(Types.INTEGER, new Integer(rows));
+        }
+        if (spib.isColumnarResults())
+        {
+            final ColumnarResult columnarResult = new ColumnarResult(rs);
+            log.debug("Going to return a "+columnarResult);
+            return new SPParameter(Types.JAVA_OBJECT, columnarResult);
+        }
+        RowSetDynaClass rowSetDynaClass = new RowSetDynaClass(rs, false);
+        if (log.isDebugEnabled())
+        {
+            log.debug("Going to return a RowSetDynaClass with following properties:");
+            DynaProperty[] properties = rowSetDynaClass.getDynaProperties();
+            for (int i=0; i<properties.length; i++)
+            {
+                log.debug("Name: '"+properties[i].getName()+"'; Type: '"+properties[i].getType().getName()+"'");
+            }
         }
+        return new SPParameter(Types.JAVA_OBJECT, rowSetDynaClass);
     }
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tracks the number of rows returned by each statement fingerprint (see {@link SQLManagerStats#fingerprint(String)})
+ * and suggests a fetch size getting them in a single round trip, up to a maximum. Averages are exponentially weighted, so the suggestion follows changes in the data.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class FetchSizeAdvisor
+{
+    public final static int DEFAULT_MAX_FINGERPRINTS = 1000;
+
+    private final static double WEIGHT = 0.25;
+
+    private final int maxFetchSize;
+    private final int maxFingerprints;
+    private final LinkedHashMap averages;
+    private volatile Map fingerprints = new HashMap();
+
+    /**
+     * Constructor
+     * @param maxFetchSize The greatest suggested fetch size
+     * @param maxFingerprints The maximum number of tracked fingerprints (LRU evicted)
+     */
+    public FetchSizeAdvisor(final int maxFetchSize, final int maxFingerprints)
+    {
+        if (maxFetchSize<1 || maxFingerprints<1)
+        {
+            throw new IllegalArgumentException("Fetch size advisor bounds must be greater than 0: "+maxFetchSize+" rows, "+maxFingerprints+" fingerprints");
+        }
+        this.maxFetchSize = maxFetchSize;
+        this.maxFingerprints = maxFingerprints;
+        this.averages = new LinkedHashMap(16, 0.75f, true)
+        {
+            protected boolean removeEldestEntry(final Map.Entry eldest)
+            {
+                return size()>FetchSizeAdvisor.this.maxFingerprints;
+            }
+        };
+    }
+
+    /**
+     * Method to record the rows returned by an execution
+     * @param sql The SQL text
+     * @param rows The number of rows read
+     */
+    public void observe(final String sql, final long rows)
+    {
+        final String fingerprint = getFingerprint(sql);
+        synchronized (this)
+        {
+            final double[] average = (double[])this.averages.get(fingerprint);
+            if (average==null)
+            {
+                this.averages.put(fingerprint, new double[] {rows});
+            }
+            else
+            {
+                average[0] += WEIGHT*(rows-average[0]);
+            }
+        }
+    }
+
+    /**
+     * Method to get the suggested fetch size of a statement
+     * @param sql The SQL text
+     * @return The fetch size, 0 if the statement has not been observed yet
+     */
+    public int getFetchSize(final String sql)
+    {
+        final String fingerprint = getFingerprint(sql);
+        final double average;
+        synchronized (this)
+        {
+            final double[] observed = (double[])this.averages.get(fingerprint);
+            if (observed==null)
+            {
+                return 0;
+            }
+            average = observed[0];
+        }
+        // one more row lets the driver see the end of the result in the same round trip
+        return (int)Math.min(this.maxFetchSize, Math.ceil(average)+1);
+    }
+
+    /**
+     * Method to get the fingerprint of a SQL text, computed once per text
+     * @param sql The SQL text
+     * @return The fingerprint
+     */
+    private String getFingerprint(final String sql)
+    {
+        String fingerprint = (String)this.fingerprints.get(sql);
+        if (fingerprint==null)
+        {
+            fingerprint = SQLManagerStats.fingerprint(sql);
+            synchronized (this)
+            {
+                if (this.fingerprints.size()<this.maxFingerprints*4)
+                {
+                    final Map newFingerprints = new HashMap(this.fingerprints);
+                    newFingerprints.put(sql, fingerprint);
+                    this.fingerprints = newFingerprints;
+                }
+            }
+        }
+        return fingerprint;
+    }
+
+    /**
+     * @return The number of tracked fingerprints
+     */
+    public synchronized int getFingerprintCount()
+    {
+        return this.averages.size();
+    }
+
+    /**
+     * Method to drop all observations
+     */
+    public synchronized void clear()
+    {
+        this.averages.clear();
+    }
+
+    public synchronized String toString()
+    {
+        return "FetchSizeAdvisor[fingerprints="+this.averages.size()+"/"+this.maxFingerprints+"; maxFetchSize="+this.maxFetchSize+"]";
+    }
+}
@@ -17,10 +17,9 @@ package org.brucalipto.sqlutil;
 
 import java.sql.CallableStatement;
 import java.sql.Connection;
-import java.sql.Date;
+import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Timestamp;
 import java.sql.Types;
 import java.util.HashMap;
 import java.util.Map;
@@ -39,6 +38,7 @@ import org.apache.commons.logging.LogFactory;
 public class OracleSQLManager extends SQLManager
 {
 	private final static Map instances = new HashMap();
+	private final static CallTextCache callTexts = new CallTextCache("{ call ", " }");
 	private final static Log log = LogFactory.getLog(DB2SQLManager.class);
 	
 	private OracleSQLManager()
@@ -47,13 +47,52 @@ public class OracleSQLManager extends SQLManager
 		throw new IllegalStateException("Do not call this contructor!");
 	}
 	
-	public static OracleSQLManager getInstance(String dataSourceName)
+	public static synchronized OracleSQLManager getInstance(String dataSourceName)
 	{
 		OracleSQLManager instance = (OracleSQLManager)instances.get(dataSourceName);
 		if (instance == null)
 		{
 			instance = new OracleSQLManager(dataSourceName);
 			instances.put(dataSourceName, instance);
+			instance.getStats().registerMBean(dataSourceName);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Method to get the instance working on the given DataSource (eg. a {@link ConnectionPool#getDataSource()})
+	 * @param dataSourceName The name the instance is registered with
+	 * @param dataSource The DataSource to use if the instance is not registered yet
+	 * @return The instance registered with <code>dataSourceName</code>
+	 */
+	public static synchronized OracleSQLManager getInstance(String dataSourceName, DataSource dataSource)
+	{
+		OracleSQLManager instance = (OracleSQLManager)instances.get(dataSourceName);
+		if (instance == null)
+		{
+			instance = new OracleSQLManager(dataSource);
+			instances.put(dataSourceName, instance);
+			instance.getStats().registerMBean(dataSourceName);
+		}
+		return instance;
+	}
+	
+	/**
+	 * Method to get the instance writing on a primary DataSource and reading from replicas (see {@link ReplicaRouter})
+	 * @param dataSourceName The name the instance is registered with
+	 * @param primary The DataSource to use for insert, update, delete and executeSP
+	 * @param replicas The DataSources to spread the selects across
+	 * @return The instance registered with <code>dataSourceName</code>
+	 */
+	public static synchronized OracleSQLManager getInstance(String dataSourceName, DataSource primary, DataSource[] replicas)
+	{
+		OracleSQLManager instance = (OracleSQLManager)instances.get(dataSourceName);
+		if (instance == null)
+		{
+			instance = new OracleSQLManager(primary);
+			instance.setReplicaRouter(new ReplicaRouter(replicas));
+			instances.put(dataSourceName, instance);
+			instance.getStats().registerMBean(dataSourceName);
 		}
 		return instance;
 	}
@@ -74,123 +113,132 @@ public class OracleSQLManager extends SQLManager
 	}
 
         /**
-     * Method useful for using STORED PROCEDURE
+     * Method useful for using STORED PROCEDURE: CURSOR output parameters are read into a RowSetDynaClass,
+     * a {@link ColumnarResult} or streamed to the {@link ResultSetHandler} of the {@link SPInputBean}
      * @param spib The {@link SPInputBean} bean containing data to execute the stored procedure
-     * @return The {@link SPOutputBean} containing returned values
+     * @return The {@link SPOutputBean} containing returned values, null if the call failed
+     * @throws ConcurrencyLimitException If the {@link ConcurrencyLimiter} rejects the call: other errors are only logged
      */
 	public SPOutputBean executeSP(final SPInputBean spib) throws SQLException
     {
+		final StatementTimer timer = new StatementTimer();
 		Connection conn = null;
         CallableStatement call = null;
         ResultSet resultSet = null;
         final String procedureName = spib.spName;
+        boolean failed = true;
         
         SPParameter[] inputParameters = spib.inputParams;
         int[] outputParameters = spib.outputParams;
         
         final int inputParametersSize = inputParameters.length;
-        final int outputParametersSize = outputParameters.length;
+        int outputParametersSize = outputParameters.length;
         
-        final StringBuffer spName = new StringBuffer("{ call ").append(procedureName).append('(');
-        int totalParameters = inputParametersSize+outputParametersSize;
-        for(int i=0; i<totalParameters; i++)
+        String callText = procedureName;
+
+        try
         {
-            if(i!=totalParameters-1)
+            conn = getConnection();
+            final ProcedureSignature signature = getProcedureSignature(conn, spib);
+            if (signature!=null)
             {
-                spName.append("?,");
+                outputParametersSize = signature.getOutputCount();
+                callText = callTexts.getCallText(procedureName, signature.getParameterCount(), 0);
             }
             else
             {
-                spName.append('?');
+                callText = callTexts.getCallText(procedureName, inputParametersSize, outputParametersSize);
             }
-        }
-        spName.append(") }");
-        log.debug("Going to call: '"+spName+"'");
-
-        try
-        {
-            conn = this.dataSource.getConnection();
-            call = conn.prepareCall(spName.toString());
-            for (int i=0; i<inputParametersSize; i++)
+            if (log.isDebugEnabled())
             {
-                final SPParameter inputParam = inputParameters[i];
-                final int sqlType = inputParam.sqlType;
-                final Object inputParamValue = inputParam.value;
-                log.debug((i+1)+") Setting input value 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'-'"+inputParamValue+"'");
-                if (inputParamValue==null)
-                {
-                    call.setNull(i+1, sqlType);
-                    continue;
-                }
-                switch(sqlType)
+                log.debug("Going to call: '"+callText+"'");
+            }
+            call = prepareCall(conn, callText);
+            final int fetchSize = applyStatementOptions(call, procedureName, 0);
+            if (log.isDebugEnabled())
+            {
+                for (int i=0; i<inputParametersSize; i++)
                 {
-                    case Types.VARCHAR:
-                        call.setString(i+1, (String)inputParamValue);
-                        break;
-                    case Types.INTEGER:
-                        if (inputParamValue instanceof Integer)
-                        {
-                            call.setInt(i+1, ((Integer)inputParamValue).intValue());
-                        }
-                        else if (inputParamValue instanceof Long)
-                        {
-                            call.setLong(i+1, ((Long)inputParamValue).longValue());
-                        }
-                        break;
-                    case Types.DATE:
-                        call.setDate(i+1, (Date)inputParamValue);
-                        break;
-                    case Types.BOOLEAN:
-                        call.setBoolean(i+1, ((Boolean)inputParamValue).booleanValue());
-                        break;
-                    case Types.CHAR:
-                        call.setString(i+1, ((Character)inputParamValue).toString());
-                        break;
-                    case Types.DOUBLE:
-                        call.setDouble(i+1, ((Double)inputParamValue).doubleValue());
-                        break;
-                    case Types.FLOAT:
-                        call.setFloat(i+1, ((Float)inputParamValue).floatValue());
-                        break;
-                    case Types.TIMESTAMP:
-                        call.setTimestamp(i+1, (Timestamp)inputParamValue);
-                        break;
-                    default:
-                        call.setObject(i+1, inputParamValue);
-                        break;
+                    final SPParameter param = spib.getInputParam(i);
+                    log.debug((i+1)+") Setting input value 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+param.sqlType))+"'-'"+param.value+"'");
                 }
             }
-
-            for (int i=0; i<outputParametersSize; i++)
+            if (signature!=null)
             {
-                int sqlType = outputParameters[i];
-                log.debug((i+1)+") Registering output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'");
-                call.registerOutParameter(inputParametersSize+i+1, sqlType);
+                signature.prepare(call, spib);
+            }
+            else
+            {
+                spib.bind(call);
+
+                for (int i=0; i<outputParametersSize; i++)
+                {
+                    int sqlType = outputParameters[i];
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug((i+1)+") Registering output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'");
+                    }
+                    call.registerOutParameter(inputParametersSize+i+1, sqlType);
+                }
             }
 
+            timer.prepared();
             call.execute();
+            timer.executed();
 
             final SPOutputBean output = new SPOutputBean();
             for(int i=0; i<outputParametersSize; i++)
             {
-                int sqlType = outputParameters[i];
-                log.debug((i+1)+") Getting output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'");
-                final Object spResult = call.getObject(inputParametersSize+i+1);
+                int sqlType = signature!=null ? signature.getOutputType(i) : outputParameters[i];
+                if (log.isDebugEnabled())
+                {
+                    log.debug((i+1)+") Getting output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+sqlType))+"'");
+                }
+                final Object spResult = call.getObject(signature!=null ? signature.getOutputPosition(i) : inputParametersSize+i+1);
                 SPParameter outParam = null;
                 if (sqlType==SQLUtilTypes.CURSOR)
                 {
                     resultSet = (ResultSet)spResult;
-                    RowSetDynaClass rowSetDynaClass = new RowSetDynaClass(resultSet, false);
-                	if (log.isDebugEnabled())
-                	{
-                		log.debug("Going to return a RowSetDynaClass with following properties:");
-                		DynaProperty[] properties = rowSetDynaClass.getDynaProperties();
-                		for (int j=0; j<properties.length; j++)
-                		{
-                			log.debug("Name: '"+properties[j].getName()+"'; Type: '"+properties[j].getType().getName()+"'");
-                		}
-                	}
-                	outParam = new SPParameter(sqlType, rowSetDynaClass);
+                    if (spib.getResultSetHandler()!=null)
+                    {
+                        final RowHandler rowHandler = spib.getResultSetHandler().getRowHandler(i, resultSet.getMetaData());
+                        final int rows = rowHandler==null ? 0 : streamResultSet(resultSet, rowHandler, spib.getFetchSize());
+                        if (log.isDebugEnabled())
+                        {
+                            log.debug("Streamed "+rows+" rows of CURSOR "+(i+1));
+                        }
+                        outParam = new SPParameter(Types.INTEGER, new Integer(rows));
+                    }
+                    else if (spib.isColumnarResults())
+                    {
+                        if (fetchSize>0)
+                        {
+                            resultSet.setFetchSize(fetchSize);
+                        }
+                        final ColumnarResult columnarResult = new ColumnarResult(resultSet);
+                        log.debug("Going to return a "+columnarResult);
+                        outParam = new SPParameter(sqlType, columnarResult);
+                    }
+                    else
+                    {
+                        if (fetchSize>0)
+                        {
+                            resultSet.setFetchSize(fetchSize);
+                        }
+                        RowSetDynaClass rowSetDynaClass = new RowSetDynaClass(resultSet, false);
+                    	if (log.isDebugEnabled())
+                    	{
+                    		log.debug("Going to return a RowSetDynaClass with following properties:");
+                    		DynaProperty[] properties = rowSetDynaClass.getDynaProperties();
+                    		for (int j=0; j<properties.length; j++)
+                    		{
+                    			log.debug("Name: '"+properties[j].getName()+"'; Type: '"+properties[j].getType().getName()+"'");
+                    		}
+                    	}
+                    	outParam = new SPParameter(sqlType, rowSetDynaClass);
+                    }
+                    resultSet.close();
+                    resultSet = null;
                 }
                 else
                 {
@@ -199,17 +247,62 @@ public class OracleSQLManager extends SQLManager
                 output.addResult(outParam);
             }
 
+            failed = false;
             return output;
         }
+        catch (ConcurrencyLimitException e)
+        {
+            throw e;
+        }
         catch (SQLException sqle)
         {
             log.error("Caught SQLException", sqle);
         }
         finally
         {
-            closeResources(resultSet, call, conn);
+            releaseResources(resultSet, call, conn, timer);
+            markUnitOfWorkWritten();
+            recordExecution(callText, spib, timer, 0, failed);
         }
 
         return null;
     }
+
+    /**
+     * Method to read the signature of a STORED PROCEDURE named <code>[[schema.]package.]name</code> or <code>schema.name</code>:
+     * a two parts name is looked up as package first
+     */
+    protected ProcedureSignature discoverProcedureSignature(final DatabaseMetaData metaData, final String procedureName) throws SQLException
+    {
+        final int dot = procedureName.lastIndexOf('.');
+        if (dot<=0)
+        {
+            return super.discoverProcedureSignature(metaData, procedureName);
+        }
+        final String name = procedureName.substring(dot+1);
+        final String qualifier = procedureName.substring(0, dot);
+        final int qualifierDot = qualifier.lastIndexOf('.');
+        if (qualifierDot>0)
+        {
+            return readProcedureSignature(metaData, procedureName, qualifier.substring(qualifierDot+1), qualifier.substring(0, qualifierDot), name);
+        }
+        final ProcedureSignature packaged = readProcedureSignature(metaData, procedureName, qualifier, null, name);
+        if (packaged!=null)
+        {
+            return packaged;
+        }
+        return readProcedureSignature(metaData, procedureName, "", qualifier, name);
+    }
+
+    /**
+     * Maps the Oracle REF CURSOR parameters to {@link SQLUtilTypes#CURSOR}
+     */
+    protected int getDeclaredType(final int dataType, final String typeName)
+    {
+        if ("REF CURSOR".equals(typeName))
+        {
+            return SQLUtilTypes.CURSOR;
+        }
+        return dataType;
+    }
 }
@@ -0,0 +1,303 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * Strategy binding a value of a given java.sql.Types to a PreparedStatement
+ * (or CallableStatement) parameter. Binders are stateless singletons resolved
+ * once per {@link SQLParameter}/{@link SPParameter}, so binding a parameter
+ * does not switch on its type nor allocate anything for the common types.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public abstract class ParameterBinder
+{
+    public final static ParameterBinder VARCHAR = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            pstmt.setString(index, (String)value);
+        }
+    };
+
+    public final static ParameterBinder INTEGER = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            if (value instanceof Integer)
+            {
+                pstmt.setInt(index, ((Integer)value).intValue());
+            }
+            else if (value instanceof Long)
+            {
+                pstmt.setLong(index, ((Long)value).longValue());
+            }
+            else
+            {
+                pstmt.setObject(index, value);
+            }
+        }
+    };
+
+    public final static ParameterBinder DATE = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            pstmt.setDate(index, (Date)value);
+        }
+    };
+
+    public final static ParameterBinder BOOLEAN = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            pstmt.setBoolean(index, ((Boolean)value).booleanValue());
+        }
+    };
+
+    public final static ParameterBinder CHAR = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            pstmt.setString(index, value.toString());
+        }
+    };
+
+    public final static ParameterBinder DOUBLE = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            pstmt.setDouble(index, ((Double)value).doubleValue());
+        }
+    };
+
+    public final static ParameterBinder FLOAT = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            pstmt.setFloat(index, ((Float)value).floatValue());
+        }
+    };
+
+    public final static ParameterBinder TIMESTAMP = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            pstmt.setTimestamp(index, (Timestamp)value);
+        }
+    };
+
+    public final static ParameterBinder OBJECT = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            pstmt.setObject(index, value);
+        }
+    };
+
+    public final static ParameterBinder NUMBER = new ParameterBinder()
+    {
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            if (value instanceof BigDecimal)
+            {
+                pstmt.setBigDecimal(index, (BigDecimal)value);
+            }
+            else if (value instanceof Integer || value instanceof Short || value instanceof Byte)
+            {
+                pstmt.setInt(index, ((Number)value).intValue());
+            }
+            else if (value instanceof Long)
+            {
+                pstmt.setLong(index, ((Long)value).longValue());
+            }
+            else if (value instanceof Double)
+            {
+                pstmt.setDouble(index, ((Double)value).doubleValue());
+            }
+            else if (value instanceof Float)
+            {
+                pstmt.setFloat(index, ((Float)value).floatValue());
+            }
+            else
+            {
+                pstmt.setObject(index, value);
+            }
+        }
+    };
+
+    /**
+     * Method to bind a not null value
+     * @param pstmt The statement to bind the value to
+     * @param index The parameter index (starting from 1)
+     * @param value The not null value to bind
+     * @throws SQLException
+     */
+    public abstract void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException;
+
+    /**
+     * Method to get the binder for a java.sql.Types type
+     * @param sqlType A java.sql.Types type
+     * @return The ParameterBinder to use for values of that type
+     */
+    public static ParameterBinder forType(final int sqlType)
+    {
+        switch(sqlType)
+        {
+            case Types.VARCHAR:
+                return VARCHAR;
+            case Types.INTEGER:
+                return INTEGER;
+            case Types.DATE:
+                return DATE;
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.CHAR:
+                return CHAR;
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.FLOAT:
+                return FLOAT;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            default:
+                return OBJECT;
+        }
+    }
+
+    /**
+     * Method to get the binder for a parameter whose type is declared by the database
+     * (eg. discovered from the stored procedure metadata): values of the expected class are bound
+     * with the typed setter, any other value is converted by the driver to the declared type
+     * @param sqlType The declared java.sql.Types type
+     * @return The ParameterBinder to use for values of that parameter
+     */
+    public static ParameterBinder forDeclaredType(final int sqlType)
+    {
+        switch(sqlType)
+        {
+            case Types.VARCHAR:
+            case Types.CHAR:
+            case Types.LONGVARCHAR:
+                return new DeclaredTypeBinder(sqlType, String.class, VARCHAR);
+            case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
+            case Types.BIGINT:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+            case Types.DOUBLE:
+            case Types.FLOAT:
+            case Types.REAL:
+                return new DeclaredTypeBinder(sqlType, Number.class, NUMBER);
+            case Types.DATE:
+                return new DeclaredTypeBinder(sqlType, Date.class, DATE);
+            case Types.TIMESTAMP:
+                return new DeclaredTypeBinder(sqlType, Timestamp.class, TIMESTAMP);
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return new DeclaredTypeBinder(sqlType, Boolean.class, BOOLEAN);
+            default:
+                return new DeclaredTypeBinder(sqlType, null, null);
+        }
+    }
+
+    /**
+     * Method to bind a list of {@link SQLParameter} starting from the first statement parameter
+     * @param pstmt The statement to bind the parameters to
+     * @param parameters The parameters to bind, can be null
+     * @throws SQLException
+     */
+    public static void bind(final PreparedStatement pstmt, final SQLParameter[] parameters) throws SQLException
+    {
+        if (parameters==null)
+        {
+            return;
+        }
+        for (int i=0; i<parameters.length; i++)
+        {
+            final SQLParameter param = parameters[i];
+            final Object paramValue = param.value;
+            if (paramValue==null)
+            {
+                pstmt.setNull(i+1, param.sqlType);
+            }
+            else
+            {
+                param.getBinder().bind(pstmt, i+1, paramValue);
+            }
+        }
+    }
+
+    /**
+     * Method to bind a list of {@link SPParameter} starting from the first statement parameter
+     * @param pstmt The statement to bind the parameters to
+     * @param parameters The parameters to bind, can be null
+     * @throws SQLException
+     */
+    public static void bind(final PreparedStatement pstmt, final SPParameter[] parameters) throws SQLException
+    {
+        if (parameters==null)
+        {
+            return;
+        }
+        for (int i=0; i<parameters.length; i++)
+        {
+            final SPParameter param = parameters[i];
+            final Object paramValue = param.value;
+            if (paramValue==null)
+            {
+                pstmt.setNull(i+1, param.sqlType);
+            }
+            else
+            {
+                param.binder.bind(pstmt, i+1, paramValue);
+            }
+        }
+    }
+
+    private static final class DeclaredTypeBinder extends ParameterBinder
+    {
+        private final int sqlType;
+        private final Class valueClass;
+        private final ParameterBinder binder;
+
+        private DeclaredTypeBinder(final int sqlType, final Class valueClass, final ParameterBinder binder)
+        {
+            this.sqlType = sqlType;
+            this.valueClass = valueClass;
+            this.binder = binder;
+        }
+
+        public void bind(final PreparedStatement pstmt, final int index, final Object value) throws SQLException
+        {
+            if (this.valueClass!=null && this.valueClass.isInstance(value))
+            {
+                this.binder.bind(pstmt, index, value);
+            }
+            else
+            {
+                pstmt.setObject(index, value, this.sqlType);
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+
+import org.apache.commons.beanutils.RowSetDynaClass;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Runs a select as N concurrent queries, each one reading a sub-range of a numeric or date key column:
+ * <pre>SELECT * FROM (&lt;select&gt;) p WHERE &lt;key&gt; &gt;= ? AND &lt;key&gt; &lt; ?</pre>
+ * The partitions run on the {@link AsyncExecutor} of the {@link SQLManager}, each on its own Connection
+ * (from a replica if a {@link ReplicaRouter} is set). Rows with the key outside the range or NULL are not read.
+ * The key column is put in the SQL text as is: never use a value coming from the user.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class PartitionedScan
+{
+    private final static Log log = LogFactory.getLog(PartitionedScan.class);
+
+    public final static int DEFAULT_PARTITIONS = 4;
+
+    private final SQLManager manager;
+    private final String selectStatement;
+    private final SQLParameter[] params;
+    private final String keyColumn;
+    private int partitions = DEFAULT_PARTITIONS;
+    private int fetchSize = SQLManager.DEFAULT_FETCH_SIZE;
+    private long lowerBound = 0;
+    private long upperBound = -1;
+    private boolean dateKey = false;
+
+    /**
+     * Constructor
+     * @param manager The SQLManager to use: it must work on a DataSource
+     * @param selectStatement The prepared select to partition
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement, can be null
+     * @param keyColumn The numeric or date column of the select to split the range of
+     */
+    public PartitionedScan(final SQLManager manager, final String selectStatement, final SQLParameter[] params, final String keyColumn)
+    {
+        if (manager.isBoundToConnection())
+        {
+            throw new IllegalStateException("Partitioned scans need a SQLManager working on a DataSource");
+        }
+        this.manager = manager;
+        this.selectStatement = selectStatement;
+        this.params = params==null ? new SQLParameter[0] : params;
+        this.keyColumn = keyColumn;
+    }
+
+    /**
+     * Method to set the range of a numeric key
+     * @param lowerBound The lowest key to read
+     * @param upperBound The highest key to read
+     */
+    public void setRange(final long lowerBound, final long upperBound)
+    {
+        if (upperBound<lowerBound)
+        {
+            throw new IllegalArgumentException("Empty range ["+lowerBound+", "+upperBound+"]");
+        }
+        this.lowerBound = lowerBound;
+        this.upperBound = upperBound;
+        this.dateKey = false;
+    }
+
+    /**
+     * Method to set the range of a date key
+     * @param lowerBound The lowest key to read
+     * @param upperBound The highest key to read
+     */
+    public void setRange(final Date lowerBound, final Date upperBound)
+    {
+        setRange(lowerBound.getTime(), upperBound.getTime());
+        this.dateKey = true;
+    }
+
+    /**
+     * @param partitions The number of sub-ranges (and concurrent queries)
+     */
+    public void setPartitions(final int partitions)
+    {
+        if (partitions<1)
+        {
+            throw new IllegalArgumentException("Partitions must be greater than 0: "+partitions);
+        }
+        this.partitions = partitions;
+    }
+
+    /**
+     * @param fetchSize The number of rows to get from the database in each round trip when streaming
+     */
+    public void setFetchSize(final int fetchSize)
+    {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return The number of partitions actually used: never more than the keys in the range
+     */
+    public int getPartitionCount()
+    {
+        final long keys = this.upperBound-this.lowerBound+1;
+        return (int)Math.max(1, Math.min(this.partitions, keys));
+    }
+
+    /**
+     * @param partition The partition index
+     * @return The lowest key read by the partition
+     */
+    public long getPartitionLowerBound(final int partition)
+    {
+        final long keys = this.upperBound-this.lowerBound+1;
+        final int count = getPartitionCount();
+        return this.lowerBound+(keys/count)*partition+Math.min(partition, keys%count);
+    }
+
+    /**
+     * Method to read all partitions and merge their rows, ordered by partition
+     * @return Returns a RowSetDynaClass containing the rows of all partitions
+     * @throws SQLException If a partition fails
+     */
+    public RowSetDynaClass select() throws SQLException
+    {
+        checkRange();
+        final int count = getPartitionCount();
+        final SQLFuture[] futures = new SQLFuture[count];
+        for (int i=0; i<count; i++)
+        {
+            futures[i] = this.manager.dynaSelectAsync(getStatement(i), getParameters(i));
+        }
+        final Object[] results = waitAll(futures);
+        final RowSetDynaClass result = (RowSetDynaClass)results[0];
+        for (int i=1; i<count; i++)
+        {
+            result.getRows().addAll(((RowSetDynaClass)results[i]).getRows());
+        }
+        return result;
+    }
+
+    /**
+     * Method to read all partitions handing the rows of each one to its own {@link RowHandler}
+     * @param handlers The handlers, one for each partition (see {@link #getPartitionCount()}):
+     * they are called concurrently by different threads
+     * @return The number of rows handed to the handlers
+     * @throws SQLException If a partition fails
+     */
+    public long select(final RowHandler[] handlers) throws SQLException
+    {
+        checkRange();
+        final int count = getPartitionCount();
+        if (handlers.length<count)
+        {
+            throw new IllegalArgumentException(count+" handlers needed, "+handlers.length+" given");
+        }
+        final SQLFuture[] futures = new SQLFuture[count];
+        for (int i=0; i<count; i++)
+        {
+            futures[i] = this.manager.streamSelectAsync(getStatement(i), getParameters(i), handlers[i], this.fetchSize);
+        }
+        final Object[] results = waitAll(futures);
+        long rows = 0;
+        for (int i=0; i<count; i++)
+        {
+            rows += ((Integer)results[i]).intValue();
+        }
+        return rows;
+    }
+
+    private String getStatement(final int partition)
+    {
+        final String upperCondition = partition==getPartitionCount()-1 ? "<=" : "<";
+        return "SELECT * FROM ("+this.selectStatement+") p WHERE "+this.keyColumn+" >= ? AND "+this.keyColumn+" "+upperCondition+" ?";
+    }
+
+    private SQLParameter[] getParameters(final int partition)
+    {
+        final long lower = getPartitionLowerBound(partition);
+        final long upper = partition==getPartitionCount()-1 ? this.upperBound : getPartitionLowerBound(partition+1);
+        if (log.isDebugEnabled())
+        {
+            log.debug("Partition "+partition+" reads keys from "+lower+" to "+upper);
+        }
+        final SQLParameter[] result = new SQLParameter[this.params.length+2];
+        System.arraycopy(this.params, 0, result, 0, this.params.length);
+        result[this.params.length] = toParameter(lower);
+        result[this.params.length+1] = toParameter(upper);
+        return result;
+    }
+
+    private SQLParameter toParameter(final long key)
+    {
+        if (this.dateKey)
+        {
+            return new SQLParameter(Types.TIMESTAMP, new Timestamp(key));
+        }
+        return new SQLParameter(Types.INTEGER, new Long(key));
+    }
+
+    private void checkRange()
+    {
+        if (this.upperBound<this.lowerBound)
+        {
+            throw new IllegalStateException("Range not set");
+        }
+    }
+
+    private static Object[] waitAll(final SQLFuture[] futures) throws SQLException
+    {
+        final Object[] results = new Object[futures.length];
+        SQLException error = null;
+        for (int i=0; i<futures.length; i++)
+        {
+            try
+            {
+                results[i] = futures[i].get();
+            }
+            catch (SQLException e)
+            {
+                log.error("Partition "+i+" failed", e);
+                if (error==null)
+                {
+                    error = e;
+                }
+            }
+        }
+        if (error!=null)
+        {
+            throw error;
+        }
+        return results;
+    }
+}
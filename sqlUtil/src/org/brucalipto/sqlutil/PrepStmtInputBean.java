@@ -16,22 +16,29 @@
 package org.brucalipto.sqlutil;
 
 import java.io.Serializable;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.Arrays;
 import java.util.Date;
 
 /**
- * Utility class defining parameters needed to call a SQL statement
+ * Utility class defining parameters needed to call a SQL statement.
+ * Primitive values are stored without boxing and the bean can be {@link #reset()}
+ * and filled again to execute the same statement many times without allocating.
  * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
  */
 public class PrepStmtInputBean
 {
     private final transient SQLParameter[] inputParams;
+    private final transient PrimitiveParameters primitives;
 
     /** Creates a new instance of SQLInputBean */
     public PrepStmtInputBean(int inputValuesLenght)
     {
         this.inputParams = new SQLParameter[inputValuesLenght];
+        this.primitives = new PrimitiveParameters(inputValuesLenght);
     }
 
     /**
@@ -144,6 +151,70 @@ public class PrepStmtInputBean
         this.inputParams[pos] = spParam;
     }
 
+    /**
+     * Method to add an input parameter
+     * @param pos The position in which you want to insert the value
+     * @param value An int value
+     */
+    public void addInputParameter(final int pos, final int value)
+    {
+        this.inputParams[pos] = null;
+        this.primitives.setInt(pos, value);
+    }
+
+    /**
+     * Method to add an input parameter
+     * @param pos The position in which you want to insert the value
+     * @param value A long value
+     */
+    public void addInputParameter(final int pos, final long value)
+    {
+        this.inputParams[pos] = null;
+        this.primitives.setLong(pos, value);
+    }
+
+    /**
+     * Method to add an input parameter
+     * @param pos The position in which you want to insert the value
+     * @param value A double value
+     */
+    public void addInputParameter(final int pos, final double value)
+    {
+        this.inputParams[pos] = null;
+        this.primitives.setDouble(pos, value);
+    }
+
+    /**
+     * Method to add an input parameter
+     * @param pos The position in which you want to insert the value
+     * @param value A boolean value
+     */
+    public void addInputParameter(final int pos, final boolean value)
+    {
+        this.inputParams[pos] = null;
+        this.primitives.setBoolean(pos, value);
+    }
+
+    /**
+     * Method to add an input parameter (bound as Types.FLOAT like a Float)
+     * @param pos The position in which you want to insert the value
+     * @param value A float value
+     */
+    public void addInputParameter(final int pos, final float value)
+    {
+        addInputParameter(pos, new Float(value));
+    }
+
+    /**
+     * Method to add an input parameter (bound as Types.CHAR like a Character)
+     * @param pos The position in which you want to insert the value
+     * @param value A char value
+     */
+    public void addInputParameter(final int pos, final char value)
+    {
+        addInputParameter(pos, new Character(value));
+    }
+
     /**
      * Method to add an input parameter
      * @param pos The position in which you want to insert the value
@@ -154,8 +225,61 @@ public class PrepStmtInputBean
         this.inputParams[pos] = value;
     }
 
-    SQLParameter[] getInputParams()
+    /**
+     * Method to remove all parameters, so that the bean can be filled again
+     */
+    public void reset()
+    {
+        Arrays.fill(this.inputParams, null);
+        this.primitives.reset();
+    }
+
+    /**
+     * @return The number of parameters
+     */
+    public int getSize()
+    {
+        return this.inputParams.length;
+    }
+
+    /**
+     * Method to bind all parameters starting from the first statement parameter
+     * @param pstmt The statement to bind the parameters to
+     * @throws SQLException If a parameter is not set
+     */
+    void bind(final PreparedStatement pstmt) throws SQLException
+    {
+        for (int i=0; i<this.inputParams.length; i++)
+        {
+            final SQLParameter param = this.inputParams[i];
+            if (param!=null)
+            {
+                if (param.value==null)
+                {
+                    pstmt.setNull(i+1, param.sqlType);
+                }
+                else
+                {
+                    param.getBinder().bind(pstmt, i+1, param.value);
+                }
+            }
+            else if (!this.primitives.bind(pstmt, i+1, i))
+            {
+                throw new SQLException("Parameter "+(i+1)+" not set");
+            }
+        }
+    }
+
+    /**
+     * @param pos The position of the parameter
+     * @return The parameter, primitive values are boxed
+     */
+    public SQLParameter getInputParam(final int pos)
     {
-        return (SQLParameter[])this.inputParams.clone();
+        if (this.inputParams[pos]==null && this.primitives.isSet(pos))
+        {
+            return new SQLParameter(this.primitives.getSqlType(pos), (Serializable)this.primitives.getValue(pos));
+        }
+        return this.inputParams[pos];
     }
 }
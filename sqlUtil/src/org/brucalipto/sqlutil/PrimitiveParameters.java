@@ -0,0 +1,152 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * Parameter values of primitive type stored without boxing: each position has a type tag
+ * and its value kept in a long (int, long and boolean values) or double array.
+ * Used by {@link PrepStmtInputBean} and {@link SPInputBean} to bind primitive values with the typed setters.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+class PrimitiveParameters
+{
+    private final static byte NONE = 0;
+    private final static byte INT = 1;
+    private final static byte LONG = 2;
+    private final static byte DOUBLE = 3;
+    private final static byte BOOLEAN = 4;
+
+    private final byte[] tags;
+    private final long[] longValues;
+    private final double[] doubleValues;
+
+    PrimitiveParameters(final int size)
+    {
+        this.tags = new byte[size];
+        this.longValues = new long[size];
+        this.doubleValues = new double[size];
+    }
+
+    void setInt(final int pos, final int value)
+    {
+        this.tags[pos] = INT;
+        this.longValues[pos] = value;
+    }
+
+    void setLong(final int pos, final long value)
+    {
+        this.tags[pos] = LONG;
+        this.longValues[pos] = value;
+    }
+
+    void setDouble(final int pos, final double value)
+    {
+        this.tags[pos] = DOUBLE;
+        this.doubleValues[pos] = value;
+    }
+
+    void setBoolean(final int pos, final boolean value)
+    {
+        this.tags[pos] = BOOLEAN;
+        this.longValues[pos] = value ? 1 : 0;
+    }
+
+    void reset()
+    {
+        Arrays.fill(this.tags, NONE);
+    }
+
+    boolean isSet(final int pos)
+    {
+        return this.tags[pos]!=NONE;
+    }
+
+    /**
+     * Method to bind the primitive value of a position, if any
+     * @param pstmt The statement to bind the value to
+     * @param index The statement parameter index (starting from 1)
+     * @param pos The position of the value
+     * @return false if the position does not hold a primitive value
+     * @throws SQLException
+     */
+    boolean bind(final PreparedStatement pstmt, final int index, final int pos) throws SQLException
+    {
+        switch(this.tags[pos])
+        {
+            case INT:
+                pstmt.setInt(index, (int)this.longValues[pos]);
+                return true;
+            case LONG:
+                pstmt.setLong(index, this.longValues[pos]);
+                return true;
+            case DOUBLE:
+                pstmt.setDouble(index, this.doubleValues[pos]);
+                return true;
+            case BOOLEAN:
+                pstmt.setBoolean(index, this.longValues[pos]!=0);
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @param pos The position
+     * @return The java.sql.Types type of the primitive value of a position, the same of the boxed overloads
+     */
+    int getSqlType(final int pos)
+    {
+        switch(this.tags[pos])
+        {
+            case INT:
+                return Types.INTEGER;
+            case LONG:
+                return Types.INTEGER;
+            case DOUBLE:
+                return Types.DOUBLE;
+            case BOOLEAN:
+                return Types.BOOLEAN;
+            default:
+                return Types.NULL;
+        }
+    }
+
+    /**
+     * @param pos The position
+     * @return The primitive value of a position boxed, null if not set
+     */
+    Object getValue(final int pos)
+    {
+        switch(this.tags[pos])
+        {
+            case INT:
+                return new Integer((int)this.longValues[pos]);
+            case LONG:
+                return new Long(this.longValues[pos]);
+            case DOUBLE:
+                return new Double(this.doubleValues[pos]);
+            case BOOLEAN:
+                return Boolean.valueOf(this.longValues[pos]!=0);
+            default:
+                return null;
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.CallableStatement;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Parameters of a STORED PROCEDURE as declared in the database metadata
+ * (see DatabaseMetaData.getProcedureColumns): directions, java.sql.Types and positions.
+ * IN OUT parameters are both an input and an output; return values and result columns are ignored.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class ProcedureSignature
+{
+    private final static Log log = LogFactory.getLog(ProcedureSignature.class);
+
+    private final String procedureName;
+    private final int parameterCount;
+    private final int[] inputPositions;
+    private final int[] inputTypes;
+    private final ParameterBinder[] inputBinders;
+    private final int[] outputPositions;
+    private final int[] outputTypes;
+
+    /**
+     * Constructor
+     * @param procedureName The STORED PROCEDURE name
+     * @param directions The DatabaseMetaData.procedureColumnXXX direction of each parameter, in declaration order
+     * @param sqlTypes The java.sql.Types type of each parameter, in declaration order
+     */
+    public ProcedureSignature(final String procedureName, final int[] directions, final int[] sqlTypes)
+    {
+        this.procedureName = procedureName;
+        int inputs = 0;
+        int outputs = 0;
+        int parameters = 0;
+        for (int i=0; i<directions.length; i++)
+        {
+            if (isInput(directions[i]))
+            {
+                inputs++;
+            }
+            if (isOutput(directions[i]))
+            {
+                outputs++;
+            }
+            if (isInput(directions[i]) || isOutput(directions[i]))
+            {
+                parameters++;
+            }
+        }
+        this.parameterCount = parameters;
+        this.inputPositions = new int[inputs];
+        this.inputTypes = new int[inputs];
+        this.inputBinders = new ParameterBinder[inputs];
+        this.outputPositions = new int[outputs];
+        this.outputTypes = new int[outputs];
+
+        int position = 0;
+        inputs = 0;
+        outputs = 0;
+        for (int i=0; i<directions.length; i++)
+        {
+            if (!isInput(directions[i]) && !isOutput(directions[i]))
+            {
+                continue;
+            }
+            position++;
+            if (isInput(directions[i]))
+            {
+                this.inputPositions[inputs] = position;
+                this.inputTypes[inputs] = sqlTypes[i];
+                this.inputBinders[inputs] = ParameterBinder.forDeclaredType(sqlTypes[i]);
+                inputs++;
+            }
+            if (isOutput(directions[i]))
+            {
+                this.outputPositions[outputs] = position;
+                this.outputTypes[outputs] = sqlTypes[i];
+                outputs++;
+            }
+        }
+    }
+
+    /**
+     * Method to bind the input values and register the output parameters with their declared types
+     * @param call The CallableStatement prepared with {@link #getParameterCount()} parameters
+     * @param spib The {@link SPInputBean} holding a value for each input parameter
+     * @throws SQLException
+     */
+    public void prepare(final CallableStatement call, final SPInputBean spib) throws SQLException
+    {
+        for (int i=0; i<this.inputPositions.length; i++)
+        {
+            if (spib.bindPrimitive(call, this.inputPositions[i], i))
+            {
+                continue;
+            }
+            if (spib.inputParams[i]==null)
+            {
+                throw new SQLException("Input parameter "+(i+1)+" of '"+this.procedureName+"' not set");
+            }
+            final Object value = spib.inputParams[i].value;
+            if (value==null)
+            {
+                call.setNull(this.inputPositions[i], this.inputTypes[i]);
+            }
+            else
+            {
+                this.inputBinders[i].bind(call, this.inputPositions[i], value);
+            }
+        }
+        for (int i=0; i<this.outputPositions.length; i++)
+        {
+            if (log.isDebugEnabled())
+            {
+                log.debug((i+1)+") Registering output type 'Types."+SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+this.outputTypes[i]))+"' at position "+this.outputPositions[i]);
+            }
+            call.registerOutParameter(this.outputPositions[i], this.outputTypes[i]);
+        }
+    }
+
+    public String getProcedureName()
+    {
+        return this.procedureName;
+    }
+
+    /**
+     * @return The number of placeholders of the call
+     */
+    public int getParameterCount()
+    {
+        return this.parameterCount;
+    }
+
+    public int getInputCount()
+    {
+        return this.inputPositions.length;
+    }
+
+    public int getOutputCount()
+    {
+        return this.outputPositions.length;
+    }
+
+    /**
+     * @param i The input parameter index (starting from 0)
+     * @return The position of the parameter in the call (starting from 1)
+     */
+    public int getInputPosition(final int i)
+    {
+        return this.inputPositions[i];
+    }
+
+    public int getInputType(final int i)
+    {
+        return this.inputTypes[i];
+    }
+
+    /**
+     * @param i The output parameter index (starting from 0)
+     * @return The position of the parameter in the call (starting from 1)
+     */
+    public int getOutputPosition(final int i)
+    {
+        return this.outputPositions[i];
+    }
+
+    public int getOutputType(final int i)
+    {
+        return this.outputTypes[i];
+    }
+
+    public String toString()
+    {
+        final StringBuffer sb = new StringBuffer("ProcedureSignature[").append(this.procedureName).append("; in=");
+        for (int i=0; i<this.inputTypes.length; i++)
+        {
+            sb.append(i==0 ? "" : ",").append(this.inputPositions[i]).append(':').append(SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+this.inputTypes[i])));
+        }
+        sb.append("; out=");
+        for (int i=0; i<this.outputTypes.length; i++)
+        {
+            sb.append(i==0 ? "" : ",").append(this.outputPositions[i]).append(':').append(SQLUtilTypes.SQL_TYPES.get(Integer.valueOf(""+this.outputTypes[i])));
+        }
+        return sb.append(']').toString();
+    }
+
+    private static boolean isInput(final int direction)
+    {
+        return direction==DatabaseMetaData.procedureColumnIn || direction==DatabaseMetaData.procedureColumnInOut;
+    }
+
+    private static boolean isOutput(final int direction)
+    {
+        return direction==DatabaseMetaData.procedureColumnOut || direction==DatabaseMetaData.procedureColumnInOut;
+    }
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Spreads the read only queries of a {@link SQLManager} across replica DataSources choosing the one
+ * with the least outstanding requests. A replica failing to give a Connection, or whose Connection fails
+ * with a connection error (SQLState class 08), is ejected for a while; when no replica is available
+ * the {@link SQLManager} reads from its primary DataSource.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class ReplicaRouter
+{
+    private final static Log log = LogFactory.getLog(ReplicaRouter.class);
+
+    public final static long DEFAULT_EJECT_MILLIS = 30000;
+
+    private final Replica[] replicas;
+    private final long ejectMillis;
+    private final Map connections = new IdentityHashMap();
+    private int next = 0;
+
+    /**
+     * Constructor
+     * @param replicas The replica DataSources
+     */
+    public ReplicaRouter(final DataSource[] replicas)
+    {
+        this(replicas, DEFAULT_EJECT_MILLIS);
+    }
+
+    /**
+     * Constructor
+     * @param replicas The replica DataSources
+     * @param ejectMillis How long an unhealthy replica does not receive queries
+     */
+    public ReplicaRouter(final DataSource[] replicas, final long ejectMillis)
+    {
+        if (replicas==null || replicas.length==0)
+        {
+            throw new IllegalArgumentException("At least a replica DataSource is needed");
+        }
+        this.replicas = new Replica[replicas.length];
+        for (int i=0; i<replicas.length; i++)
+        {
+            this.replicas[i] = new Replica(i, replicas[i]);
+        }
+        this.ejectMillis = ejectMillis;
+    }
+
+    /**
+     * Method to get a Connection from the healthy replica with the least outstanding requests
+     * @return The Connection, to be given back with {@link #release(Connection)}, or null if no replica is available
+     */
+    public Connection getConnection()
+    {
+        while (true)
+        {
+            final Replica replica = choose();
+            if (replica==null)
+            {
+                log.debug("No replica available");
+                return null;
+            }
+            boolean acquired = false;
+            try
+            {
+                final Connection conn = replica.dataSource.getConnection();
+                synchronized (this)
+                {
+                    this.connections.put(conn, replica);
+                }
+                acquired = true;
+                return conn;
+            }
+            catch (SQLException e)
+            {
+                eject(replica, e);
+            }
+            finally
+            {
+                if (!acquired)
+                {
+                    synchronized (this)
+                    {
+                        replica.outstanding--;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Method to close a Connection obtained from this router
+     * @param conn The Connection to release
+     * @return false if the Connection does not come from a replica
+     */
+    public boolean release(final Connection conn)
+    {
+        synchronized (this)
+        {
+            final Replica replica = (Replica)this.connections.remove(conn);
+            if (replica==null)
+            {
+                return false;
+            }
+            replica.outstanding--;
+        }
+        SQLManager.closeResources(conn);
+        return true;
+    }
+
+    /**
+     * Method to report an error executing a query on a Connection obtained from this router:
+     * the replica is ejected if the error is a connection error
+     * @param conn The Connection used
+     * @param e The error
+     */
+    public void reportFailure(final Connection conn, final SQLException e)
+    {
+        final Replica replica;
+        synchronized (this)
+        {
+            replica = (Replica)this.connections.get(conn);
+        }
+        if (replica!=null && isConnectionError(e))
+        {
+            eject(replica, e);
+        }
+    }
+
+    public int getReplicaCount()
+    {
+        return this.replicas.length;
+    }
+
+    /**
+     * @param replica The replica index
+     * @return The number of Connections of the replica actually in use
+     */
+    public synchronized int getOutstanding(final int replica)
+    {
+        return this.replicas[replica].outstanding;
+    }
+
+    /**
+     * @param replica The replica index
+     * @return The number of Connections given by the replica
+     */
+    public synchronized long getRequests(final int replica)
+    {
+        return this.replicas[replica].requests;
+    }
+
+    /**
+     * @param replica The replica index
+     * @return true if the replica is actually not receiving queries
+     */
+    public synchronized boolean isEjected(final int replica)
+    {
+        return this.replicas[replica].ejectedUntil>System.currentTimeMillis();
+    }
+
+    public synchronized String toString()
+    {
+        final StringBuffer sb = new StringBuffer("ReplicaRouter[");
+        final long now = System.currentTimeMillis();
+        for (int i=0; i<this.replicas.length; i++)
+        {
+            final Replica replica = this.replicas[i];
+            sb.append(i==0 ? "" : "; ").append(i).append(": outstanding=").append(replica.outstanding).append(", requests=").append(replica.requests);
+            if (replica.ejectedUntil>now)
+            {
+                sb.append(", ejected");
+            }
+        }
+        return sb.append(']').toString();
+    }
+
+    private synchronized Replica choose()
+    {
+        final long now = System.currentTimeMillis();
+        Replica best = null;
+        for (int i=0; i<this.replicas.length; i++)
+        {
+            final Replica replica = this.replicas[(this.next+i)%this.replicas.length];
+            if (replica.ejectedUntil<=now && (best==null || replica.outstanding<best.outstanding))
+            {
+                best = replica;
+            }
+        }
+        if (best!=null)
+        {
+            this.next = (best.index+1)%this.replicas.length;
+            best.outstanding++;
+            best.requests++;
+        }
+        return best;
+    }
+
+    private void eject(final Replica replica, final SQLException e)
+    {
+        synchronized (this)
+        {
+            replica.ejectedUntil = System.currentTimeMillis()+this.ejectMillis;
+        }
+        log.warn("Ejecting replica "+replica.index+" for "+this.ejectMillis+" millis", e);
+    }
+
+    private static boolean isConnectionError(final SQLException e)
+    {
+        final String sqlState = e.getSQLState();
+        return sqlState!=null && sqlState.startsWith("08");
+    }
+
+    private static final class Replica
+    {
+        private final int index;
+        private final DataSource dataSource;
+        private int outstanding = 0;
+        private long requests = 0;
+        private long ejectedUntil = 0;
+
+        private Replica(final int index, final DataSource dataSource)
+        {
+            this.index = index;
+            this.dataSource = dataSource;
+        }
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.beanutils.DynaBean;
+import org.apache.commons.beanutils.DynaProperty;
+import org.apache.commons.beanutils.RowSetDynaClass;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * LRU cache of query results keyed by SQL text plus bound {@link SQLParameter} values.
+ * It is bounded by number of entries and by approximate size in bytes, entries expire
+ * after a time to live and are invalidated when a table they declared to read is modified.
+ * Cached results are shared between callers and must be treated as read only.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class ResultCache
+{
+    private final static Log log = LogFactory.getLog(ResultCache.class);
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final LinkedHashMap entries = new LinkedHashMap(16, 0.75f, true);
+    private final Map keysByTable = new HashMap();
+    private final Map generationsByTable = new HashMap();
+    private long clearGeneration = 0;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long invalidations = 0;
+
+    /**
+     * Constructor
+     * @param maxEntries The maximum number of cached results
+     * @param maxBytes The maximum approximate size in bytes of all cached results
+     * @param ttlMillis The time to live of a cached result, 0 to never expire
+     */
+    public ResultCache(final int maxEntries, final long maxBytes, final long ttlMillis)
+    {
+        if (maxEntries<1 || maxBytes<1)
+        {
+            throw new IllegalArgumentException("Result cache bounds must be greater than 0: "+maxEntries+" entries, "+maxBytes+" bytes");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Method to build the cache key of a query
+     * @param sql The SQL text
+     * @param params The bound parameters, can be null
+     * @param resultType Distinguishes results of different kind for the same query (eg. the simpleSelect output type)
+     * @return The key
+     */
+    static Object getKey(final String sql, final SQLParameter[] params, final int resultType)
+    {
+        return new Key(sql, params, resultType);
+    }
+
+    /**
+     * Method to get a cached result
+     * @param key The key returned by {@link #getKey(String, SQLParameter[], int)}
+     * @return The cached result or null if not cached or expired
+     */
+    public synchronized Object get(final Object key)
+    {
+        final Entry entry = (Entry)this.entries.get(key);
+        if (entry==null)
+        {
+            this.misses++;
+            return null;
+        }
+        if (this.ttlMillis>0 && System.currentTimeMillis()-entry.created>this.ttlMillis)
+        {
+            remove(key);
+            this.misses++;
+            return null;
+        }
+        this.hits++;
+        return entry.value;
+    }
+
+    /**
+     * Method to cache a result
+     * @param key The key returned by {@link #getKey(String, SQLParameter[], int)}
+     * @param value The result to cache
+     * @param tables The tables the query reads: modifying one of them invalidates the result
+     */
+    public void put(final Object key, final Object value, final String[] tables)
+    {
+        put(key, value, tables, null);
+    }
+
+    /**
+     * Method to get the generations of the tables read by a query, to be taken before running it
+     * and passed to {@link #put(Object, Object, String[], long[])}
+     * @param tables The tables the query reads, can be null
+     * @return The generations, increased by each invalidation of the tables
+     */
+    public synchronized long[] getGenerations(final String[] tables)
+    {
+        final int count = tables!=null ? tables.length : 0;
+        final long[] result = new long[count+1];
+        for (int i=0; i<count; i++)
+        {
+            final Long generation = (Long)this.generationsByTable.get(normalizeTable(tables[i]));
+            result[i] = generation!=null ? generation.longValue() : 0;
+        }
+        result[count] = this.clearGeneration;
+        return result;
+    }
+
+    /**
+     * Method to cache a result unless one of the tables it reads has been invalidated while it was read
+     * @param key The key returned by {@link #getKey(String, SQLParameter[], int)}
+     * @param value The result to cache
+     * @param tables The tables the query reads: modifying one of them invalidates the result
+     * @param generations The {@link #getGenerations(String[])} of the tables taken before the query ran, null to cache anyway
+     */
+    public synchronized void put(final Object key, final Object value, final String[] tables, final long[] generations)
+    {
+        if (generations!=null && !Arrays.equals(generations, getGenerations(tables)))
+        {
+            log.debug("Result not cached: a table it reads has been modified while reading");
+            return;
+        }
+        final long size = estimateSize(value)+estimateSize(key);
+        if (size>this.maxBytes)
+        {
+            log.debug("Result too big to be cached: "+size+" bytes");
+            return;
+        }
+        remove(key);
+        final Entry entry = new Entry(value, size, tables);
+        this.entries.put(key, entry);
+        this.bytes += size;
+        if (tables!=null)
+        {
+            for (int i=0; i<tables.length; i++)
+            {
+                final String table = normalizeTable(tables[i]);
+                Set keys = (Set)this.keysByTable.get(table);
+                if (keys==null)
+                {
+                    keys = new HashSet();
+                    this.keysByTable.put(table, keys);
+                }
+                keys.add(key);
+            }
+        }
+        while (this.entries.size()>this.maxEntries || this.bytes>this.maxBytes)
+        {
+            remove(this.entries.keySet().iterator().next());
+            this.evictions++;
+        }
+    }
+
+    /**
+     * Method to remove all results reading a table
+     * @param table The modified table (schema prefix and case are ignored)
+     * @return The number of invalidated results
+     */
+    public synchronized int invalidate(final String table)
+    {
+        final String normalized = normalizeTable(table);
+        final Long generation = (Long)this.generationsByTable.get(normalized);
+        this.generationsByTable.put(normalized, new Long(generation!=null ? generation.longValue()+1 : 1));
+        final Set keys = (Set)this.keysByTable.remove(normalized);
+        if (keys==null)
+        {
+            return 0;
+        }
+        final Object[] toRemove = keys.toArray();
+        for (int i=0; i<toRemove.length; i++)
+        {
+            remove(toRemove[i]);
+        }
+        this.invalidations += toRemove.length;
+        if (log.isDebugEnabled())
+        {
+            log.debug("Invalidated "+toRemove.length+" cached results reading table '"+table+"'");
+        }
+        return toRemove.length;
+    }
+
+    /**
+     * Method to remove all cached results
+     */
+    public synchronized void clear()
+    {
+        this.entries.clear();
+        this.keysByTable.clear();
+        this.bytes = 0;
+        this.clearGeneration++;
+    }
+
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    public synchronized long getInvalidations()
+    {
+        return this.invalidations;
+    }
+
+    public synchronized int getSize()
+    {
+        return this.entries.size();
+    }
+
+    /**
+     * @return The approximate size in bytes of all cached results
+     */
+    public synchronized long getBytes()
+    {
+        return this.bytes;
+    }
+
+    public String toString()
+    {
+        return "ResultCache[size="+getSize()+"/"+this.maxEntries+"; bytes="+getBytes()+"/"+this.maxBytes+"; hits="+getHits()+"; misses="+getMisses()+"; evictions="+getEvictions()+"; invalidations="+getInvalidations()+"]";
+    }
+
+    /**
+     * Method to find the table modified by an INSERT, UPDATE, DELETE or MERGE statement
+     * @param sql The SQL text
+     * @return The modified table or null if not recognized
+     */
+    public static String getModifiedTable(final String sql)
+    {
+        final String[] tokens = tokenize(sql, 4);
+        if (tokens.length<2)
+        {
+            return null;
+        }
+        final String verb = tokens[0].toUpperCase();
+        int tableToken = -1;
+        if ("UPDATE".equals(verb))
+        {
+            tableToken = 1;
+        }
+        else if ("INSERT".equals(verb) || "MERGE".equals(verb) || "DELETE".equals(verb))
+        {
+            tableToken = (tokens[1].equalsIgnoreCase("INTO") || tokens[1].equalsIgnoreCase("FROM")) ? 2 : 1;
+        }
+        if (tableToken<0 || tableToken>=tokens.length)
+        {
+            return null;
+        }
+        return tokens[tableToken];
+    }
+
+    private void remove(final Object key)
+    {
+        final Entry entry = (Entry)this.entries.remove(key);
+        unindex(key, entry);
+    }
+
+    private void unindex(final Object key, final Entry entry)
+    {
+        if (entry==null)
+        {
+            return;
+        }
+        this.bytes -= entry.size;
+        if (entry.tables!=null)
+        {
+            for (int i=0; i<entry.tables.length; i++)
+            {
+                final String table = normalizeTable(entry.tables[i]);
+                final Set keys = (Set)this.keysByTable.get(table);
+                if (keys!=null)
+                {
+                    keys.remove(key);
+                    if (keys.isEmpty())
+                    {
+                        this.keysByTable.remove(table);
+                    }
+                }
+            }
+        }
+    }
+
+    private static String normalizeTable(final String table)
+    {
+        String result = table.trim();
+        final int dot = result.lastIndexOf('.');
+        if (dot>=0)
+        {
+            result = result.substring(dot+1);
+        }
+        if (result.length()>1 && result.charAt(0)=='"' && result.charAt(result.length()-1)=='"')
+        {
+            return result.substring(1, result.length()-1);
+        }
+        return result.toUpperCase();
+    }
+
+    private static String[] tokenize(final String sql, final int maxTokens)
+    {
+        final List tokens = new ArrayList(maxTokens);
+        final int length = sql.length();
+        int i = 0;
+        while (i<length && tokens.size()<maxTokens)
+        {
+            final char c = sql.charAt(i);
+            if (Character.isWhitespace(c))
+            {
+                i++;
+            }
+            else if (c=='-' && i+1<length && sql.charAt(i+1)=='-')
+            {
+                while (i<length && sql.charAt(i)!='\n')
+                {
+                    i++;
+                }
+            }
+            else if (c=='/' && i+1<length && sql.charAt(i+1)=='*')
+            {
+                final int end = sql.indexOf("*/", i+2);
+                i = end<0 ? length : end+2;
+            }
+            else
+            {
+                final int start = i;
+                boolean quoted = false;
+                while (i<length && (quoted || !(Character.isWhitespace(sql.charAt(i)) || sql.charAt(i)=='(')))
+                {
+                    if (sql.charAt(i)=='"')
+                    {
+                        quoted = !quoted;
+                    }
+                    i++;
+                }
+                if (i==start)
+                {
+                    i++;
+                }
+                tokens.add(sql.substring(start, i));
+            }
+        }
+        return (String[])tokens.toArray(new String[tokens.size()]);
+    }
+
+    /**
+     * Method to estimate the heap size of a cached value
+     * @param value A query result, a {@link SQLParameter} or a key
+     * @return The approximate size in bytes
+     */
+    static long estimateSize(final Object value)
+    {
+        if (value==null)
+        {
+            return 0;
+        }
+        if (value instanceof String)
+        {
+            return 40+2*((String)value).length();
+        }
+        if (value instanceof ColumnarResult)
+        {
+            return 64+((ColumnarResult)value).getSizeInBytes();
+        }
+        if (value instanceof Integer || value instanceof Float || value instanceof Boolean || value instanceof Character)
+        {
+            return 16;
+        }
+        if (value instanceof Long || value instanceof Double || value instanceof java.util.Date)
+        {
+            return 24;
+        }
+        if (value instanceof BigDecimal)
+        {
+            return 64;
+        }
+        if (value instanceof byte[])
+        {
+            return 16+((byte[])value).length;
+        }
+        if (value instanceof SQLParameter)
+        {
+            return 24+estimateSize(((SQLParameter)value).value);
+        }
+        if (value instanceof Key)
+        {
+            final Key key = (Key)value;
+            long size = 32+estimateSize(key.sql)+16+4*key.types.length+16+4*key.values.length;
+            for (int i=0; i<key.values.length; i++)
+            {
+                size += estimateSize(key.values[i]);
+            }
+            return size;
+        }
+        if (value instanceof RowSetDynaClass)
+        {
+            final RowSetDynaClass rowSet = (RowSetDynaClass)value;
+            final DynaProperty[] properties = rowSet.getDynaProperties();
+            final List rows = rowSet.getRows();
+            long size = 64+80*properties.length;
+            for (int i=0; i<rows.size(); i++)
+            {
+                final DynaBean row = (DynaBean)rows.get(i);
+                size += 64+48*properties.length;
+                for (int j=0; j<properties.length; j++)
+                {
+                    size += estimateSize(row.get(properties[j].getName()));
+                }
+            }
+            return size;
+        }
+        return 64;
+    }
+
+    private static final class Entry
+    {
+        private final Object value;
+        private final long size;
+        private final String[] tables;
+        private final long created = System.currentTimeMillis();
+
+        private Entry(final Object value, final long size, final String[] tables)
+        {
+            this.value = value;
+            this.size = size;
+            this.tables = tables==null ? null : tables.clone();
+        }
+    }
+
+    private static final class Key
+    {
+        private final String sql;
+        private final int resultType;
+        private final int[] types;
+        private final Object[] values;
+        private final int hash;
+
+        private Key(final String sql, final SQLParameter[] params, final int resultType)
+        {
+            this.sql = sql;
+            this.resultType = resultType;
+            final int length = params==null ? 0 : params.length;
+            this.types = new int[length];
+            this.values = new Object[length];
+            int h = 31*sql.hashCode()+resultType;
+            for (int i=0; i<length; i++)
+            {
+                this.types[i] = params[i].sqlType;
+                this.values[i] = params[i].value;
+                h = 31*h+this.types[i];
+                h = 31*h+(this.values[i]==null ? 0 : this.values[i].hashCode());
+            }
+            this.hash = h;
+        }
+
+        public int hashCode()
+        {
+            return this.hash;
+        }
+
+        public boolean equals(final Object o)
+        {
+            if (!(o instanceof Key))
+            {
+                return false;
+            }
+            final Key other = (Key)o;
+            if (this.hash!=other.hash || this.resultType!=other.resultType || !this.sql.equals(other.sql) || this.types.length!=other.types.length)
+            {
+                return false;
+            }
+            for (int i=0; i<this.types.length; i++)
+            {
+                if (this.types[i]!=other.types[i])
+                {
+                    return false;
+                }
+                if (this.values[i]==null ? other.values[i]!=null : !this.values[i].equals(other.values[i]))
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
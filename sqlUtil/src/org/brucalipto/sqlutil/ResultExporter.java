@@ -0,0 +1,498 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * {@link RowHandler} writing each row as CSV or JSON to a WritableByteChannel while the cursor is open:
+ * values are read with typed getters and encoded through fixed size buffers, so memory does not grow with the rows.
+ * CSV is written the way {@link CsvSource} reads it: NULL is an empty not quoted field, dates are <code>yyyy-mm-dd</code>.
+ * JSON is an array with an object for each row.
+ * Use it through {@link SQLManager#export(String, SQLParameter[], ResultExporter, int)} or call {@link #finish()} when the select ends.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class ResultExporter implements RowHandler
+{
+    public final static int CSV = 0;
+    public final static int JSON = 1;
+
+    private final static int BUFFER_SIZE = 64*1024;
+
+    private final static int LONG = 0;
+    private final static int DOUBLE = 1;
+    private final static int DECIMAL = 2;
+    private final static int BOOLEAN = 3;
+    private final static int DATE = 4;
+    private final static int TIME = 5;
+    private final static int TIMESTAMP = 6;
+    private final static int STRING = 7;
+
+    private final int format;
+    private final WritableByteChannel out;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+    private final CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private final char[] digits = new char[20];
+    private char separator = ',';
+    private boolean header = true;
+    private String[] names = null;
+    private int[] kinds = null;
+    private long rows = 0;
+    private IOException error = null;
+
+    /**
+     * Constructor
+     * @param format {@link #CSV} or {@link #JSON}
+     * @param out The channel to write to: it is not closed
+     * @param charsetName The charset to encode the text with
+     */
+    public ResultExporter(final int format, final WritableByteChannel out, final String charsetName)
+    {
+        if (format!=CSV && format!=JSON)
+        {
+            throw new IllegalArgumentException("Unknown format: "+format);
+        }
+        this.format = format;
+        this.out = out;
+        this.encoder = Charset.forName(charsetName).newEncoder();
+        this.encoder.onMalformedInput(CodingErrorAction.REPLACE);
+        this.encoder.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * @param separator The CSV field separator (default ',')
+     */
+    public void setSeparator(final char separator)
+    {
+        if (separator=='"' || separator=='\r' || separator=='\n')
+        {
+            throw new IllegalArgumentException("Invalid separator: '"+separator+"'");
+        }
+        this.separator = separator;
+    }
+
+    /**
+     * @param header If the first CSV line has the column names (default true); an empty result has no header line
+     */
+    public void setHeader(final boolean header)
+    {
+        this.header = header;
+    }
+
+    /**
+     * @return The number of rows written
+     */
+    public long getRows()
+    {
+        return this.rows;
+    }
+
+    public boolean handleRow(final ResultSet rs) throws SQLException
+    {
+        try
+        {
+            if (this.kinds==null)
+            {
+                readMetaData(rs.getMetaData());
+                writeStart();
+            }
+            if (this.format==CSV)
+            {
+                writeCsvRow(rs);
+            }
+            else
+            {
+                writeJsonRow(rs);
+            }
+            this.rows++;
+            return true;
+        }
+        catch (IOException e)
+        {
+            // stops the select: the error is thrown by finish()
+            this.error = e;
+            return false;
+        }
+    }
+
+    /**
+     * Method to write the end of the output and flush the buffers to the channel
+     * @throws IOException If writing failed, now or during the select
+     */
+    public void finish() throws IOException
+    {
+        if (this.error!=null)
+        {
+            throw this.error;
+        }
+        if (this.format==JSON)
+        {
+            if (this.kinds==null)
+            {
+                append('[');
+            }
+            append("\n]\n");
+        }
+        drain(true);
+        CoderResult result;
+        do
+        {
+            result = this.encoder.flush(this.bytes);
+            writeBytes();
+        }
+        while (result.isOverflow());
+    }
+
+    private void readMetaData(final ResultSetMetaData meta) throws SQLException
+    {
+        final int columns = meta.getColumnCount();
+        this.names = new String[columns];
+        this.kinds = new int[columns];
+        for (int i=0; i<columns; i++)
+        {
+            this.names[i] = meta.getColumnLabel(i+1);
+            switch (meta.getColumnType(i+1))
+            {
+                case Types.BIGINT:
+                case Types.INTEGER:
+                case Types.SMALLINT:
+                case Types.TINYINT:
+                    this.kinds[i] = LONG;
+                    break;
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                case Types.REAL:
+                    this.kinds[i] = DOUBLE;
+                    break;
+                case Types.DECIMAL:
+                case Types.NUMERIC:
+                    this.kinds[i] = DECIMAL;
+                    break;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    this.kinds[i] = BOOLEAN;
+                    break;
+                case Types.DATE:
+                    this.kinds[i] = DATE;
+                    break;
+                case Types.TIME:
+                    this.kinds[i] = TIME;
+                    break;
+                case Types.TIMESTAMP:
+                    this.kinds[i] = TIMESTAMP;
+                    break;
+                default:
+                    this.kinds[i] = STRING;
+            }
+        }
+    }
+
+    private void writeStart() throws IOException
+    {
+        if (this.format==JSON)
+        {
+            append('[');
+        }
+        else if (this.header)
+        {
+            for (int i=0; i<this.names.length; i++)
+            {
+                if (i>0)
+                {
+                    append(this.separator);
+                }
+                appendCsv(this.names[i]);
+            }
+            append("\r\n");
+        }
+    }
+
+    private void writeCsvRow(final ResultSet rs) throws SQLException, IOException
+    {
+        for (int i=0; i<this.kinds.length; i++)
+        {
+            if (i>0)
+            {
+                append(this.separator);
+            }
+            if (this.kinds[i]==STRING)
+            {
+                final String value = rs.getString(i+1);
+                if (value!=null)
+                {
+                    appendCsv(value);
+                }
+            }
+            else
+            {
+                appendValue(rs, i);
+            }
+        }
+        append("\r\n");
+    }
+
+    private void writeJsonRow(final ResultSet rs) throws SQLException, IOException
+    {
+        append(this.rows==0 ? "\n{" : ",\n{");
+        for (int i=0; i<this.kinds.length; i++)
+        {
+            if (i>0)
+            {
+                append(',');
+            }
+            appendJson(this.names[i]);
+            append(':');
+            final int kind = this.kinds[i];
+            if (kind==LONG || kind==DOUBLE || kind==DECIMAL || kind==BOOLEAN)
+            {
+                if (!appendValue(rs, i))
+                {
+                    append("null");
+                }
+            }
+            else
+            {
+                final String value = kind==STRING ? rs.getString(i+1) : getTemporal(rs, i);
+                if (value==null)
+                {
+                    append("null");
+                }
+                else
+                {
+                    appendJson(value);
+                }
+            }
+        }
+        append('}');
+    }
+
+    /**
+     * Appends a not quoted value
+     * @return false if the value is NULL (nothing appended)
+     */
+    private boolean appendValue(final ResultSet rs, final int i) throws SQLException, IOException
+    {
+        switch (this.kinds[i])
+        {
+            case LONG:
+                final long longValue = rs.getLong(i+1);
+                if (rs.wasNull())
+                {
+                    return false;
+                }
+                appendLong(longValue);
+                return true;
+            case DOUBLE:
+                final double doubleValue = rs.getDouble(i+1);
+                if (rs.wasNull() || Double.isNaN(doubleValue) || Double.isInfinite(doubleValue))
+                {
+                    return false;
+                }
+                append(String.valueOf(doubleValue));
+                return true;
+            case DECIMAL:
+                final BigDecimal decimalValue = rs.getBigDecimal(i+1);
+                if (decimalValue==null)
+                {
+                    return false;
+                }
+                append(decimalValue.toString());
+                return true;
+            case BOOLEAN:
+                final boolean booleanValue = rs.getBoolean(i+1);
+                if (rs.wasNull())
+                {
+                    return false;
+                }
+                append(booleanValue ? "true" : "false");
+                return true;
+            default:
+                final String value = getTemporal(rs, i);
+                if (value==null)
+                {
+                    return false;
+                }
+                append(value);
+                return true;
+        }
+    }
+
+    private String getTemporal(final ResultSet rs, final int i) throws SQLException
+    {
+        switch (this.kinds[i])
+        {
+            case DATE:
+                final Date date = rs.getDate(i+1);
+                return date==null ? null : date.toString();
+            case TIME:
+                final Time time = rs.getTime(i+1);
+                return time==null ? null : time.toString();
+            default:
+                final Timestamp timestamp = rs.getTimestamp(i+1);
+                return timestamp==null ? null : timestamp.toString();
+        }
+    }
+
+    private void appendCsv(final String value) throws IOException
+    {
+        boolean quote = value.length()==0;
+        for (int i=0; i<value.length() && !quote; i++)
+        {
+            final char c = value.charAt(i);
+            quote = c==this.separator || c=='"' || c=='\r' || c=='\n';
+        }
+        if (!quote)
+        {
+            append(value);
+            return;
+        }
+        append('"');
+        for (int i=0; i<value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            if (c=='"')
+            {
+                append('"');
+            }
+            append(c);
+        }
+        append('"');
+    }
+
+    private void appendJson(final String value) throws IOException
+    {
+        append('"');
+        for (int i=0; i<value.length(); i++)
+        {
+            final char c = value.charAt(i);
+            switch (c)
+            {
+                case '"':
+                    append("\\\"");
+                    break;
+                case '\\':
+                    append("\\\\");
+                    break;
+                case '\n':
+                    append("\\n");
+                    break;
+                case '\r':
+                    append("\\r");
+                    break;
+                case '\t':
+                    append("\\t");
+                    break;
+                default:
+                    if (c<0x20)
+                    {
+                        append("\\u00");
+                        append(Character.forDigit(c>>4, 16));
+                        append(Character.forDigit(c&0xF, 16));
+                    }
+                    else
+                    {
+                        append(c);
+                    }
+            }
+        }
+        append('"');
+    }
+
+    private void appendLong(final long value) throws IOException
+    {
+        if (value==Long.MIN_VALUE)
+        {
+            append(String.valueOf(value));
+            return;
+        }
+        long rest = value<0 ? -value : value;
+        int pos = this.digits.length;
+        do
+        {
+            this.digits[--pos] = (char)('0'+(rest%10));
+            rest /= 10;
+        }
+        while (rest>0);
+        if (value<0)
+        {
+            append('-');
+        }
+        for (; pos<this.digits.length; pos++)
+        {
+            append(this.digits[pos]);
+        }
+    }
+
+    private void append(final String value) throws IOException
+    {
+        for (int i=0; i<value.length(); i++)
+        {
+            append(value.charAt(i));
+        }
+    }
+
+    private void append(final char c) throws IOException
+    {
+        if (!this.chars.hasRemaining())
+        {
+            drain(false);
+        }
+        this.chars.put(c);
+    }
+
+    private void drain(final boolean endOfInput) throws IOException
+    {
+        this.chars.flip();
+        CoderResult result;
+        do
+        {
+            result = this.encoder.encode(this.chars, this.bytes, endOfInput);
+            if (result.isError())
+            {
+                result.throwException();
+            }
+            writeBytes();
+        }
+        while (result.isOverflow());
+        this.chars.compact();
+    }
+
+    private void writeBytes() throws IOException
+    {
+        this.bytes.flip();
+        while (this.bytes.hasRemaining())
+        {
+            this.out.write(this.bytes);
+        }
+        this.bytes.clear();
+    }
+}
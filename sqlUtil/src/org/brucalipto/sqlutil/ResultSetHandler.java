@@ -0,0 +1,37 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+
+/**
+ * Callback receiving the result sets of a STORED PROCEDURE while the statement is still open
+ * (see {@link SPInputBean#setResultSetHandler(ResultSetHandler)})
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public interface ResultSetHandler
+{
+    /**
+     * Method called once for each result set, before its rows
+     * @param index The index of the result set starting from 0: the order it is returned in for DB2,
+     * the position of the CURSOR among the output parameters for Oracle
+     * @param metaData The columns of the result set
+     * @return The {@link RowHandler} receiving the rows, null to skip the result set
+     * @throws SQLException
+     */
+    public RowHandler getRowHandler(final int index, final ResultSetMetaData metaData) throws SQLException;
+}
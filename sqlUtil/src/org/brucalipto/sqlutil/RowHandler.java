@@ -0,0 +1,34 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * Callback receiving the rows of a streamed select while the cursor is still open
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public interface RowHandler
+{
+    /**
+     * Method called once for each returned row
+     * @param rs The ResultSet positioned on the current row: do not call next() or close() on it
+     * @return true to go on with the next row, false to stop the iteration
+     * @throws SQLException
+     */
+    public boolean handleRow(final ResultSet rs) throws SQLException;
+}
@@ -0,0 +1,480 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Maps the rows of a select to objects of a class, resolving once from the ResultSetMetaData
+ * the setter, public field or constructor parameter filled by each column and the typed getter reading it.
+ * Column names match properties ignoring case and underscores (eg. FIRST_NAME fills setFirstName);
+ * among overloaded setters the one taking the Java type of the column is used.
+ * Classes without a public no arguments constructor are built through a public constructor
+ * with one parameter for each column, in column order.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+class RowMapper
+{
+    private final static Log log = LogFactory.getLog(RowMapper.class);
+
+    private final static int OBJECT = 0;
+    private final static int STRING = 1;
+    private final static int INT = 2;
+    private final static int LONG = 3;
+    private final static int DOUBLE = 4;
+    private final static int FLOAT = 5;
+    private final static int SHORT = 6;
+    private final static int BYTE = 7;
+    private final static int BOOLEAN = 8;
+    private final static int DECIMAL = 9;
+    private final static int DATE = 10;
+    private final static int TIME = 11;
+    private final static int TIMESTAMP = 12;
+    private final static int UTIL_DATE = 13;
+    private final static int BYTES = 14;
+
+    private final Class type;
+    private final Constructor constructor;
+    private final boolean constructorMapping;
+    private final int[] columns;
+    private final int[] kinds;
+    private final boolean[] primitives;
+    private final Method[] setters;
+    private final Field[] fields;
+
+    /**
+     * Constructor
+     * @param type The class of the objects to build
+     * @param metaData The columns of the select
+     * @throws SQLException If no column can be mapped
+     */
+    RowMapper(final Class type, final ResultSetMetaData metaData) throws SQLException
+    {
+        this.type = type;
+        final int columnCount = metaData.getColumnCount();
+        final Constructor defaultConstructor = getDefaultConstructor(type);
+        if (defaultConstructor!=null)
+        {
+            this.constructor = defaultConstructor;
+            this.constructorMapping = false;
+            final Map setters = new HashMap();
+            final Method[] methods = type.getMethods();
+            for (int i=0; i<methods.length; i++)
+            {
+                final String name = methods[i].getName();
+                if (name.length()>3 && name.startsWith("set") && methods[i].getParameterTypes().length==1 && !Modifier.isStatic(methods[i].getModifiers()))
+                {
+                    final String property = normalize(name.substring(3));
+                    List overloads = (List)setters.get(property);
+                    if (overloads==null)
+                    {
+                        overloads = new ArrayList(1);
+                        setters.put(property, overloads);
+                    }
+                    overloads.add(methods[i]);
+                }
+            }
+            final Map publicFields = new HashMap();
+            final Field[] typeFields = type.getFields();
+            for (int i=0; i<typeFields.length; i++)
+            {
+                final int modifiers = typeFields[i].getModifiers();
+                if (!Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers))
+                {
+                    publicFields.put(normalize(typeFields[i].getName()), typeFields[i]);
+                }
+            }
+            final int[] columns = new int[columnCount];
+            final Method[] columnSetters = new Method[columnCount];
+            final Field[] columnFields = new Field[columnCount];
+            int mapped = 0;
+            for (int i=0; i<columnCount; i++)
+            {
+                final String column = metaData.getColumnLabel(i+1);
+                final String property = normalize(column);
+                final Method setter = chooseSetter(type, column, metaData.getColumnType(i+1), (List)setters.get(property));
+                final Field field = setter==null ? (Field)publicFields.get(property) : null;
+                if (setter==null && field==null)
+                {
+                    log.debug("Column '"+column+"' does not map to a property of "+type.getName());
+                    continue;
+                }
+                columns[mapped] = i+1;
+                columnSetters[mapped] = setter;
+                columnFields[mapped] = field;
+                mapped++;
+            }
+            if (mapped==0)
+            {
+                throw new SQLException("No column maps to a property of "+type.getName());
+            }
+            this.columns = new int[mapped];
+            this.setters = new Method[mapped];
+            this.fields = new Field[mapped];
+            System.arraycopy(columns, 0, this.columns, 0, mapped);
+            System.arraycopy(columnSetters, 0, this.setters, 0, mapped);
+            System.arraycopy(columnFields, 0, this.fields, 0, mapped);
+            this.kinds = new int[mapped];
+            this.primitives = new boolean[mapped];
+            for (int i=0; i<mapped; i++)
+            {
+                final Class propertyType = this.setters[i]!=null ? this.setters[i].getParameterTypes()[0] : this.fields[i].getType();
+                this.kinds[i] = getKind(propertyType);
+                this.primitives[i] = propertyType.isPrimitive();
+            }
+        }
+        else
+        {
+            this.constructor = getColumnsConstructor(type, columnCount);
+            this.constructorMapping = true;
+            this.setters = null;
+            this.fields = null;
+            this.columns = new int[columnCount];
+            final Class[] parameterTypes = this.constructor.getParameterTypes();
+            this.kinds = new int[columnCount];
+            this.primitives = new boolean[columnCount];
+            for (int i=0; i<columnCount; i++)
+            {
+                this.columns[i] = i+1;
+                this.kinds[i] = getKind(parameterTypes[i]);
+                this.primitives[i] = parameterTypes[i].isPrimitive();
+            }
+        }
+    }
+
+    /**
+     * Method to build the object of the current row
+     * @param rs The ResultSet positioned on the row
+     * @return The object filled with the row values
+     * @throws SQLException If reading a value or building the object fails
+     */
+    Object map(final ResultSet rs) throws SQLException
+    {
+        try
+        {
+            if (this.constructorMapping)
+            {
+                final Object[] values = new Object[this.columns.length];
+                for (int i=0; i<values.length; i++)
+                {
+                    values[i] = getValue(rs, i);
+                    if (values[i]==null && this.primitives[i])
+                    {
+                        throw new SQLException("Column "+this.columns[i]+" is NULL and cannot be passed to a primitive parameter of "+this.constructor);
+                    }
+                }
+                return this.constructor.newInstance(values);
+            }
+            final Object result = this.constructor.newInstance(new Object[0]);
+            for (int i=0; i<this.columns.length; i++)
+            {
+                final Object value = getValue(rs, i);
+                if (value==null && this.primitives[i])
+                {
+                    // primitive properties keep their default value
+                    continue;
+                }
+                if (this.setters[i]!=null)
+                {
+                    this.setters[i].invoke(result, new Object[] {value});
+                }
+                else
+                {
+                    this.fields[i].set(result, value);
+                }
+            }
+            return result;
+        }
+        catch (InvocationTargetException e)
+        {
+            throw toSQLException(e.getTargetException());
+        }
+        catch (InstantiationException e)
+        {
+            throw toSQLException(e);
+        }
+        catch (IllegalAccessException e)
+        {
+            throw toSQLException(e);
+        }
+        catch (IllegalArgumentException e)
+        {
+            throw toSQLException(e);
+        }
+    }
+
+    private Object getValue(final ResultSet rs, final int i) throws SQLException
+    {
+        final int column = this.columns[i];
+        switch (this.kinds[i])
+        {
+            case STRING:
+                return rs.getString(column);
+            case INT:
+                final int intValue = rs.getInt(column);
+                return rs.wasNull() ? null : new Integer(intValue);
+            case LONG:
+                final long longValue = rs.getLong(column);
+                return rs.wasNull() ? null : new Long(longValue);
+            case DOUBLE:
+                final double doubleValue = rs.getDouble(column);
+                return rs.wasNull() ? null : new Double(doubleValue);
+            case FLOAT:
+                final float floatValue = rs.getFloat(column);
+                return rs.wasNull() ? null : new Float(floatValue);
+            case SHORT:
+                final short shortValue = rs.getShort(column);
+                return rs.wasNull() ? null : new Short(shortValue);
+            case BYTE:
+                final byte byteValue = rs.getByte(column);
+                return rs.wasNull() ? null : new Byte(byteValue);
+            case BOOLEAN:
+                final boolean booleanValue = rs.getBoolean(column);
+                return rs.wasNull() ? null : (booleanValue ? Boolean.TRUE : Boolean.FALSE);
+            case DECIMAL:
+                return rs.getBigDecimal(column);
+            case DATE:
+                return rs.getDate(column);
+            case TIME:
+                return rs.getTime(column);
+            case TIMESTAMP:
+            case UTIL_DATE:
+                return rs.getTimestamp(column);
+            case BYTES:
+                return rs.getBytes(column);
+            default:
+                return rs.getObject(column);
+        }
+    }
+
+    /**
+     * Method to choose the setter filled by a column
+     * @param type The class of the objects to build
+     * @param column The column label
+     * @param sqlType The java.sql.Types type of the column
+     * @param overloads The setters of the property matching the column, can be null
+     * @return The only setter or the only overload taking the Java type of the column, null if none
+     * @throws SQLException If the setter is overloaded and no single overload takes the Java type of the column
+     */
+    private static Method chooseSetter(final Class type, final String column, final int sqlType, final List overloads) throws SQLException
+    {
+        if (overloads==null)
+        {
+            return null;
+        }
+        if (overloads.size()==1)
+        {
+            return (Method)overloads.get(0);
+        }
+        final int columnKind = getColumnKind(sqlType);
+        Method result = null;
+        for (int i=0; i<overloads.size(); i++)
+        {
+            final Method setter = (Method)overloads.get(i);
+            if (getKind(setter.getParameterTypes()[0])==columnKind)
+            {
+                if (result!=null)
+                {
+                    throw new SQLException("Column '"+column+"' maps to ambiguous setters of "+type.getName()+": "+result+" and "+setter);
+                }
+                result = setter;
+            }
+        }
+        if (result==null)
+        {
+            throw new SQLException("Column '"+column+"' maps to overloaded setters of "+type.getName()+" and none takes its type "+SQLUtilTypes.SQL_TYPES.get(new Integer(sqlType)));
+        }
+        return result;
+    }
+
+    private static int getColumnKind(final int sqlType)
+    {
+        switch (sqlType)
+        {
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.LONGVARCHAR:
+            case Types.CLOB:
+                return STRING;
+            case Types.INTEGER:
+                return INT;
+            case Types.BIGINT:
+                return LONG;
+            case Types.DOUBLE:
+            case Types.FLOAT:
+                return DOUBLE;
+            case Types.REAL:
+                return FLOAT;
+            case Types.SMALLINT:
+                return SHORT;
+            case Types.TINYINT:
+                return BYTE;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return DECIMAL;
+            case Types.DATE:
+                return DATE;
+            case Types.TIME:
+                return TIME;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BYTES;
+            default:
+                return OBJECT;
+        }
+    }
+
+    private static int getKind(final Class propertyType)
+    {
+        if (propertyType==String.class)
+        {
+            return STRING;
+        }
+        if (propertyType==int.class || propertyType==Integer.class)
+        {
+            return INT;
+        }
+        if (propertyType==long.class || propertyType==Long.class)
+        {
+            return LONG;
+        }
+        if (propertyType==double.class || propertyType==Double.class)
+        {
+            return DOUBLE;
+        }
+        if (propertyType==float.class || propertyType==Float.class)
+        {
+            return FLOAT;
+        }
+        if (propertyType==short.class || propertyType==Short.class)
+        {
+            return SHORT;
+        }
+        if (propertyType==byte.class || propertyType==Byte.class)
+        {
+            return BYTE;
+        }
+        if (propertyType==boolean.class || propertyType==Boolean.class)
+        {
+            return BOOLEAN;
+        }
+        if (propertyType==BigDecimal.class)
+        {
+            return DECIMAL;
+        }
+        if (propertyType==java.sql.Date.class)
+        {
+            return DATE;
+        }
+        if (propertyType==Time.class)
+        {
+            return TIME;
+        }
+        if (propertyType==Timestamp.class)
+        {
+            return TIMESTAMP;
+        }
+        if (propertyType==java.util.Date.class)
+        {
+            return UTIL_DATE;
+        }
+        if (propertyType==byte[].class)
+        {
+            return BYTES;
+        }
+        return OBJECT;
+    }
+
+    private static Constructor getDefaultConstructor(final Class type)
+    {
+        try
+        {
+            return type.getConstructor(new Class[0]);
+        }
+        catch (NoSuchMethodException e)
+        {
+            return null;
+        }
+    }
+
+    private static Constructor getColumnsConstructor(final Class type, final int columnCount) throws SQLException
+    {
+        final Constructor[] constructors = type.getConstructors();
+        Constructor result = null;
+        for (int i=0; i<constructors.length; i++)
+        {
+            if (constructors[i].getParameterTypes().length==columnCount)
+            {
+                if (result!=null)
+                {
+                    throw new SQLException(type.getName()+" has more than one public constructor with "+columnCount+" parameters");
+                }
+                result = constructors[i];
+            }
+        }
+        if (result==null)
+        {
+            throw new SQLException(type.getName()+" has neither a public no arguments constructor nor one with "+columnCount+" parameters");
+        }
+        return result;
+    }
+
+    private static String normalize(final String name)
+    {
+        final StringBuffer result = new StringBuffer(name.length());
+        for (int i=0; i<name.length(); i++)
+        {
+            final char c = name.charAt(i);
+            if (c!='_')
+            {
+                result.append(Character.toLowerCase(c));
+            }
+        }
+        return result.toString();
+    }
+
+    private SQLException toSQLException(final Throwable cause)
+    {
+        final SQLException sqle = new SQLException("Cannot map a row to "+this.type.getName()+": "+cause);
+        sqle.initCause(cause);
+        return sqle;
+    }
+}
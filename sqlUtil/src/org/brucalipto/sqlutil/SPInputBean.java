@@ -16,18 +16,29 @@
 package org.brucalipto.sqlutil;
 
 import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.sql.Timestamp;
 import java.sql.Types;
+import java.util.Arrays;
 
 /**
- * Class defining parameters needed to call a STORED PROCEDURE
+ * Class defining parameters needed to call a STORED PROCEDURE.
+ * Primitive input values are stored without boxing (their inputParams entry is null,
+ * use {@link #getInputParam(int)} to read them)
+ * and the bean can be {@link #reset()} and filled again to call the same procedure many times.
  * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
  */
 public class SPInputBean
 {
     public final String spName;
+    /** Input parameters set as objects: the ones set as primitives are null, see {@link #getInputParam(int)} */
     public final SPParameter[] inputParams;
     public final int[] outputParams;
+    private final PrimitiveParameters primitives;
+    private boolean columnarResults = false;
+    private ResultSetHandler resultSetHandler = null;
+    private int fetchSize = SQLManager.DEFAULT_FETCH_SIZE;
 
     /**
      * Constructor
@@ -40,6 +51,7 @@ public class SPInputBean
         this.spName = spName;
         this.inputParams = new SPParameter[inputValuesLenght];
         this.outputParams = new int[outputValuesLenght];
+        this.primitives = new PrimitiveParameters(inputValuesLenght);
     }
 
     /**
@@ -272,22 +284,70 @@ public class SPInputBean
         this.inputParams[pos] = spParam;
     }
 
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
-    
+    /**
+     * Method to add an input parameter
+     * @param pos The position in which you want to insert the value
+     * @param value An int value
+     */
+    public void addInputParameter(final int pos, final int value)
+    {
+        this.inputParams[pos] = null;
+        this.primitives.setInt(pos, value);
+    }
+
+    /**
+     * Method to add an input parameter
+     * @param pos The position in which you want to insert the value
+     * @param value A long value
+     */
+    public void addInputParameter(final int pos, final long value)
+    {
+        this.inputParams[pos] = null;
+        this.primitives.setLong(pos, value);
+    }
+
+    /**
+     * Method to add an input parameter
+     * @param pos The position in which you want to insert the value
+     * @param value A double value
+     */
+    public void addInputParameter(final int pos, final double value)
+    {
+        this.inputParams[pos] = null;
+        this.primitives.setDouble(pos, value);
+    }
+
+    /**
+     * Method to add an input parameter
+     * @param pos The position in which you want to insert the value
+     * @param value A boolean value
+     */
+    public void addInputParameter(final int pos, final boolean value)
+    {
+        this.inputParams[pos] = null;
+        this.primitives.setBoolean(pos, value);
+    }
+
+    /**
+     * Method to add an input parameter (bound as Types.FLOAT like a Float)
+     * @param pos The position in which you want to insert the value
+     * @param value A float value
+     */
+    public void addInputParameter(final int pos, final float value)
+    {
+        addInputParameter(pos, new Float(value));
+    }
+
+    /**
+     * Method to add an input parameter (bound as Types.CHAR like a Character)
+     * @param pos The position in which you want to insert the value
+     * @param value A char value
+     */
+    public void addInputParameter(final int pos, final char value)
+    {
+        addInputParameter(pos, new Character(value));
+    }
+
     /**
      * Method to add an output parameter
      * @param pos The position in which you define output value
@@ -297,4 +357,115 @@ public class SPInputBean
     {
         this.outputParams[pos] = sqlType;
     }
+
+    /**
+     * Method to return the result sets of the STORED PROCEDURE (eg. Oracle CURSOR output parameters)
+     * as {@link ColumnarResult} instead of RowSetDynaClass
+     * @param columnarResults true to get {@link ColumnarResult}s
+     */
+    public void setColumnarResults(final boolean columnarResults)
+    {
+        this.columnarResults = columnarResults;
+    }
+
+    public boolean isColumnarResults()
+    {
+        return this.columnarResults;
+    }
+
+    /**
+     * Method to stream the result sets of the STORED PROCEDURE (eg. Oracle CURSOR output parameters)
+     * to a handler while the statement is open: each one is returned as the Integer number of handled rows
+     * @param resultSetHandler The {@link ResultSetHandler}, null to get RowSetDynaClass or {@link ColumnarResult}s
+     */
+    public void setResultSetHandler(final ResultSetHandler resultSetHandler)
+    {
+        this.resultSetHandler = resultSetHandler;
+    }
+
+    public ResultSetHandler getResultSetHandler()
+    {
+        return this.resultSetHandler;
+    }
+
+    /**
+     * @param fetchSize The number of rows to get from the database in each round trip when streaming
+     * the result sets (default {@link SQLManager#DEFAULT_FETCH_SIZE}), 0 for the driver default
+     */
+    public void setFetchSize(final int fetchSize)
+    {
+        if (fetchSize<0)
+        {
+            throw new IllegalArgumentException("Fetch size must not be negative: "+fetchSize);
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize()
+    {
+        return this.fetchSize;
+    }
+
+    /**
+     * Method to remove all input parameters, so that the bean can be filled again
+     */
+    public void reset()
+    {
+        Arrays.fill(this.inputParams, null);
+        this.primitives.reset();
+    }
+
+    /**
+     * Method to bind all input parameters starting from the first statement parameter
+     * @param call The statement to bind the parameters to
+     * @throws SQLException If a parameter is not set
+     */
+    void bind(final PreparedStatement call) throws SQLException
+    {
+        for (int i=0; i<this.inputParams.length; i++)
+        {
+            final SPParameter param = this.inputParams[i];
+            if (param!=null)
+            {
+                if (param.value==null)
+                {
+                    call.setNull(i+1, param.sqlType);
+                }
+                else
+                {
+                    param.binder.bind(call, i+1, param.value);
+                }
+            }
+            else if (!this.primitives.bind(call, i+1, i))
+            {
+                throw new SQLException("Input parameter "+(i+1)+" of '"+this.spName+"' not set");
+            }
+        }
+    }
+
+    /**
+     * Method to bind an input parameter if it holds a primitive value
+     * @param call The statement to bind the parameter to
+     * @param index The statement parameter index (starting from 1)
+     * @param pos The position of the input parameter
+     * @return false if the input parameter does not hold a primitive value
+     * @throws SQLException
+     */
+    boolean bindPrimitive(final PreparedStatement call, final int index, final int pos) throws SQLException
+    {
+        return this.inputParams[pos]==null && this.primitives.bind(call, index, pos);
+    }
+
+    /**
+     * @param pos The position of the input parameter
+     * @return The input parameter, primitive values are boxed
+     */
+    public SPParameter getInputParam(final int pos)
+    {
+        if (this.inputParams[pos]==null && this.primitives.isSet(pos))
+        {
+            return new SPParameter(this.primitives.getSqlType(pos), this.primitives.getValue(pos));
+        }
+        return this.inputParams[pos];
+    }
 }
@@ -24,6 +24,7 @@ public class SPParameter
     public final int sqlType;
     public final Object value;
     public final String name;
+    final ParameterBinder binder;
     /**
      * Constructor
      * @param sqlType An int rappresenting a java.sql.Types of this object
@@ -34,6 +35,7 @@ public class SPParameter
         this.sqlType = sqlType;
         this.value = value;
         this.name = "";
+        this.binder = ParameterBinder.forType(sqlType);
     }
 
     /**
@@ -47,6 +49,7 @@ public class SPParameter
         this.sqlType = sqlType;
         this.value = value;
         this.name = name;
+        this.binder = ParameterBinder.forType(sqlType);
     }
 
     /**
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+/**
+ * Callback notified when a {@link SQLFuture} completes
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public interface SQLCallback
+{
+    /**
+     * Method called when the operation completes normally
+     * @param result The operation result (eg. a RowSetDynaClass or an Integer)
+     */
+    public void onSuccess(final Object result);
+
+    /**
+     * Method called when the operation fails
+     * @param error The error (usually a SQLException)
+     */
+    public void onFailure(final Throwable error);
+}
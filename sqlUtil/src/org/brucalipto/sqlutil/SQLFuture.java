@@ -0,0 +1,178 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Result of an asynchronous {@link SQLManager} operation
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class SQLFuture
+{
+    private final static Log log = LogFactory.getLog(SQLFuture.class);
+
+    private boolean done = false;
+    private Object result = null;
+    private Throwable error = null;
+    private List callbacks = null;
+
+    /**
+     * @return true if the operation completed, normally or not
+     */
+    public synchronized boolean isDone()
+    {
+        return this.done;
+    }
+
+    /**
+     * Method to wait for the operation result
+     * @return The operation result
+     * @throws SQLException If the operation failed or the waiting thread is interrupted
+     */
+    public Object get() throws SQLException
+    {
+        return get(0);
+    }
+
+    /**
+     * Method to wait for the operation result
+     * @param timeoutMillis The maximum time to wait, 0 to wait forever
+     * @return The operation result
+     * @throws SQLException If the operation failed, did not complete in time or the waiting thread is interrupted
+     */
+    public synchronized Object get(final long timeoutMillis) throws SQLException
+    {
+        final long deadline = System.currentTimeMillis()+timeoutMillis;
+        while (!this.done)
+        {
+            final long wait = timeoutMillis==0 ? 0 : deadline-System.currentTimeMillis();
+            if (timeoutMillis>0 && wait<=0)
+            {
+                throw new SQLException("Timeout waiting "+timeoutMillis+" millis for asynchronous SQL operation");
+            }
+            try
+            {
+                wait(wait);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted waiting for asynchronous SQL operation");
+            }
+        }
+        if (this.error instanceof SQLException)
+        {
+            throw (SQLException)this.error;
+        }
+        if (this.error!=null)
+        {
+            final SQLException e = new SQLException("Asynchronous SQL operation failed: "+this.error);
+            e.initCause(this.error);
+            throw e;
+        }
+        return this.result;
+    }
+
+    /**
+     * Method to be notified of completion: if already completed the callback is called immediately
+     * in the calling thread, otherwise in the thread completing the operation
+     * @param callback The {@link SQLCallback} to notify
+     */
+    public void addCallback(final SQLCallback callback)
+    {
+        synchronized (this)
+        {
+            if (!this.done)
+            {
+                if (this.callbacks==null)
+                {
+                    this.callbacks = new ArrayList(2);
+                }
+                this.callbacks.add(callback);
+                return;
+            }
+        }
+        notifyCallback(callback);
+    }
+
+    /**
+     * Method to complete the operation normally
+     * @param result The operation result
+     */
+    void complete(final Object result)
+    {
+        finish(result, null);
+    }
+
+    /**
+     * Method to complete the operation with an error
+     * @param error The error
+     */
+    void fail(final Throwable error)
+    {
+        finish(null, error);
+    }
+
+    private void finish(final Object result, final Throwable error)
+    {
+        final List toNotify;
+        synchronized (this)
+        {
+            if (this.done)
+            {
+                return;
+            }
+            this.done = true;
+            this.result = result;
+            this.error = error;
+            toNotify = this.callbacks;
+            this.callbacks = null;
+            notifyAll();
+        }
+        if (toNotify!=null)
+        {
+            for (int i=0; i<toNotify.size(); i++)
+            {
+                notifyCallback((SQLCallback)toNotify.get(i));
+            }
+        }
+    }
+
+    private void notifyCallback(final SQLCallback callback)
+    {
+        try
+        {
+            if (this.error!=null)
+            {
+                callback.onFailure(this.error);
+            }
+            else
+            {
+                callback.onSuccess(this.result);
+            }
+        }
+        catch (RuntimeException e)
+        {
+            log.error("Error in SQLCallback", e);
+        }
+    }
+}
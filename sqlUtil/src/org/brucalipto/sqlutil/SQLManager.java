@@ -15,15 +15,26 @@
 */
 package org.brucalipto.sqlutil;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.sql.BatchUpdateException;
+import java.sql.CallableStatement;
 import java.sql.Connection;
-import java.sql.Date;
+import java.sql.DatabaseMetaData;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.sql.Timestamp;
-import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.naming.Context;
 import javax.naming.InitialContext;
@@ -42,6 +53,7 @@ import org.apache.commons.logging.LogFactory;
 public abstract class SQLManager
 {
     private final static Log log = LogFactory.getLog(SQLManager.class);
+    private final static Log slowLog = LogFactory.getLog(SQLManager.class.getName()+".slow");
     
 	private final static String REF_PREFIX = "java:comp/env/";
 
@@ -57,6 +69,32 @@ public abstract class SQLManager
     public static final int NOTHING_UPDATED = -6;
     public static final int NOTHING_DELETED = -7;
     
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_FETCH_SIZE = 100;
+    public static final String DEFAULT_EXPORT_CHARSET = "UTF-8";
+    
+    private static final int DYNA_SELECT_RESULT = Integer.MIN_VALUE;
+    private static final Object NO_SIGNATURE = new Object();
+    private static final int MAX_ROW_MAPPERS = 256;
+    
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private StatementCache statementCache = null;
+    private StatementCache callableStatementCache = null;
+    private volatile Map procedureSignatures = null;
+    private volatile Map rowMappers = new HashMap();
+    private ReplicaRouter replicaRouter = null;
+    private final SQLManagerStats stats = new SQLManagerStats();
+    private AsyncExecutor asyncExecutor = null;
+    private ResultCache resultCache = null;
+    private StatementOptions defaultStatementOptions = null;
+    private volatile Map statementOptions = new HashMap();
+    private FetchSizeAdvisor fetchSizeAdvisor = null;
+    private ConcurrencyLimiter concurrencyLimiter = null;
+    private final Map permits = new IdentityHashMap();
+    private final ThreadLocal unitOfWork = new ThreadLocal();
+    
+    private static AsyncExecutor defaultAsyncExecutor = null;
+    
     /**
      *Protected constructor to be used by extending classes
      */
@@ -103,11 +141,7 @@ public abstract class SQLManager
      */
     public int insert(final String preparedStatement, final PrepStmtInputBean parameters)
     {
-        if (parameters!=null)
-        {
-            return executeSimpleQuery(preparedStatement, parameters.getInputParams());
-        }
-        return executeSimpleQuery(preparedStatement, null);
+        return executeSimpleQuery(preparedStatement, parameters);
     }
 
     /**
@@ -129,11 +163,7 @@ public abstract class SQLManager
      */
     public int update(final String preparedStatement, final PrepStmtInputBean parameters)
     {
-        if (parameters!=null)
-        {
-            return executeSimpleQuery(preparedStatement, parameters.getInputParams());
-        }
-        return executeSimpleQuery(preparedStatement, null);
+        return executeSimpleQuery(preparedStatement, parameters);
     }
 
     /**
@@ -155,376 +185,1950 @@ public abstract class SQLManager
      */
     public int delete(final String preparedStatement, final PrepStmtInputBean parameters)
     {
-        if (parameters!=null)
-        {
-            return executeSimpleQuery(preparedStatement, parameters.getInputParams());
-        }
-        return executeSimpleQuery(preparedStatement, null);
+        return executeSimpleQuery(preparedStatement, parameters);
     }
 
     /**
-     * Method useful for SQL SELECT
+     * Method useful for SQL INSERT of many rows in JDBC batches
      * @param preparedStatement The prepared statement to execute
-     * @param parameters List of {@link SQLParameter} to use to complete the prepared statement
-     * @return Returns a RowSetDynaClass containing returned rows
-     * @throws SQLException 
+     * @param parameters List of SQLParameter[] (or {@link PrepStmtInputBean}), one for each row
+     * @return The number of rows inserted for each row of the batch
+     * @throws SQLException
      */
-    public RowSetDynaClass dynaSelect(final String preparedStatement, final SQLParameter[] params) throws SQLException
+    public int[] insertBatch(final String preparedStatement, final List parameters) throws SQLException
     {
-    	final long elapsedTime = System.currentTimeMillis();
-    	SQLParameter[] parameters;
-        if (params==null)
-        {
-            parameters = new SQLParameter[0];
-            log.debug("Going to execute a query without parameters.");
-        }
-        else
-        {
-        	parameters = (SQLParameter[])params.clone();
-        }
-        Connection dbConn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        
-        try
-        {
-            if (this.dataSource!=null)
-        	{
-            	dbConn = this.dataSource.getConnection();
-        	}
-        	else
-        	{
-        		dbConn = this.connection;
-        	}
-            pstmt = dbConn.prepareStatement(preparedStatement);
-            for (int i=0; i<parameters.length; i++)
-            {
-                final SQLParameter param = parameters[i];
-                log.debug((i+1)+") Going to add parameter "+param);
-                final int sqlType = param.getSqlType();
-                final Object paramValue = param.getValue();
-                if (paramValue==null)
-                {
-                    pstmt.setNull(i+1, sqlType);
-                    continue;
-                }
-                switch(sqlType)
-                {
-                    case Types.VARCHAR:
-                        pstmt.setString(i+1, (String)paramValue);
-                        break;
-                    case Types.INTEGER:
-                        if (paramValue instanceof Integer)
-                        {
-                            pstmt.setInt(i+1, ((Integer)paramValue).intValue());
-                        }
-                        else if (paramValue instanceof Long)
-                        {
-                            pstmt.setLong(i+1, ((Long)paramValue).longValue());
-                        }
-                        break;
-                    case Types.DATE:
-                        pstmt.setDate(i+1, (Date)paramValue);
-                        break;
-                    case Types.BOOLEAN:
-                        pstmt.setBoolean(i+1, ((Boolean)paramValue).booleanValue());
-                        break;
-                    case Types.CHAR:
-                        pstmt.setString(i+1, ((Character)paramValue).toString());
-                        break;
-                    case Types.DOUBLE:
-                        pstmt.setDouble(i+1, ((Double)paramValue).doubleValue());
-                        break;
-                    case Types.FLOAT:
-                        pstmt.setFloat(i+1, ((Float)paramValue).floatValue());
-                        break;
-                    case Types.TIMESTAMP:
-                        pstmt.setTimestamp(i+1, (Timestamp)paramValue);
-                        break;
-                    default:
-                        pstmt.setObject(i+1, paramValue);
-                        break;
-                }
-            }
+        return executeBatch(preparedStatement, parameters);
+    }
 
-            rs = pstmt.executeQuery();
-            RowSetDynaClass rowSetDynaClass = new RowSetDynaClass(rs, false);
-            if (log.isDebugEnabled())
-            {
-                log.debug("Prepared statement '"+preparedStatement+"' returned '"+rowSetDynaClass.getRows().size()+"' rows in '"+(System.currentTimeMillis()-elapsedTime)+"' millis with following properties:");
-        		DynaProperty[] properties = rowSetDynaClass.getDynaProperties();
-        		for (int i=0; i<properties.length; i++)
-        		{
-        			log.debug("Name: '"+properties[i].getName()+"'; Type: '"+properties[i].getType().getName()+"'");
-        		}
-            }
-            return rowSetDynaClass;
-        }
-        catch(SQLException e)
-        {
-            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
-            throw e;
-        }
-        finally
-        {
-            closeResources(rs, pstmt, dbConn);
-        }
+    /**
+     * Method useful for SQL INSERT of many rows in JDBC batches
+     * @param preparedStatement The prepared statement to execute
+     * @param parameters The {@link PrepStmtInputBean}s to use, one for each row
+     * @return The number of rows inserted for each row of the batch
+     * @throws SQLException
+     */
+    public int[] insertBatch(final String preparedStatement, final PrepStmtInputBean[] parameters) throws SQLException
+    {
+        return executeBatch(preparedStatement, toParametersList(parameters));
     }
 
     /**
-     * Method useful for SQL SELECT
+     * Method useful for SQL UPDATE of many rows in JDBC batches
      * @param preparedStatement The prepared statement to execute
-     * @param params List of {@link SQLParameter} to use to complete the prepared statement
-     * @param outputSQLType A java.sql.Types type of return value
-     * @return The {@link SPParameter} containing the returned value
+     * @param parameters List of SQLParameter[] (or {@link PrepStmtInputBean}), one for each row
+     * @return The number of rows updated for each row of the batch
+     * @throws SQLException
      */
-    public SQLParameter simpleSelect(final String preparedStatement, SQLParameter[] params, final int outputSQLType)
+    public int[] updateBatch(final String preparedStatement, final List parameters) throws SQLException
     {
-        final SQLParameter[] parameters;
-        if (params==null)
+        return executeBatch(preparedStatement, parameters);
+    }
+
+    /**
+     * Method useful for SQL UPDATE of many rows in JDBC batches
+     * @param preparedStatement The prepared statement to execute
+     * @param parameters The {@link PrepStmtInputBean}s to use, one for each row
+     * @return The number of rows updated for each row of the batch
+     * @throws SQLException
+     */
+    public int[] updateBatch(final String preparedStatement, final PrepStmtInputBean[] parameters) throws SQLException
+    {
+        return executeBatch(preparedStatement, toParametersList(parameters));
+    }
+
+    /**
+     * Method useful for SQL DELETE of many rows in JDBC batches
+     * @param preparedStatement The prepared statement to execute
+     * @param parameters List of SQLParameter[] (or {@link PrepStmtInputBean}), one for each row
+     * @return The number of rows deleted for each row of the batch
+     * @throws SQLException
+     */
+    public int[] deleteBatch(final String preparedStatement, final List parameters) throws SQLException
+    {
+        return executeBatch(preparedStatement, parameters);
+    }
+
+    /**
+     * Method useful for SQL DELETE of many rows in JDBC batches
+     * @param preparedStatement The prepared statement to execute
+     * @param parameters The {@link PrepStmtInputBean}s to use, one for each row
+     * @return The number of rows deleted for each row of the batch
+     * @throws SQLException
+     */
+    public int[] deleteBatch(final String preparedStatement, final PrepStmtInputBean[] parameters) throws SQLException
+    {
+        return executeBatch(preparedStatement, toParametersList(parameters));
+    }
+
+    /**
+     * Method to get the number of rows sent to the database with a single executeBatch()
+     * @return The batch flush size
+     */
+    public int getBatchSize()
+    {
+        return this.batchSize;
+    }
+
+    /**
+     * Method to set the number of rows sent to the database with a single executeBatch()
+     * @param batchSize The batch flush size (must be greater than 0)
+     */
+    public void setBatchSize(final int batchSize)
+    {
+        if (batchSize<1)
         {
-            parameters = new SQLParameter[0];
-            log.debug("Going to execute a query without parameters.");
+            throw new IllegalArgumentException("Batch size must be greater than 0: "+batchSize);
         }
-        else
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Method to keep open up to <code>maxSize</code> PreparedStatements, reusing them
+     * instead of preparing them again. Available only when this SQLManager is bound to a Connection.
+     * @param maxSize The maximum number of statements kept open (LRU evicted)
+     */
+    public synchronized void enableStatementCache(final int maxSize)
+    {
+        if (this.connection==null)
         {
-        	parameters = (SQLParameter[])params.clone();
+            throw new IllegalStateException("Statement cache is available only for SQLManager bound to a Connection");
         }
-        Connection dbConn = null;
-        PreparedStatement pstmt = null;
-        ResultSet rs = null;
-        try
-        {
-            if (this.dataSource!=null)
-        	{
-            	dbConn = this.dataSource.getConnection();
-        	}
-        	else
-        	{
-        		dbConn = this.connection;
-        	}
-            pstmt = dbConn.prepareStatement(preparedStatement);
-            for (int i=0; i<parameters.length; i++)
-            {
-                final SQLParameter param = parameters[i];
-                log.debug((i+1)+") Going to add parameter "+param);
-                final int sqlType = param.getSqlType();
-                final Object paramValue = param.getValue();
-                if (paramValue==null)
-                {
-                    pstmt.setNull(i+1, sqlType);
-                    continue;
-                }
-                switch(sqlType)
-                {
-                    case Types.VARCHAR:
-                        pstmt.setString(i+1, (String)paramValue);
-                        break;
-                    case Types.INTEGER:
-                        if (paramValue instanceof Integer)
-                        {
-                            pstmt.setInt(i+1, ((Integer)paramValue).intValue());
-                        }
-                        else if (paramValue instanceof Long)
-                        {
-                            pstmt.setLong(i+1, ((Long)paramValue).longValue());
-                        }
-                        break;
-                    case Types.DATE:
-                        pstmt.setDate(i+1, (Date)paramValue);
-                        break;
-                    case Types.BOOLEAN:
-                        pstmt.setBoolean(i+1, ((Boolean)paramValue).booleanValue());
-                        break;
-                    case Types.CHAR:
-                        pstmt.setString(i+1, ((Character)paramValue).toString());
-                        break;
-                    case Types.DOUBLE:
-                        pstmt.setDouble(i+1, ((Double)paramValue).doubleValue());
-                        break;
-                    case Types.FLOAT:
-                        pstmt.setFloat(i+1, ((Float)paramValue).floatValue());
-                        break;
-                    case Types.TIMESTAMP:
-                        pstmt.setTimestamp(i+1, (Timestamp)paramValue);
-                        break;
-                    default:
-                        pstmt.setObject(i+1, paramValue);
-                        break;
-                }
-            }
+        disableStatementCache();
+        this.statementCache = new StatementCache(maxSize);
+    }
 
-            rs = pstmt.executeQuery();
-            log.debug("Prepared statement '"+preparedStatement+"' succesfully executed!");
-            while (rs.next())
-            {
-                return new SQLParameter(outputSQLType, (Serializable)rs.getObject(1));
-            }
-            log.info("Prepared statement '"+preparedStatement+"' returned '0' rows");
-        }
-        catch(SQLException e)
+    /**
+     * Method to close all cached statements and stop caching
+     */
+    public synchronized void disableStatementCache()
+    {
+        if (this.statementCache!=null)
         {
-            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+            log.debug("Disabling "+this.statementCache);
+            this.statementCache.clear();
+            this.statementCache = null;
         }
-        catch(Exception e)
+    }
+
+    /**
+     * Method to get the statement cache
+     * @return The {@link StatementCache} in use or null if not enabled
+     */
+    public StatementCache getStatementCache()
+    {
+        return this.statementCache;
+    }
+
+    /**
+     * Method to keep open up to <code>maxSize</code> CallableStatements used by executeSP, reusing them
+     * instead of preparing them again. Available only when this SQLManager is bound to a Connection.
+     * @param maxSize The maximum number of calls kept open (LRU evicted)
+     */
+    public synchronized void enableCallableStatementCache(final int maxSize)
+    {
+        if (this.connection==null)
         {
-            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+            throw new IllegalStateException("Callable statement cache is available only for SQLManager bound to a Connection");
         }
-        finally
+        disableCallableStatementCache();
+        this.callableStatementCache = new StatementCache(maxSize);
+    }
+
+    /**
+     * Method to close all cached calls and stop caching
+     */
+    public synchronized void disableCallableStatementCache()
+    {
+        if (this.callableStatementCache!=null)
         {
-            closeResources(rs, pstmt, dbConn);
+            log.debug("Disabling "+this.callableStatementCache);
+            this.callableStatementCache.clear();
+            this.callableStatementCache = null;
         }
+    }
 
-        return new SQLParameter(outputSQLType, null);
+    /**
+     * Method to get the callable statement cache
+     * @return The {@link StatementCache} of calls in use or null if not enabled
+     */
+    public StatementCache getCallableStatementCache()
+    {
+        return this.callableStatementCache;
     }
 
-    protected int executeSimpleQuery(final String preparedStatement, final SQLParameter[] params)
+    /**
+     * Method to begin a {@link UnitOfWork} in the calling thread: until it is closed all operations of this
+     * SQLManager called by the thread run on its Connection in a single transaction
+     * @return The begun {@link UnitOfWork}
+     * @throws SQLException
+     * @throws IllegalStateException If a unit of work is already active in the calling thread
+     */
+    public UnitOfWork beginUnitOfWork() throws SQLException
     {
-    	final SQLParameter[] parameters;
-        if (params==null)
+        if (this.unitOfWork.get()!=null)
         {
-            parameters = new SQLParameter[0];
-            log.debug("Going to execute a query without parameters.");
+            throw new IllegalStateException("A unit of work is already active in this thread: use savepoints to nest");
+        }
+        final UnitOfWork result;
+        if (this.dataSource!=null)
+        {
+            result = new UnitOfWork(this, this.dataSource.getConnection(), true);
         }
         else
         {
-        	parameters = (SQLParameter[])params.clone();
+            result = new UnitOfWork(this, this.connection, false);
         }
-        Connection dbConn = null;
-        PreparedStatement pstmt = null;
+        this.unitOfWork.set(result);
+        return result;
+    }
+
+    /**
+     * Method to get the unit of work active in the calling thread
+     * @return The {@link UnitOfWork} or null if none is active
+     */
+    public UnitOfWork getUnitOfWork()
+    {
+        return (UnitOfWork)this.unitOfWork.get();
+    }
+
+    /**
+     * Method to run a callback in a {@link UnitOfWork}: it is committed if the callback returns normally,
+     * rolled back otherwise
+     * @param callback The {@link TransactionCallback} to run
+     * @return The value returned by the callback
+     * @throws SQLException
+     */
+    public Object executeInTransaction(final TransactionCallback callback) throws SQLException
+    {
+        final UnitOfWork current = beginUnitOfWork();
         try
         {
-        	if (this.dataSource!=null)
-        	{
-            	dbConn = this.dataSource.getConnection();
-        	}
-        	else
-        	{
-        		dbConn = this.connection;
-        	}
-            pstmt = dbConn.prepareStatement(preparedStatement);
-            for (int i=0; i<parameters.length; i++)
-            {
-                final SQLParameter param = parameters[i];
-                log.debug((i+1)+") Going to add parameter "+param);
-                final int sqlType = param.getSqlType();
-                final Object paramValue = param.getValue();
-                if (paramValue==null)
-                {
-                    pstmt.setNull(i+1, sqlType);
-                    continue;
-                }
-                switch(sqlType)
-                {
-                    case Types.VARCHAR:
-                        pstmt.setString(i+1, (String)paramValue);
-                        break;
-                    case Types.INTEGER:
-                        if (paramValue instanceof Integer)
-                        {
-                            pstmt.setInt(i+1, ((Integer)paramValue).intValue());
-                        }
-                        else if (paramValue instanceof Long)
-                        {
-                            pstmt.setLong(i+1, ((Long)paramValue).longValue());
-                        }
-                        break;
-                    case Types.DATE:
-                        pstmt.setDate(i+1, (Date)paramValue);
-                        break;
-                    case Types.BOOLEAN:
-                        pstmt.setBoolean(i+1, ((Boolean)paramValue).booleanValue());
-                        break;
-                    case Types.CHAR:
-                        pstmt.setString(i+1, ((Character)paramValue).toString());
-                        break;
-                    case Types.DOUBLE:
-                        pstmt.setDouble(i+1, ((Double)paramValue).doubleValue());
-                        break;
-                    case Types.FLOAT:
-                        pstmt.setFloat(i+1, ((Float)paramValue).floatValue());
-                        break;
-                    case Types.TIMESTAMP:
-                        pstmt.setTimestamp(i+1, (Timestamp)paramValue);
-                        break;
-                    default:
-                        pstmt.setObject(i+1, paramValue);
-                        break;
-                }
-            }
-
-            int result = pstmt.executeUpdate();
-            log.debug("Prepared statement '"+preparedStatement+"' correctly executed ("+result+")");
+            final Object result = callback.doInTransaction(current);
+            current.commit();
             return result;
         }
-        catch(SQLException e)
+        finally
         {
-            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+            current.close();
         }
-        catch(Exception e)
+    }
+
+    /**
+     * @return true if this SQLManager is bound to a single Connection instead of a DataSource
+     */
+    boolean isBoundToConnection()
+    {
+        return this.connection!=null;
+    }
+
+    void endUnitOfWork(final UnitOfWork ended)
+    {
+        if (this.unitOfWork.get()==ended)
         {
-            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+            this.unitOfWork.set(null);
         }
-        finally
+    }
+
+    /**
+     * Method to run dynaSelect, columnarSelect, streamSelect and simpleSelect on replica DataSources,
+     * while insert, update, delete and executeSP keep using the DataSource of this SQLManager.
+     * Available only when this SQLManager is not bound to a Connection.
+     * @param replicaRouter The {@link ReplicaRouter} to use, null to read from the primary only
+     */
+    public void setReplicaRouter(final ReplicaRouter replicaRouter)
+    {
+        if (replicaRouter!=null && this.connection!=null)
         {
-            closeResources(pstmt, dbConn);
+            throw new IllegalStateException("Replicas are available only for SQLManager working on a DataSource");
         }
+        this.replicaRouter = replicaRouter;
+    }
 
-        return -1;
+    public ReplicaRouter getReplicaRouter()
+    {
+        return this.replicaRouter;
     }
-    
+
     /**
-     * Utility method to close DB access structures
-     * @param rs The Resultset to be closed
-     * @param stmt The Statement to be closed
-     * @param dbConn The Connection to be closed
+     * Method to bound the statements this SQLManager runs at the same time: each one takes a permit
+     * before getting its Connection and gives it back when the Connection is released, the execute time
+     * being the latency adjusting the limit; statements over the limit wait or fail with a {@link ConcurrencyLimitException}.
+     * simpleSelect, insert, update and delete do not throw it, like any other SQLException: a rejected
+     * simpleSelect returns a null value and the others return -1, the rejection being logged.
+     * Statements run in a {@link UnitOfWork} are not limited. Available only when this SQLManager is not bound to a Connection.
+     * @param concurrencyLimiter The {@link ConcurrencyLimiter} to use, null to run statements without limits
      */
-    protected static void closeResources(final ResultSet rs, final Statement stmt, final Connection dbConn)
+    public void setConcurrencyLimiter(final ConcurrencyLimiter concurrencyLimiter)
     {
-        try{if (rs!=null)rs.close();}catch(Exception e){log.error("Error closing resultSet", e);}
-        closeResources(stmt, dbConn);
+        if (concurrencyLimiter!=null && this.connection!=null)
+        {
+            throw new IllegalStateException("Concurrency limiter is available only for SQLManager working on a DataSource");
+        }
+        this.concurrencyLimiter = concurrencyLimiter;
+    }
+
+    public ConcurrencyLimiter getConcurrencyLimiter()
+    {
+        return this.concurrencyLimiter;
     }
 
     /**
-     * Utility method to close DB access structures
-     * @param stmt The Statement to be closed
-     * @param dbConn The Connection to be closed
+     * Method to make executeSP read the parameters of each STORED PROCEDURE from the database
+     * metadata the first time it is called: inputs are then bound and outputs registered with
+     * the declared types and positions, and the output types of the {@link SPInputBean} can be omitted
      */
-    protected static void closeResources(final Statement stmt, final Connection dbConn)
+    public synchronized void enableProcedureMetadata()
     {
-        try{if (stmt!=null)stmt.close();}catch(Exception e){log.error("Error closing statement", e);}
-        closeResources(dbConn);
+        this.procedureSignatures = new HashMap();
     }
 
     /**
-     * Utility method to close DB access structures
-     * @param dbConn The Connection to be closed
+     * Method to forget all discovered STORED PROCEDURE signatures and stop reading the metadata
      */
-    protected static void closeResources(final Connection dbConn)
+    public synchronized void disableProcedureMetadata()
     {
-        try{if (dbConn!=null)dbConn.close();}catch(Exception e){log.error("Error closing connection", e);}
+        this.procedureSignatures = null;
     }
-    
-    protected static DataSource setupDataSource(final String dsJNDIName)
+
+    public boolean isProcedureMetadataEnabled()
     {
-        Context env = null;
-		final String contextURI = dsJNDIName.startsWith(REF_PREFIX)?dsJNDIName:REF_PREFIX+dsJNDIName;
-		log.debug("Looking for '"+contextURI+"' in Context");
-        try
-        {
-            env = new InitialContext();
-            return (DataSource) env.lookup(contextURI);
-        }
-        catch(NamingException e)
+        return this.procedureSignatures!=null;
+    }
+
+    /**
+     * Asynchronous version of {@link #insert(String, SQLParameter[])}
+     * @param preparedStatement The prepared statement to execute
+     * @param parameters List of {@link SQLParameter} to use to complete the prepared statement
+     * @return A {@link SQLFuture} whose result is an Integer with the number of rows inserted, -1 if an error occurs
+     */
+    public SQLFuture insertAsync(final String preparedStatement, final SQLParameter[] parameters)
+    {
+        return submit(new AsyncTask()
         {
-        	log.error("Error getting datasource '' from Context", e);
-        	return null;
-        }
-        finally
+            protected Object call()
+            {
+                return new Integer(insert(preparedStatement, parameters));
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #update(String, SQLParameter[])}
+     * @param preparedStatement The prepared statement to execute
+     * @param parameters List of {@link SQLParameter} to use to complete the prepared statement
+     * @return A {@link SQLFuture} whose result is an Integer with the number of rows updated, -1 if an error occurs
+     */
+    public SQLFuture updateAsync(final String preparedStatement, final SQLParameter[] parameters)
+    {
+        return submit(new AsyncTask()
         {
-            try{if (env!=null)env.close();}catch(NamingException e){log.error("Error closing context", e);}
-        }
+            protected Object call()
+            {
+                return new Integer(update(preparedStatement, parameters));
+            }
+        });
     }
-    
-    public abstract SPOutputBean executeSP(final SPInputBean spib) throws SQLException;
-}
+
+    /**
+     * Asynchronous version of {@link #delete(String, SQLParameter[])}
+     * @param preparedStatement The prepared statement to execute
+     * @param parameters List of {@link SQLParameter} to use to complete the prepared statement
+     * @return A {@link SQLFuture} whose result is an Integer with the number of rows deleted, -1 if an error occurs
+     */
+    public SQLFuture deleteAsync(final String preparedStatement, final SQLParameter[] parameters)
+    {
+        return submit(new AsyncTask()
+        {
+            protected Object call()
+            {
+                return new Integer(delete(preparedStatement, parameters));
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #dynaSelect(String, SQLParameter[])}
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @return A {@link SQLFuture} whose result is a RowSetDynaClass containing returned rows
+     */
+    public SQLFuture dynaSelectAsync(final String preparedStatement, final SQLParameter[] params)
+    {
+        return submit(new AsyncTask()
+        {
+            protected Object call() throws SQLException
+            {
+                return dynaSelect(preparedStatement, params);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #streamSelect(String, SQLParameter[], RowHandler, int)}:
+     * the handler is called by the thread running the query
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param handler The {@link RowHandler} receiving the rows
+     * @param fetchSize The number of rows to get from the database in each round trip
+     * @return A {@link SQLFuture} whose result is the Integer number of rows handed to the handler
+     */
+    public SQLFuture streamSelectAsync(final String preparedStatement, final SQLParameter[] params, final RowHandler handler, final int fetchSize)
+    {
+        return submit(new AsyncTask()
+        {
+            protected Object call() throws SQLException
+            {
+                return new Integer(streamSelect(preparedStatement, params, handler, fetchSize));
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #simpleSelect(String, SQLParameter[], int)}
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param outputSQLType A java.sql.Types type of return value
+     * @return A {@link SQLFuture} whose result is the {@link SQLParameter} containing the returned value
+     */
+    public SQLFuture simpleSelectAsync(final String preparedStatement, final SQLParameter[] params, final int outputSQLType)
+    {
+        return submit(new AsyncTask()
+        {
+            protected Object call()
+            {
+                return simpleSelect(preparedStatement, params, outputSQLType);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous version of {@link #executeSP(SPInputBean)}
+     * @param spib The {@link SPInputBean} bean containing data to execute the stored procedure
+     * @return A {@link SQLFuture} whose result is the {@link SPOutputBean} containing returned values
+     */
+    public SQLFuture executeSPAsync(final SPInputBean spib)
+    {
+        return submit(new AsyncTask()
+        {
+            protected Object call() throws SQLException
+            {
+                return executeSP(spib);
+            }
+        });
+    }
+
+    /**
+     * Method to cache the results of the simpleSelect and dynaSelect calls declaring the tables they read.
+     * Cached results expire after <code>ttlMillis</code> and are invalidated by insert, update and delete
+     * on those tables run through this SQLManager; changes made elsewhere (eg. by stored procedures)
+     * need an explicit {@link ResultCache#invalidate(String)}.
+     * @param maxEntries The maximum number of cached results
+     * @param maxBytes The maximum approximate size in bytes of all cached results
+     * @param ttlMillis The time to live of a cached result, 0 to never expire
+     */
+    public void enableResultCache(final int maxEntries, final long maxBytes, final long ttlMillis)
+    {
+        this.resultCache = new ResultCache(maxEntries, maxBytes, ttlMillis);
+    }
+
+    /**
+     * Method to drop all cached results and stop caching
+     */
+    public void disableResultCache()
+    {
+        this.resultCache = null;
+    }
+
+    /**
+     * Method to get the result cache
+     * @return The {@link ResultCache} in use or null if not enabled
+     */
+    public ResultCache getResultCache()
+    {
+        return this.resultCache;
+    }
+
+    /**
+     * Method to set the options of the statements without their own ones
+     * @param options The {@link StatementOptions}, null for the driver defaults
+     */
+    public void setDefaultStatementOptions(final StatementOptions options)
+    {
+        this.defaultStatementOptions = options;
+    }
+
+    public StatementOptions getDefaultStatementOptions()
+    {
+        return this.defaultStatementOptions;
+    }
+
+    /**
+     * Method to set the options of a statement: a fetch size given here wins over the adaptive one.
+     * Inserts, updates, deletes and batches only use the query timeout.
+     * @param sql The SQL text of the statement or the name of the STORED PROCEDURE
+     * @param options The {@link StatementOptions}, null to use the default ones
+     */
+    public synchronized void setStatementOptions(final String sql, final StatementOptions options)
+    {
+        final Map newOptions = new HashMap(this.statementOptions);
+        if (options==null)
+        {
+            newOptions.remove(sql);
+        }
+        else
+        {
+            newOptions.put(sql, options);
+        }
+        this.statementOptions = newOptions;
+    }
+
+    /**
+     * @param sql The SQL text of the statement or the name of the STORED PROCEDURE
+     * @return The {@link StatementOptions} of the statement, null if it uses the default ones
+     */
+    public StatementOptions getStatementOptions(final String sql)
+    {
+        return (StatementOptions)this.statementOptions.get(sql);
+    }
+
+    /**
+     * Method to choose the fetch size of the selects from the rows they returned before (see {@link FetchSizeAdvisor})
+     * @param maxFetchSize The greatest fetch size to use
+     */
+    public void enableAdaptiveFetchSize(final int maxFetchSize)
+    {
+        this.fetchSizeAdvisor = new FetchSizeAdvisor(maxFetchSize, FetchSizeAdvisor.DEFAULT_MAX_FINGERPRINTS);
+    }
+
+    /**
+     * Method to stop choosing the fetch size from the rows returned before
+     */
+    public void disableAdaptiveFetchSize()
+    {
+        this.fetchSizeAdvisor = null;
+    }
+
+    /**
+     * @return The {@link FetchSizeAdvisor} in use or null if adaptive fetch size is not enabled
+     */
+    public FetchSizeAdvisor getFetchSizeAdvisor()
+    {
+        return this.fetchSizeAdvisor;
+    }
+
+    /**
+     * Method to set the executor running the asynchronous operations of this SQLManager.
+     * Asynchronous operations run concurrently, so they are meant for SQLManagers using a DataSource.
+     * @param asyncExecutor The {@link AsyncExecutor} to use, null to use the shared default one
+     */
+    public void setAsyncExecutor(final AsyncExecutor asyncExecutor)
+    {
+        this.asyncExecutor = asyncExecutor;
+    }
+
+    /**
+     * Method to get the executor running the asynchronous operations of this SQLManager
+     * @return The {@link AsyncExecutor} in use: unless set, a shared one with
+     * {@link AsyncExecutor#DEFAULT_MAX_CONCURRENCY} tasks running on virtual threads where available
+     */
+    public AsyncExecutor getAsyncExecutor()
+    {
+        if (this.asyncExecutor!=null)
+        {
+            return this.asyncExecutor;
+        }
+        synchronized (SQLManager.class)
+        {
+            if (defaultAsyncExecutor==null)
+            {
+                defaultAsyncExecutor = AsyncExecutor.newExecutor(AsyncExecutor.DEFAULT_MAX_CONCURRENCY, AsyncExecutor.DEFAULT_MAX_QUEUED);
+            }
+            return defaultAsyncExecutor;
+        }
+    }
+
+    /**
+     * Method to get the execution metrics of this SQLManager
+     * @return The {@link SQLManagerStats} (also registered in JMX for named instances)
+     */
+    public SQLManagerStats getStats()
+    {
+        return this.stats;
+    }
+
+    /**
+     * Method useful for SQL SELECT
+     * @param preparedStatement The prepared statement to execute
+     * @param parameters List of {@link SQLParameter} to use to complete the prepared statement
+     * @return Returns a RowSetDynaClass containing returned rows
+     * @throws SQLException 
+     */
+    public RowSetDynaClass dynaSelect(final String preparedStatement, final SQLParameter[] params) throws SQLException
+    {
+    	final StatementTimer timer = new StatementTimer();
+        if (params==null)
+        {
+            log.debug("Going to execute a query without parameters.");
+        }
+        else if (log.isDebugEnabled())
+        {
+            debugParameters(params);
+        }
+        Connection dbConn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        long rows = 0;
+        boolean failed = true;
+        
+        try
+        {
+            dbConn = getReadConnection();
+            pstmt = prepareStatement(dbConn, preparedStatement);
+            applyStatementOptions(pstmt, preparedStatement, 0);
+            ParameterBinder.bind(pstmt, params);
+            timer.prepared();
+
+            rs = pstmt.executeQuery();
+            timer.executed();
+            RowSetDynaClass rowSetDynaClass = new RowSetDynaClass(rs, false);
+            rows = rowSetDynaClass.getRows().size();
+            failed = false;
+            if (log.isDebugEnabled())
+            {
+                log.debug("Prepared statement '"+preparedStatement+"' returned '"+rows+"' rows in '"+timer.getElapsedMillis()+"' millis with following properties:");
+        		DynaProperty[] properties = rowSetDynaClass.getDynaProperties();
+        		for (int i=0; i<properties.length; i++)
+        		{
+        			log.debug("Name: '"+properties[i].getName()+"'; Type: '"+properties[i].getType().getName()+"'");
+        		}
+            }
+            return rowSetDynaClass;
+        }
+        catch(SQLException e)
+        {
+            reportReadFailure(dbConn, e);
+            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+            throw e;
+        }
+        finally
+        {
+            releaseResources(rs, pstmt, dbConn, timer);
+            recordExecution(preparedStatement, params, timer, rows, failed);
+            observeRows(preparedStatement, rows, failed);
+        }
+    }
+
+    /**
+     * Method useful for SQL SELECT returning many rows of numbers: the result is stored by column
+     * in primitive arrays instead of a DynaBean with boxed values for each row
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @return Returns a {@link ColumnarResult} containing returned rows
+     * @throws SQLException
+     */
+    public ColumnarResult columnarSelect(final String preparedStatement, final SQLParameter[] params) throws SQLException
+    {
+        final StatementTimer timer = new StatementTimer();
+        if (params==null)
+        {
+            log.debug("Going to execute a query without parameters.");
+        }
+        else if (log.isDebugEnabled())
+        {
+            debugParameters(params);
+        }
+        Connection dbConn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        long rows = 0;
+        boolean failed = true;
+
+        try
+        {
+            dbConn = getReadConnection();
+            pstmt = prepareStatement(dbConn, preparedStatement);
+            applyStatementOptions(pstmt, preparedStatement, 0);
+            ParameterBinder.bind(pstmt, params);
+            timer.prepared();
+
+            rs = pstmt.executeQuery();
+            timer.executed();
+            final ColumnarResult result = new ColumnarResult(rs);
+            rows = result.getRowCount();
+            failed = false;
+            if (log.isDebugEnabled())
+            {
+                log.debug("Prepared statement '"+preparedStatement+"' returned '"+rows+"' rows in '"+timer.getElapsedMillis()+"' millis ("+result.getSizeInBytes()+" bytes)");
+            }
+            return result;
+        }
+        catch(SQLException e)
+        {
+            reportReadFailure(dbConn, e);
+            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+            throw e;
+        }
+        finally
+        {
+            releaseResources(rs, pstmt, dbConn, timer);
+            recordExecution(preparedStatement, params, timer, rows, failed);
+            observeRows(preparedStatement, rows, failed);
+        }
+    }
+
+    /**
+     * Method useful for SQL SELECT whose result can be cached (see {@link #enableResultCache(int, long, long)}).
+     * Inside a {@link UnitOfWork} the cache is not used, so that uncommitted rows are never shared.
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param readTables The tables read by the query: an insert, update or delete on one of them invalidates the cached result
+     * @return Returns a RowSetDynaClass containing returned rows, shared with other callers if cached
+     * @throws SQLException
+     */
+    public RowSetDynaClass dynaSelect(final String preparedStatement, final SQLParameter[] params, final String[] readTables) throws SQLException
+    {
+        final ResultCache cache = this.resultCache;
+        if (cache==null || this.unitOfWork.get()!=null)
+        {
+            return dynaSelect(preparedStatement, params);
+        }
+        final Object key = ResultCache.getKey(preparedStatement, params, DYNA_SELECT_RESULT);
+        RowSetDynaClass result = (RowSetDynaClass)cache.get(key);
+        if (result==null)
+        {
+            final long[] generations = cache.getGenerations(readTables);
+            result = dynaSelect(preparedStatement, params);
+            cache.put(key, result, readTables, generations);
+        }
+        return result;
+    }
+
+    /**
+     * Method useful for SQL SELECT returning many rows: each row is handed to the {@link RowHandler}
+     * while the cursor is open, so the result is never held in memory
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param handler The {@link RowHandler} receiving the rows
+     * @return The number of rows handed to the handler
+     * @throws SQLException
+     */
+    public int streamSelect(final String preparedStatement, final SQLParameter[] params, final RowHandler handler) throws SQLException
+    {
+        return streamSelect(preparedStatement, params, handler, 0);
+    }
+
+    /**
+     * Method useful for SQL SELECT returning many rows: each row is handed to the {@link RowHandler}
+     * while the cursor is open, so the result is never held in memory
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param handler The {@link RowHandler} receiving the rows
+     * @param fetchSize The number of rows to get from the database in each round trip, 0 to use the one of the
+     * {@link StatementOptions} or the adaptive one ({@link #DEFAULT_FETCH_SIZE} if none)
+     * @return The number of rows handed to the handler
+     * @throws SQLException
+     */
+    public int streamSelect(final String preparedStatement, final SQLParameter[] params, final RowHandler handler, final int fetchSize) throws SQLException
+    {
+        final StatementTimer timer = new StatementTimer();
+        Connection dbConn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        int rows = 0;
+        boolean failed = true;
+        try
+        {
+            dbConn = getReadConnection();
+            pstmt = prepareStatement(dbConn, preparedStatement);
+            int rowsPerFetch = applyStatementOptions(pstmt, preparedStatement, DEFAULT_FETCH_SIZE);
+            if (fetchSize>0 && fetchSize!=rowsPerFetch && (pstmt.getMaxRows()==0 || fetchSize<=pstmt.getMaxRows()))
+            {
+                pstmt.setFetchSize(fetchSize);
+                rowsPerFetch = fetchSize;
+            }
+            ParameterBinder.bind(pstmt, params);
+            timer.prepared();
+            rs = pstmt.executeQuery();
+            timer.executed();
+            rows = streamResultSet(rs, handler, rowsPerFetch);
+            if (log.isDebugEnabled())
+            {
+                log.debug("Prepared statement '"+preparedStatement+"' streamed '"+rows+"' rows in '"+timer.getElapsedMillis()+"' millis");
+            }
+            failed = false;
+            return rows;
+        }
+        catch(SQLException e)
+        {
+            reportReadFailure(dbConn, e);
+            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+            throw e;
+        }
+        finally
+        {
+            releaseResources(rs, pstmt, dbConn, timer);
+            recordExecution(preparedStatement, params, timer, rows, failed);
+            observeRows(preparedStatement, rows, failed);
+        }
+    }
+
+    /**
+     * Method useful for SQL SELECT returning objects of a class instead of DynaBeans: the mapping of the
+     * columns to setters, public fields or constructor parameters is resolved once for each select and class
+     * and values are read with typed getters (see {@link RowMapper})
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param type The class of the returned objects
+     * @return A List with an object of class <code>type</code> for each row
+     * @throws SQLException If the select or the mapping fails
+     */
+    public List select(final String preparedStatement, final SQLParameter[] params, final Class type) throws SQLException
+    {
+        final List result = new ArrayList();
+        streamSelect(preparedStatement, params, new RowHandler()
+        {
+            private RowMapper mapper = null;
+
+            public boolean handleRow(final ResultSet rs) throws SQLException
+            {
+                if (this.mapper==null)
+                {
+                    this.mapper = getRowMapper(preparedStatement, type, rs);
+                }
+                result.add(this.mapper.map(rs));
+                return true;
+            }
+        });
+        return result;
+    }
+
+    private RowMapper getRowMapper(final String preparedStatement, final Class type, final ResultSet rs) throws SQLException
+    {
+        final List key = Arrays.asList(new Object[] {preparedStatement, type});
+        RowMapper mapper = (RowMapper)this.rowMappers.get(key);
+        if (mapper==null)
+        {
+            mapper = new RowMapper(type, rs.getMetaData());
+            synchronized (this)
+            {
+                final Map newMappers = this.rowMappers.size()<MAX_ROW_MAPPERS ? new HashMap(this.rowMappers) : new HashMap();
+                newMappers.put(key, mapper);
+                this.rowMappers = newMappers;
+            }
+        }
+        return mapper;
+    }
+
+    /**
+     * Method to hand each row of an open ResultSet to a {@link RowHandler}
+     * @param rs The ResultSet positioned before the first row: it is not closed
+     * @param handler The {@link RowHandler} receiving the rows
+     * @param fetchSize The number of rows to get from the database in each round trip, 0 for the driver default
+     * @return The number of rows handed to the handler
+     * @throws SQLException
+     */
+    protected int streamResultSet(final ResultSet rs, final RowHandler handler, final int fetchSize) throws SQLException
+    {
+        if (fetchSize>0)
+        {
+            rs.setFetchSize(fetchSize);
+        }
+        int rows = 0;
+        while (rs.next())
+        {
+            rows++;
+            if (!handler.handleRow(rs))
+            {
+                log.debug("RowHandler stopped the iteration at row '"+rows+"'");
+                break;
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Method useful for SQL SELECT returning an unknown number of rows: the rows exceeding the heap budget are
+     * written to a temporary file (see {@link SpillableResult}). The result must be closed to delete the file.
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param heapBudget The estimated bytes of rows to keep in memory
+     * @return The {@link SpillableResult} containing the rows
+     * @throws SQLException
+     * @throws IOException If the temporary file cannot be written
+     */
+    public SpillableResult spillableSelect(final String preparedStatement, final SQLParameter[] params, final long heapBudget) throws SQLException, IOException
+    {
+        final SpillableResult result = new SpillableResult(heapBudget);
+        final IOException[] error = new IOException[1];
+        boolean completed = false;
+        try
+        {
+            streamSelect(preparedStatement, params, new RowHandler()
+            {
+                public boolean handleRow(final ResultSet rs) throws SQLException
+                {
+                    try
+                    {
+                        result.add(rs);
+                        return true;
+                    }
+                    catch (IOException e)
+                    {
+                        error[0] = e;
+                        return false;
+                    }
+                }
+            });
+            if (error[0]!=null)
+            {
+                throw error[0];
+            }
+            result.complete();
+            completed = true;
+            return result;
+        }
+        finally
+        {
+            if (!completed)
+            {
+                result.close();
+            }
+        }
+    }
+
+    /**
+     * Method to write the result of a SQL SELECT as UTF-8 CSV while the cursor is open (see {@link ResultExporter})
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param out The stream to write to: it is not closed
+     * @return The number of rows written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long exportCsv(final String preparedStatement, final SQLParameter[] params, final OutputStream out) throws SQLException, IOException
+    {
+        return exportCsv(preparedStatement, params, Channels.newChannel(out));
+    }
+
+    /**
+     * Method to write the result of a SQL SELECT as UTF-8 CSV while the cursor is open (see {@link ResultExporter})
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param out The channel to write to: it is not closed
+     * @return The number of rows written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long exportCsv(final String preparedStatement, final SQLParameter[] params, final WritableByteChannel out) throws SQLException, IOException
+    {
+        return export(preparedStatement, params, new ResultExporter(ResultExporter.CSV, out, DEFAULT_EXPORT_CHARSET), DEFAULT_FETCH_SIZE);
+    }
+
+    /**
+     * Method to write the result of a SQL SELECT as a UTF-8 JSON array while the cursor is open (see {@link ResultExporter})
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param out The stream to write to: it is not closed
+     * @return The number of rows written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long exportJson(final String preparedStatement, final SQLParameter[] params, final OutputStream out) throws SQLException, IOException
+    {
+        return exportJson(preparedStatement, params, Channels.newChannel(out));
+    }
+
+    /**
+     * Method to write the result of a SQL SELECT as a UTF-8 JSON array while the cursor is open (see {@link ResultExporter})
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param out The channel to write to: it is not closed
+     * @return The number of rows written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long exportJson(final String preparedStatement, final SQLParameter[] params, final WritableByteChannel out) throws SQLException, IOException
+    {
+        return export(preparedStatement, params, new ResultExporter(ResultExporter.JSON, out, DEFAULT_EXPORT_CHARSET), DEFAULT_FETCH_SIZE);
+    }
+
+    /**
+     * Method to write the result of a SQL SELECT through a configured {@link ResultExporter}
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param exporter The {@link ResultExporter} writing the rows
+     * @param fetchSize The number of rows to get from the database in each round trip
+     * @return The number of rows written
+     * @throws SQLException
+     * @throws IOException
+     */
+    public long export(final String preparedStatement, final SQLParameter[] params, final ResultExporter exporter, final int fetchSize) throws SQLException, IOException
+    {
+        streamSelect(preparedStatement, params, exporter, fetchSize);
+        exporter.finish();
+        return exporter.getRows();
+    }
+
+    /**
+     * Method useful for SQL SELECT
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param outputSQLType A java.sql.Types type of return value
+     * @return The {@link SPParameter} containing the returned value
+     */
+    public SQLParameter simpleSelect(final String preparedStatement, SQLParameter[] params, final int outputSQLType)
+    {
+        final StatementTimer timer = new StatementTimer();
+        if (params==null)
+        {
+            log.debug("Going to execute a query without parameters.");
+        }
+        else if (log.isDebugEnabled())
+        {
+            debugParameters(params);
+        }
+        Connection dbConn = null;
+        PreparedStatement pstmt = null;
+        ResultSet rs = null;
+        int rows = 0;
+        boolean failed = true;
+        try
+        {
+            dbConn = getReadConnection();
+            pstmt = prepareStatement(dbConn, preparedStatement);
+            applyStatementOptions(pstmt, preparedStatement, 0);
+            ParameterBinder.bind(pstmt, params);
+            timer.prepared();
+
+            rs = pstmt.executeQuery();
+            timer.executed();
+            if (log.isDebugEnabled())
+            {
+                log.debug("Prepared statement '"+preparedStatement+"' succesfully executed!");
+            }
+            while (rs.next())
+            {
+                final SQLParameter result = new SQLParameter(outputSQLType, (Serializable)rs.getObject(1));
+                rows = 1;
+                failed = false;
+                return result;
+            }
+            failed = false;
+            log.info("Prepared statement '"+preparedStatement+"' returned '0' rows");
+        }
+        catch(SQLException e)
+        {
+            reportReadFailure(dbConn, e);
+            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+        }
+        catch(Exception e)
+        {
+            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+        }
+        finally
+        {
+            releaseResources(rs, pstmt, dbConn, timer);
+            recordExecution(preparedStatement, params, timer, rows, failed);
+            observeRows(preparedStatement, rows, failed);
+        }
+
+        return new SQLParameter(outputSQLType, null);
+    }
+
+    /**
+     * Method useful for SQL SELECT whose result can be cached (see {@link #enableResultCache(int, long, long)}).
+     * Only not null values are cached and inside a {@link UnitOfWork} the cache is not used.
+     * @param preparedStatement The prepared statement to execute
+     * @param params List of {@link SQLParameter} to use to complete the prepared statement
+     * @param outputSQLType A java.sql.Types type of return value
+     * @param readTables The tables read by the query: an insert, update or delete on one of them invalidates the cached result
+     * @return The {@link SPParameter} containing the returned value
+     */
+    public SQLParameter simpleSelect(final String preparedStatement, final SQLParameter[] params, final int outputSQLType, final String[] readTables)
+    {
+        final ResultCache cache = this.resultCache;
+        if (cache==null || this.unitOfWork.get()!=null)
+        {
+            return simpleSelect(preparedStatement, params, outputSQLType);
+        }
+        final Object key = ResultCache.getKey(preparedStatement, params, outputSQLType);
+        SQLParameter result = (SQLParameter)cache.get(key);
+        if (result==null)
+        {
+            final long[] generations = cache.getGenerations(readTables);
+            result = simpleSelect(preparedStatement, params, outputSQLType);
+            if (result.getValue()!=null)
+            {
+                cache.put(key, result, readTables, generations);
+            }
+        }
+        return result;
+    }
+
+    protected int executeSimpleQuery(final String preparedStatement, final SQLParameter[] params)
+    {
+        return executeSimpleQuery(preparedStatement, params, null);
+    }
+
+    protected int executeSimpleQuery(final String preparedStatement, final PrepStmtInputBean params)
+    {
+        return executeSimpleQuery(preparedStatement, null, params);
+    }
+
+    private int executeSimpleQuery(final String preparedStatement, final SQLParameter[] params, final PrepStmtInputBean bean)
+    {
+        final StatementTimer timer = new StatementTimer();
+        if (params==null && bean==null)
+        {
+            log.debug("Going to execute a query without parameters.");
+        }
+        else if (log.isDebugEnabled())
+        {
+            debugParameters(params, bean);
+        }
+        Connection dbConn = null;
+        PreparedStatement pstmt = null;
+        int result = -1;
+        try
+        {
+            dbConn = getConnection();
+            pstmt = prepareStatement(dbConn, preparedStatement);
+            applyQueryTimeout(pstmt, preparedStatement);
+            bindParameters(pstmt, params, bean);
+            timer.prepared();
+
+            result = pstmt.executeUpdate();
+            timer.executed();
+            if (log.isDebugEnabled())
+            {
+                log.debug("Prepared statement '"+preparedStatement+"' correctly executed ("+result+")");
+            }
+            return result;
+        }
+        catch(SQLException e)
+        {
+            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+        }
+        catch(Exception e)
+        {
+            log.error("Error executing prepared statement '"+preparedStatement+"'", e);
+        }
+        finally
+        {
+            releaseResources(null, pstmt, dbConn, timer);
+            invalidateResultCache(preparedStatement);
+            recordExecution(preparedStatement, bean!=null ? (Object)bean : params, timer, Math.max(result, 0), result<0);
+        }
+
+        return -1;
+    }
+    
+    protected int[] executeBatch(final String preparedStatement, final List parameters) throws SQLException
+    {
+        if (parameters==null || parameters.isEmpty())
+        {
+            log.debug("Nothing to execute in batch for prepared statement '"+preparedStatement+"'");
+            return new int[0];
+        }
+        final StatementTimer timer = new StatementTimer();
+        final int rows = parameters.size();
+        final int flushSize = this.batchSize;
+        final int[] result = new int[rows];
+        Connection dbConn = null;
+        PreparedStatement pstmt = null;
+        long affected = 0;
+        boolean failed = true;
+        int flushed = 0;
+        try
+        {
+            dbConn = getConnection();
+            pstmt = prepareStatement(dbConn, preparedStatement);
+            applyQueryTimeout(pstmt, preparedStatement);
+            timer.prepared();
+            for (int i=0; i<rows; i++)
+            {
+                final Object row = parameters.get(i);
+                if (row instanceof PrepStmtInputBean)
+                {
+                    ((PrepStmtInputBean)row).bind(pstmt);
+                }
+                else
+                {
+                    ParameterBinder.bind(pstmt, (SQLParameter[])row);
+                }
+                pstmt.addBatch();
+                if (i+1-flushed==flushSize || i+1==rows)
+                {
+                    final int[] counts = pstmt.executeBatch();
+                    System.arraycopy(counts, 0, result, flushed, Math.min(counts.length, rows-flushed));
+                    for (int j=0; j<counts.length; j++)
+                    {
+                        affected += Math.max(counts[j], 0);
+                    }
+                    if (log.isDebugEnabled())
+                    {
+                        log.debug("Prepared statement '"+preparedStatement+"' flushed rows "+(flushed+1)+"-"+(i+1)+" of "+rows);
+                    }
+                    flushed = i+1;
+                }
+            }
+            failed = false;
+            return result;
+        }
+        catch(BatchUpdateException e)
+        {
+            // the update counts of the rows flushed before the failing chunk followed by the driver ones
+            final int[] partial = e.getUpdateCounts()!=null ? e.getUpdateCounts() : new int[0];
+            final int[] counts = new int[flushed+partial.length];
+            System.arraycopy(result, 0, counts, 0, flushed);
+            System.arraycopy(partial, 0, counts, flushed, partial.length);
+            for (int j=0; j<partial.length; j++)
+            {
+                affected += Math.max(partial[j], 0);
+            }
+            log.error("Error executing batch of prepared statement '"+preparedStatement+"' after "+counts.length+" of "+rows+" rows, update counts "+describeUpdateCounts(counts), e);
+            try{if (pstmt!=null)pstmt.clearBatch();}catch(Exception ce){log.error("Error clearing batch", ce);}
+            final BatchUpdateException be = new BatchUpdateException(e.getMessage(), e.getSQLState(), e.getErrorCode(), counts);
+            be.initCause(e);
+            be.setNextException(e.getNextException());
+            throw be;
+        }
+        catch(SQLException e)
+        {
+            log.error("Error executing batch of prepared statement '"+preparedStatement+"' after "+flushed+" of "+rows+" rows", e);
+            try{if (pstmt!=null)pstmt.clearBatch();}catch(Exception ce){log.error("Error clearing batch", ce);}
+            throw e;
+        }
+        finally
+        {
+            releaseResources(null, pstmt, dbConn, timer);
+            invalidateResultCache(preparedStatement);
+            recordExecution(preparedStatement, parameters, timer, affected, failed);
+        }
+    }
+
+    private SQLFuture submit(final AsyncTask task)
+    {
+        try
+        {
+            getAsyncExecutor().execute(task);
+        }
+        catch (SQLException e)
+        {
+            log.error("Error submitting asynchronous SQL operation", e);
+            task.future.fail(e);
+        }
+        return task.future;
+    }
+
+    private static void debugParameters(final SQLParameter[] parameters)
+    {
+        for (int i=0; i<parameters.length; i++)
+        {
+            log.debug((i+1)+") Going to add parameter "+parameters[i]);
+        }
+    }
+
+    private static void debugParameters(final SQLParameter[] parameters, final PrepStmtInputBean bean)
+    {
+        if (bean==null)
+        {
+            debugParameters(parameters);
+            return;
+        }
+        for (int i=0; i<bean.getSize(); i++)
+        {
+            log.debug((i+1)+") Going to add parameter "+bean.getInputParam(i));
+        }
+    }
+
+    private static void bindParameters(final PreparedStatement pstmt, final SQLParameter[] parameters, final PrepStmtInputBean bean) throws SQLException
+    {
+        if (bean!=null)
+        {
+            bean.bind(pstmt);
+        }
+        else
+        {
+            ParameterBinder.bind(pstmt, parameters);
+        }
+    }
+
+    private static List toParametersList(final PrepStmtInputBean[] parameters)
+    {
+        if (parameters==null)
+        {
+            return null;
+        }
+        return Arrays.asList(parameters);
+    }
+    
+    /**
+     * Method to get the Connection to work with: the one of the active {@link UnitOfWork},
+     * a new one from the DataSource or the one this SQLManager is bound to
+     * @return The Connection to use
+     * @throws SQLException
+     */
+    protected Connection getConnection() throws SQLException
+    {
+        final UnitOfWork current = (UnitOfWork)this.unitOfWork.get();
+        if (current!=null)
+        {
+            return current.getConnection();
+        }
+        if (this.dataSource!=null)
+        {
+            return openConnection(null);
+        }
+        return this.connection;
+    }
+
+    /**
+     * Method to get the Connection to run a read only query with: one from a replica
+     * if a {@link ReplicaRouter} is set, a replica is available and no {@link UnitOfWork} is active,
+     * otherwise {@link #getConnection()}
+     * @return The Connection to use
+     * @throws SQLException
+     */
+    protected Connection getReadConnection() throws SQLException
+    {
+        final ReplicaRouter router = this.replicaRouter;
+        if (router!=null && this.unitOfWork.get()==null)
+        {
+            return openConnection(router);
+        }
+        return getConnection();
+    }
+
+    /**
+     * Method to get a new Connection from a replica, if available, or from the DataSource,
+     * after taking a permit from the {@link ConcurrencyLimiter} if one is set
+     * @param router The {@link ReplicaRouter} to try first, can be null
+     * @return The Connection to use
+     * @throws SQLException
+     */
+    private Connection openConnection(final ReplicaRouter router) throws SQLException
+    {
+        final ConcurrencyLimiter limiter = this.concurrencyLimiter;
+        final ConcurrencyLimiter.Permit permit = limiter!=null ? limiter.acquire() : null;
+        Connection conn = null;
+        try
+        {
+            if (router!=null)
+            {
+                conn = router.getConnection();
+            }
+            if (conn==null)
+            {
+                conn = this.dataSource.getConnection();
+            }
+        }
+        finally
+        {
+            if (conn==null && permit!=null)
+            {
+                permit.release();
+            }
+        }
+        if (permit!=null)
+        {
+            synchronized (this.permits)
+            {
+                this.permits.put(conn, permit);
+            }
+        }
+        return conn;
+    }
+
+    /**
+     * Method to report a failed read only query, so that an unhealthy replica can be ejected
+     * @param dbConn The Connection used, can be null
+     * @param e The error
+     */
+    protected void reportReadFailure(final Connection dbConn, final SQLException e)
+    {
+        final ReplicaRouter router = this.replicaRouter;
+        if (router!=null && dbConn!=null)
+        {
+            router.reportFailure(dbConn, e);
+        }
+    }
+
+    /**
+     * Method to prepare a statement, getting it from the statement cache if enabled
+     * @param dbConn The Connection to use
+     * @param preparedStatement The prepared statement SQL text
+     * @return The PreparedStatement
+     * @throws SQLException
+     */
+    protected PreparedStatement prepareStatement(final Connection dbConn, final String preparedStatement) throws SQLException
+    {
+        final StatementCache cache = this.statementCache;
+        if (cache!=null && dbConn==this.connection)
+        {
+            return cache.prepareStatement(dbConn, preparedStatement, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        }
+        return dbConn.prepareStatement(preparedStatement, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+    }
+
+    /**
+     * Method to prepare a stored procedure call, getting it from the callable statement cache if enabled
+     * @param dbConn The Connection to use
+     * @param callText The call text (eg. <code>{ call NAME(?,?) }</code>)
+     * @return The CallableStatement
+     * @throws SQLException
+     */
+    protected CallableStatement prepareCall(final Connection dbConn, final String callText) throws SQLException
+    {
+        final StatementCache cache = this.callableStatementCache;
+        if (cache!=null && dbConn==this.connection)
+        {
+            return cache.prepareCall(dbConn, callText);
+        }
+        return dbConn.prepareCall(callText);
+    }
+
+    /**
+     * Method to get the signature of the STORED PROCEDURE to call, reading the database metadata only the first time
+     * @param dbConn The Connection to use
+     * @param spib The {@link SPInputBean} bean containing data to execute the stored procedure
+     * @return The {@link ProcedureSignature} or null if metadata are not enabled, not available
+     * or not matching the number of parameters of <code>spib</code>
+     * @throws SQLException
+     */
+    protected ProcedureSignature getProcedureSignature(final Connection dbConn, final SPInputBean spib) throws SQLException
+    {
+        final Map signatures = this.procedureSignatures;
+        if (signatures==null)
+        {
+            return null;
+        }
+        Object signature = signatures.get(spib.spName);
+        if (signature==null)
+        {
+            signature = discoverProcedureSignature(dbConn.getMetaData(), spib.spName);
+            if (signature==null)
+            {
+                log.warn("No metadata found for STORED PROCEDURE '"+spib.spName+"': using the SPInputBean types");
+                signature = NO_SIGNATURE;
+            }
+            else if (log.isDebugEnabled())
+            {
+                log.debug("Discovered "+signature);
+            }
+            synchronized (this)
+            {
+                if (this.procedureSignatures!=null)
+                {
+                    final Map newSignatures = new HashMap(this.procedureSignatures);
+                    newSignatures.put(spib.spName, signature);
+                    this.procedureSignatures = newSignatures;
+                }
+            }
+        }
+        if (signature==NO_SIGNATURE)
+        {
+            return null;
+        }
+        final ProcedureSignature procedureSignature = (ProcedureSignature)signature;
+        if (procedureSignature.getInputCount()!=spib.inputParams.length || (spib.outputParams.length!=0 && procedureSignature.getOutputCount()!=spib.outputParams.length))
+        {
+            log.warn(procedureSignature+" does not match "+spib.inputParams.length+" input and "+spib.outputParams.length+" output parameters: using the SPInputBean types");
+            return null;
+        }
+        return procedureSignature;
+    }
+
+    /**
+     * Method to read the signature of a STORED PROCEDURE named <code>[[catalog.]schema.]name</code>
+     * @param metaData The DatabaseMetaData to read
+     * @param procedureName The STORED PROCEDURE name
+     * @return The {@link ProcedureSignature} or null if not found or ambiguous
+     * @throws SQLException
+     */
+    protected ProcedureSignature discoverProcedureSignature(final DatabaseMetaData metaData, final String procedureName) throws SQLException
+    {
+        String catalog = null;
+        String schema = null;
+        final int dot = procedureName.lastIndexOf('.');
+        if (dot>0)
+        {
+            final String qualifier = procedureName.substring(0, dot);
+            final int qualifierDot = qualifier.lastIndexOf('.');
+            if (qualifierDot>0)
+            {
+                catalog = qualifier.substring(0, qualifierDot);
+                schema = qualifier.substring(qualifierDot+1);
+            }
+            else
+            {
+                schema = qualifier;
+            }
+        }
+        return readProcedureSignature(metaData, procedureName, catalog, schema, procedureName.substring(dot+1));
+    }
+
+    /**
+     * Method to read the signature of a STORED PROCEDURE through DatabaseMetaData.getProcedureColumns:
+     * overloaded procedures (told apart by SPECIFIC_NAME, Oracle OVERLOAD or ORDINAL_POSITION starting again) are ambiguous
+     * @param metaData The DatabaseMetaData to read
+     * @param procedureName The STORED PROCEDURE name as called
+     * @param catalog The catalog (package for Oracle) or null
+     * @param schema The schema or null
+     * @param name The unqualified procedure name
+     * @return The {@link ProcedureSignature} or null if not found or ambiguous
+     * @throws SQLException
+     */
+    protected ProcedureSignature readProcedureSignature(final DatabaseMetaData metaData, final String procedureName, final String catalog, final String schema, final String name) throws SQLException
+    {
+        final ResultSet rs = metaData.getProcedureColumns(toStoredCase(metaData, catalog), toStoredCase(metaData, schema), toStoredCase(metaData, name), "%");
+        try
+        {
+            final ResultSetMetaData columns = rs.getMetaData();
+            final boolean hasSpecificName = hasColumn(columns, "SPECIFIC_NAME");
+            final boolean hasOverload = hasColumn(columns, "OVERLOAD");
+            final boolean hasOrdinal = hasColumn(columns, "ORDINAL_POSITION");
+            final List directions = new ArrayList();
+            final List sqlTypes = new ArrayList();
+            String owner = null;
+            int lastOrdinal = -1;
+            while (rs.next())
+            {
+                String rowOwner = rs.getString("PROCEDURE_CAT")+"."+rs.getString("PROCEDURE_SCHEM")+"."+rs.getString("PROCEDURE_NAME");
+                if (hasSpecificName)
+                {
+                    rowOwner += " ("+rs.getString("SPECIFIC_NAME")+")";
+                }
+                if (hasOverload)
+                {
+                    rowOwner += " (overload "+rs.getString("OVERLOAD")+")";
+                }
+                if (owner==null)
+                {
+                    owner = rowOwner;
+                }
+                else if (!owner.equals(rowOwner))
+                {
+                    log.warn("STORED PROCEDURE '"+procedureName+"' is ambiguous: found both '"+owner+"' and '"+rowOwner+"'");
+                    return null;
+                }
+                final short direction = rs.getShort("COLUMN_TYPE");
+                // result set columns have ordinal positions of their own
+                if (hasOrdinal && direction!=DatabaseMetaData.procedureColumnResult)
+                {
+                    final int ordinal = rs.getInt("ORDINAL_POSITION");
+                    if (ordinal<=lastOrdinal)
+                    {
+                        log.warn("STORED PROCEDURE '"+procedureName+"' is ambiguous: '"+owner+"' is overloaded");
+                        return null;
+                    }
+                    lastOrdinal = ordinal;
+                }
+                directions.add(new Integer(direction));
+                sqlTypes.add(new Integer(getDeclaredType(rs.getInt("DATA_TYPE"), rs.getString("TYPE_NAME"))));
+            }
+            if (owner==null)
+            {
+                return null;
+            }
+            final int[] directionsArray = new int[directions.size()];
+            final int[] sqlTypesArray = new int[sqlTypes.size()];
+            for (int i=0; i<directionsArray.length; i++)
+            {
+                directionsArray[i] = ((Integer)directions.get(i)).intValue();
+                sqlTypesArray[i] = ((Integer)sqlTypes.get(i)).intValue();
+            }
+            return new ProcedureSignature(procedureName, directionsArray, sqlTypesArray);
+        }
+        finally
+        {
+            closeResources(rs, null, null);
+        }
+    }
+
+    private static boolean hasColumn(final ResultSetMetaData columns, final String name) throws SQLException
+    {
+        for (int i=1; i<=columns.getColumnCount(); i++)
+        {
+            if (name.equalsIgnoreCase(columns.getColumnName(i)))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Method to map the type of a STORED PROCEDURE parameter read from the metadata to the java.sql.Types used to bind it
+     * @param dataType The DATA_TYPE metadata column
+     * @param typeName The TYPE_NAME metadata column
+     * @return The java.sql.Types type
+     */
+    protected int getDeclaredType(final int dataType, final String typeName)
+    {
+        return dataType;
+    }
+
+    private static String toStoredCase(final DatabaseMetaData metaData, final String identifier) throws SQLException
+    {
+        if (identifier==null)
+        {
+            return null;
+        }
+        if (identifier.length()>1 && identifier.charAt(0)=='"' && identifier.charAt(identifier.length()-1)=='"')
+        {
+            return identifier.substring(1, identifier.length()-1);
+        }
+        if (metaData.storesUpperCaseIdentifiers())
+        {
+            return identifier.toUpperCase();
+        }
+        if (metaData.storesLowerCaseIdentifiers())
+        {
+            return identifier.toLowerCase();
+        }
+        return identifier;
+    }
+
+    /**
+     * Utility method to release DB access structures: cached statements are given back
+     * to the statement cache and the Connection this SQLManager is bound to (or the one
+     * of the active {@link UnitOfWork}) is left open
+     * @param rs The Resultset to be closed
+     * @param stmt The Statement to be closed
+     * @param dbConn The Connection to be closed
+     */
+    protected void releaseResources(final ResultSet rs, final Statement stmt, final Connection dbConn)
+    {
+        releaseResources(rs, stmt, dbConn, null);
+    }
+
+    /**
+     * Utility method to release DB access structures (see {@link #releaseResources(ResultSet, Statement, Connection)}),
+     * giving the execute time of the statement to the {@link ConcurrencyLimiter} as latency: the fetch time is left out
+     * because it includes the time spent by the caller handling the rows
+     * @param rs The Resultset to be closed
+     * @param stmt The Statement to be closed
+     * @param dbConn The Connection to be closed
+     * @param timer The timer of the statement, null to use the time the Connection has been held
+     */
+    protected void releaseResources(final ResultSet rs, final Statement stmt, final Connection dbConn, final StatementTimer timer)
+    {
+        try{if (rs!=null)rs.close();}catch(Exception e){log.error("Error closing resultSet", e);}
+        final StatementCache cache = this.statementCache;
+        final StatementCache callCache = this.callableStatementCache;
+        if (stmt!=null && (cache==null || !cache.release(stmt)) && (callCache==null || !callCache.release(stmt)))
+        {
+            try{stmt.close();}catch(Exception e){log.error("Error closing statement", e);}
+        }
+        if (dbConn!=null)
+        {
+            final ConcurrencyLimiter.Permit permit;
+            synchronized (this.permits)
+            {
+                permit = (ConcurrencyLimiter.Permit)this.permits.remove(dbConn);
+            }
+            if (permit!=null && timer==null)
+            {
+                permit.release();
+            }
+            else if (permit!=null)
+            {
+                permit.release(timer.isPrepared() ? timer.getExecuteMillis() : -1);
+            }
+        }
+        final ReplicaRouter router = this.replicaRouter;
+        final UnitOfWork current = (UnitOfWork)this.unitOfWork.get();
+        if (dbConn!=this.connection && (current==null || dbConn!=current.getConnection()) && (router==null || !router.release(dbConn)))
+        {
+            closeResources(dbConn);
+        }
+    }
+
+    /**
+     * Method to invalidate the cached results reading the table modified by a statement:
+     * if the modified table is not recognized (eg. DDL statements) the whole cache is cleared
+     * @param sql The executed SQL text
+     */
+    protected void invalidateResultCache(final String sql)
+    {
+        final UnitOfWork current = (UnitOfWork)this.unitOfWork.get();
+        if (current!=null && this.resultCache!=null)
+        {
+            current.modified(sql);
+        }
+        else if (current!=null)
+        {
+            current.written();
+        }
+        invalidateCachedResults(sql);
+    }
+
+    /**
+     * Method to record in the active {@link UnitOfWork}, if any, that a statement that may have changed data ran
+     * (eg. a STORED PROCEDURE), so that closing it without a commit rolls the changes back
+     */
+    protected void markUnitOfWorkWritten()
+    {
+        final UnitOfWork current = (UnitOfWork)this.unitOfWork.get();
+        if (current!=null)
+        {
+            current.written();
+        }
+    }
+
+    /**
+     * Method to invalidate the cached results reading the table modified by a statement,
+     * without recording the statement in the active {@link UnitOfWork}
+     * @param sql The executed SQL text
+     */
+    void invalidateCachedResults(final String sql)
+    {
+        final ResultCache cache = this.resultCache;
+        if (cache==null)
+        {
+            return;
+        }
+        final String table = ResultCache.getModifiedTable(sql);
+        if (table!=null)
+        {
+            cache.invalidate(table);
+        }
+        else
+        {
+            log.debug("Unknown table modified by '"+sql+"': clearing the result cache");
+            cache.clear();
+        }
+    }
+
+    /**
+     * Method to apply the {@link StatementOptions} of a statement, or the default ones, before its execution.
+     * The fetch size is the one of the options, else the adaptive one, else <code>defaultFetchSize</code>.
+     * @param stmt The statement to execute
+     * @param sql The SQL text of the statement or the name of the STORED PROCEDURE
+     * @param defaultFetchSize The fetch size to use if none is configured, 0 for the driver default
+     * @return The fetch size set on the statement, 0 for the driver default
+     * @throws SQLException
+     */
+    protected int applyStatementOptions(final Statement stmt, final String sql, final int defaultFetchSize) throws SQLException
+    {
+        final StatementOptions options = getEffectiveStatementOptions(sql);
+        int fetchSize = options==null ? 0 : options.getFetchSize();
+        final FetchSizeAdvisor advisor = this.fetchSizeAdvisor;
+        if (fetchSize==0 && advisor!=null)
+        {
+            fetchSize = advisor.getFetchSize(sql);
+        }
+        if (fetchSize==0)
+        {
+            fetchSize = defaultFetchSize;
+        }
+        final int maxRows = options==null ? 0 : options.getMaxRows();
+        if (maxRows>0 && fetchSize>maxRows)
+        {
+            // drivers may reject a fetch size greater than max rows
+            fetchSize = maxRows;
+        }
+        // cached statements keep the values of previous executions: always set them
+        stmt.setMaxRows(maxRows);
+        stmt.setFetchSize(fetchSize);
+        stmt.setQueryTimeout(options==null ? 0 : options.getQueryTimeout());
+        return fetchSize;
+    }
+
+    /**
+     * Method to apply the query timeout of the {@link StatementOptions} of a statement, or of the default ones,
+     * to an insert, update, delete or batch: fetch size and max rows only matter to queries
+     * @param stmt The statement to execute
+     * @param sql The SQL text of the statement
+     * @throws SQLException
+     */
+    protected void applyQueryTimeout(final Statement stmt, final String sql) throws SQLException
+    {
+        final StatementOptions options = getEffectiveStatementOptions(sql);
+        stmt.setQueryTimeout(options==null ? 0 : options.getQueryTimeout());
+    }
+
+    private StatementOptions getEffectiveStatementOptions(final String sql)
+    {
+        final StatementOptions options = (StatementOptions)this.statementOptions.get(sql);
+        return options!=null ? options : this.defaultStatementOptions;
+    }
+
+    private void observeRows(final String sql, final long rows, final boolean failed)
+    {
+        final FetchSizeAdvisor advisor = this.fetchSizeAdvisor;
+        if (advisor!=null && !failed)
+        {
+            advisor.observe(sql, rows);
+        }
+    }
+
+    /**
+     * Method to record a statement execution in the {@link SQLManagerStats}: a failed execution
+     * marks the active {@link UnitOfWork} rollback only
+     * @param sql The executed SQL text (or the called stored procedure)
+     * @param startMillis The System.currentTimeMillis() when the execution started
+     * @param rows The number of rows returned or affected
+     * @param failed true if the execution ended with an error
+     */
+    protected void recordExecution(final String sql, final long startMillis, final long rows, final boolean failed)
+    {
+        recordExecution(sql, null, new StatementTimer(startMillis), rows, failed);
+    }
+
+    /**
+     * Method to record a statement execution in the {@link SQLManagerStats}: a failed execution
+     * marks the active {@link UnitOfWork} rollback only. An execution lasting more than
+     * {@link SQLManagerStats#getSlowStatementMillis()} is logged with its bind values and timings.
+     * @param sql The executed SQL text (or the called stored procedure)
+     * @param binds The bound values: a SQLParameter[], a {@link PrepStmtInputBean}, a {@link SPInputBean},
+     * a List of batch rows or null
+     * @param timer The {@link StatementTimer} of the execution
+     * @param rows The number of rows returned or affected
+     * @param failed true if the execution ended with an error
+     */
+    protected void recordExecution(final String sql, final Object binds, final StatementTimer timer, final long rows, final boolean failed)
+    {
+        timer.finished();
+        this.stats.record(sql, timer, rows, failed);
+        final long slowStatementMillis = this.stats.getSlowStatementMillis();
+        if (slowStatementMillis>=0 && timer.getElapsedMillis()>slowStatementMillis && slowLog.isWarnEnabled())
+        {
+            slowLog.warn("Slow statement '"+sql+"' with binds "+describeBinds(binds)+" "+(failed ? "failed" : "returned '"+rows+"' rows")+" in "+timer);
+        }
+        if (failed)
+        {
+            final UnitOfWork current = (UnitOfWork)this.unitOfWork.get();
+            if (current!=null)
+            {
+                current.operationFailed();
+            }
+        }
+    }
+
+    private static String describeUpdateCounts(final int[] counts)
+    {
+        final StringBuffer result = new StringBuffer("[");
+        for (int i=0; i<counts.length; i++)
+        {
+            if (i>0)
+            {
+                result.append(", ");
+            }
+            result.append(counts[i]);
+        }
+        return result.append(']').toString();
+    }
+
+    private static String describeBinds(final Object binds)
+    {
+        if (binds instanceof SQLParameter[])
+        {
+            return Arrays.asList((SQLParameter[])binds).toString();
+        }
+        if (binds instanceof PrepStmtInputBean)
+        {
+            final PrepStmtInputBean bean = (PrepStmtInputBean)binds;
+            final List result = new ArrayList();
+            for (int i=0; i<bean.getSize(); i++)
+            {
+                result.add(bean.getInputParam(i));
+            }
+            return result.toString();
+        }
+        if (binds instanceof SPInputBean)
+        {
+            final SPInputBean bean = (SPInputBean)binds;
+            final List result = new ArrayList();
+            for (int i=0; i<bean.inputParams.length; i++)
+            {
+                result.add(bean.getInputParam(i));
+            }
+            return result.toString();
+        }
+        if (binds instanceof List)
+        {
+            final List rows = (List)binds;
+            return rows.isEmpty() ? "[]" : describeBinds(rows.get(0))+" (first of "+rows.size()+" batch rows)";
+        }
+        return "[]";
+    }
+
+    /**
+     * Utility method to close DB access structures
+     * @param rs The Resultset to be closed
+     * @param stmt The Statement to be closed
+     * @param dbConn The Connection to be closed
+     */
+    protected static void closeResources(final ResultSet rs, final Statement stmt, final Connection dbConn)
+    {
+        try{if (rs!=null)rs.close();}catch(Exception e){log.error("Error closing resultSet", e);}
+        closeResources(stmt, dbConn);
+    }
+
+    /**
+     * Utility method to close DB access structures
+     * @param stmt The Statement to be closed
+     * @param dbConn The Connection to be closed
+     */
+    protected static void closeResources(final Statement stmt, final Connection dbConn)
+    {
+        try{if (stmt!=null)stmt.close();}catch(Exception e){log.error("Error closing statement", e);}
+        closeResources(dbConn);
+    }
+
+    /**
+     * Utility method to close DB access structures
+     * @param dbConn The Connection to be closed
+     */
+    protected static void closeResources(final Connection dbConn)
+    {
+        try{if (dbConn!=null)dbConn.close();}catch(Exception e){log.error("Error closing connection", e);}
+    }
+    
+    protected static DataSource setupDataSource(final String dsJNDIName)
+    {
+        Context env = null;
+		final String contextURI = dsJNDIName.startsWith(REF_PREFIX)?dsJNDIName:REF_PREFIX+dsJNDIName;
+		log.debug("Looking for '"+contextURI+"' in Context");
+        try
+        {
+            env = new InitialContext();
+            return (DataSource) env.lookup(contextURI);
+        }
+        catch(NamingException e)
+        {
+        	log.error("Error getting datasource '' from Context", e);
+        	return null;
+        }
+        finally
+        {
+            try{if (env!=null)env.close();}catch(NamingException e){log.error("Error closing context", e);}
+        }
+    }
+    
+    public abstract SPOutputBean executeSP(final SPInputBean spib) throws SQLException;
+
+    /**
+     * An operation completing its {@link SQLFuture} when run
+     */
+    private static abstract class AsyncTask implements Runnable
+    {
+        final SQLFuture future = new SQLFuture();
+
+        protected abstract Object call() throws SQLException;
+
+        public void run()
+        {
+            try
+            {
+                this.future.complete(call());
+            }
+            catch (Throwable t)
+            {
+                this.future.fail(t);
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,372 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Per statement fingerprint execution metrics of a {@link SQLManager}, exposed through JMX.
+ * A fingerprint is the SQL text with literals replaced by '?' and blanks collapsed.
+ * Lookups read a copy-on-write map without locking; counters are {@link StatementStats}.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class SQLManagerStats implements SQLManagerStatsMBean
+{
+    private final static Log log = LogFactory.getLog(SQLManagerStats.class);
+
+    public final static String JMX_DOMAIN = "org.brucalipto.sqlutil";
+    public final static int MAX_FINGERPRINTS = 1000;
+    public final static String OTHER_STATEMENTS = "<other statements>";
+
+    private volatile Map bySql = new HashMap();
+    private volatile Map byFingerprint = new HashMap();
+    private ObjectName objectName = null;
+    private volatile long slowStatementMillis = -1;
+
+    /**
+     * Method to record a statement execution
+     * @param sql The executed SQL text
+     * @param elapsedMillis The execution time
+     * @param rows The number of rows returned or affected
+     * @param failed true if the execution ended with an error
+     */
+    public void record(final String sql, final long elapsedMillis, final long rows, final boolean failed)
+    {
+        getStatementStats(sql).record(elapsedMillis, rows, failed);
+    }
+
+    /**
+     * Method to record a statement execution timed by phase
+     * @param sql The executed SQL text
+     * @param timer The {@link StatementTimer} of the execution
+     * @param rows The number of rows returned or affected
+     * @param failed true if the execution ended with an error
+     */
+    public void record(final String sql, final StatementTimer timer, final long rows, final boolean failed)
+    {
+        getStatementStats(sql).record(timer.getElapsedMillis(), timer.getPrepareMillis(), timer.getExecuteMillis(), timer.getFetchMillis(), rows, failed);
+    }
+
+    /**
+     * Method to get the stats a SQL text is recorded in
+     * @param sql The SQL text
+     * @return The {@link StatementStats} of the SQL fingerprint
+     */
+    public StatementStats getStatementStats(final String sql)
+    {
+        final StatementStats stats = (StatementStats)this.bySql.get(sql);
+        if (stats!=null)
+        {
+            return stats;
+        }
+        return register(sql);
+    }
+
+    private synchronized StatementStats register(final String sql)
+    {
+        StatementStats stats = (StatementStats)this.bySql.get(sql);
+        if (stats!=null)
+        {
+            return stats;
+        }
+        String fingerprint = fingerprint(sql);
+        stats = (StatementStats)this.byFingerprint.get(fingerprint);
+        if (stats==null)
+        {
+            if (this.byFingerprint.size()>=MAX_FINGERPRINTS)
+            {
+                fingerprint = OTHER_STATEMENTS;
+                stats = (StatementStats)this.byFingerprint.get(fingerprint);
+            }
+            if (stats==null)
+            {
+                stats = new StatementStats(fingerprint);
+                final Map newByFingerprint = new HashMap(this.byFingerprint);
+                newByFingerprint.put(fingerprint, stats);
+                this.byFingerprint = newByFingerprint;
+            }
+        }
+        if (this.bySql.size()<MAX_FINGERPRINTS*4)
+        {
+            final Map newBySql = new HashMap(this.bySql);
+            newBySql.put(sql, stats);
+            this.bySql = newBySql;
+        }
+        return stats;
+    }
+
+    public long getCalls()
+    {
+        long result = 0;
+        for (Iterator it=this.byFingerprint.values().iterator(); it.hasNext();)
+        {
+            result += ((StatementStats)it.next()).getCalls();
+        }
+        return result;
+    }
+
+    public long getErrors()
+    {
+        long result = 0;
+        for (Iterator it=this.byFingerprint.values().iterator(); it.hasNext();)
+        {
+            result += ((StatementStats)it.next()).getErrors();
+        }
+        return result;
+    }
+
+    public long getRows()
+    {
+        long result = 0;
+        for (Iterator it=this.byFingerprint.values().iterator(); it.hasNext();)
+        {
+            result += ((StatementStats)it.next()).getRows();
+        }
+        return result;
+    }
+
+    public int getStatementCount()
+    {
+        return this.byFingerprint.size();
+    }
+
+    public String[] getFingerprints()
+    {
+        final String[] result = (String[])this.byFingerprint.keySet().toArray(new String[0]);
+        Arrays.sort(result);
+        return result;
+    }
+
+    public long getCallCount(final String fingerprint)
+    {
+        final StatementStats stats = (StatementStats)this.byFingerprint.get(fingerprint);
+        return stats==null ? 0 : stats.getCalls();
+    }
+
+    public long getErrorCount(final String fingerprint)
+    {
+        final StatementStats stats = (StatementStats)this.byFingerprint.get(fingerprint);
+        return stats==null ? 0 : stats.getErrors();
+    }
+
+    public long getRowCount(final String fingerprint)
+    {
+        final StatementStats stats = (StatementStats)this.byFingerprint.get(fingerprint);
+        return stats==null ? 0 : stats.getRows();
+    }
+
+    public long getLatencyPercentile(final String fingerprint, final double percentile)
+    {
+        final StatementStats stats = (StatementStats)this.byFingerprint.get(fingerprint);
+        return stats==null ? 0 : stats.getLatencyPercentile(percentile);
+    }
+
+    /**
+     * Method to get a line for each statement fingerprint, the most time consuming first
+     * @return The statistics of all statements
+     */
+    public String[] dumpStatistics()
+    {
+        final Object[] stats = this.byFingerprint.values().toArray();
+        final Object[][] sorted = new Object[stats.length][];
+        for (int i=0; i<stats.length; i++)
+        {
+            sorted[i] = new Object[]{new Long(((StatementStats)stats[i]).getTotalMillis()), stats[i].toString()};
+        }
+        Arrays.sort(sorted, new Comparator()
+        {
+            public int compare(final Object o1, final Object o2)
+            {
+                return ((Long)((Object[])o2)[0]).compareTo((Long)((Object[])o1)[0]);
+            }
+        });
+        final String[] result = new String[sorted.length];
+        for (int i=0; i<sorted.length; i++)
+        {
+            result[i] = (String)sorted[i][1];
+        }
+        return result;
+    }
+
+    /**
+     * Method to get a line for the statement fingerprints with the most cumulative time, the most time consuming first
+     * @param count The number of statements
+     * @return The statistics of the top <code>count</code> statements
+     */
+    public String[] dumpTopStatements(final int count)
+    {
+        final String[] all = dumpStatistics();
+        if (all.length<=count)
+        {
+            return all;
+        }
+        final String[] result = new String[Math.max(count, 0)];
+        System.arraycopy(all, 0, result, 0, result.length);
+        return result;
+    }
+
+    public long getSlowStatementMillis()
+    {
+        return this.slowStatementMillis;
+    }
+
+    /**
+     * Method to log the statements lasting more than a threshold, with their bind values and timings
+     * @param slowStatementMillis The threshold in millis, -1 to log none
+     */
+    public void setSlowStatementMillis(final long slowStatementMillis)
+    {
+        this.slowStatementMillis = slowStatementMillis;
+    }
+
+    public void reset()
+    {
+        for (Iterator it=this.byFingerprint.values().iterator(); it.hasNext();)
+        {
+            ((StatementStats)it.next()).reset();
+        }
+    }
+
+    /**
+     * Method to register these stats in the platform MBeanServer
+     * (or the first one found on runtimes without java.lang.management)
+     * @param name The name of the {@link SQLManager} instance (eg. the datasource name)
+     */
+    public synchronized void registerMBean(final String name)
+    {
+        try
+        {
+            final MBeanServer server = getMBeanServer();
+            final ObjectName newName = new ObjectName(JMX_DOMAIN+":type=SQLManager,name="+name.replaceAll("[,=:*?\"\n]", "_"));
+            if (server.isRegistered(newName))
+            {
+                server.unregisterMBean(newName);
+            }
+            server.registerMBean(this, newName);
+            this.objectName = newName;
+            log.debug("Registered MBean '"+newName+"'");
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to register SQLManager statistics MBean for '"+name+"'", e);
+        }
+    }
+
+    /**
+     * Method to remove these stats from the MBeanServer
+     */
+    public synchronized void unregisterMBean()
+    {
+        if (this.objectName==null)
+        {
+            return;
+        }
+        try
+        {
+            getMBeanServer().unregisterMBean(this.objectName);
+        }
+        catch (Exception e)
+        {
+            log.warn("Unable to unregister MBean '"+this.objectName+"'", e);
+        }
+        this.objectName = null;
+    }
+
+    private static MBeanServer getMBeanServer() throws Exception
+    {
+        try
+        {
+            final Class managementFactory = Class.forName("java.lang.management.ManagementFactory");
+            final Method getPlatformMBeanServer = managementFactory.getMethod("getPlatformMBeanServer", new Class[0]);
+            return (MBeanServer)getPlatformMBeanServer.invoke(null, new Object[0]);
+        }
+        catch (ClassNotFoundException e)
+        {
+            final List servers = MBeanServerFactory.findMBeanServer(null);
+            if (servers!=null && !servers.isEmpty())
+            {
+                return (MBeanServer)servers.get(0);
+            }
+            return MBeanServerFactory.createMBeanServer();
+        }
+    }
+
+    /**
+     * Method to normalize a SQL text: string and numeric literals become '?'
+     * and sequences of blanks become a single space
+     * @param sql The SQL text
+     * @return The SQL fingerprint
+     */
+    public static String fingerprint(final String sql)
+    {
+        if (sql==null)
+        {
+            return "";
+        }
+        final int length = sql.length();
+        final StringBuffer result = new StringBuffer(length);
+        boolean blank = false;
+        for (int i=0; i<length; i++)
+        {
+            final char c = sql.charAt(i);
+            if (Character.isWhitespace(c))
+            {
+                blank = result.length()>0;
+                continue;
+            }
+            if (blank)
+            {
+                result.append(' ');
+                blank = false;
+            }
+            if (c=='\'')
+            {
+                i++;
+                while (i<length && (sql.charAt(i)!='\'' || (i+1<length && sql.charAt(i+1)=='\'' && ++i>0)))
+                {
+                    i++;
+                }
+                result.append('?');
+            }
+            else if (Character.isDigit(c) && (result.length()==0 || !Character.isJavaIdentifierPart(result.charAt(result.length()-1))))
+            {
+                while (i+1<length && (Character.isDigit(sql.charAt(i+1)) || sql.charAt(i+1)=='.'))
+                {
+                    i++;
+                }
+                result.append('?');
+            }
+            else
+            {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
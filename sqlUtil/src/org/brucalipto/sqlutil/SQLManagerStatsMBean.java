@@ -0,0 +1,51 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+/**
+ * JMX management interface of {@link SQLManagerStats}
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public interface SQLManagerStatsMBean
+{
+    public long getCalls();
+
+    public long getErrors();
+
+    public long getRows();
+
+    public int getStatementCount();
+
+    public String[] getFingerprints();
+
+    public long getCallCount(String fingerprint);
+
+    public long getErrorCount(String fingerprint);
+
+    public long getRowCount(String fingerprint);
+
+    public long getLatencyPercentile(String fingerprint, double percentile);
+
+    public String[] dumpStatistics();
+
+    public String[] dumpTopStatements(int count);
+
+    public long getSlowStatementMillis();
+
+    public void setSlowStatementMillis(long slowStatementMillis);
+
+    public void reset();
+}
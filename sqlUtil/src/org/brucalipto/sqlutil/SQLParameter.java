@@ -29,6 +29,7 @@ public class SQLParameter implements Serializable, Cloneable
     private static final long serialVersionUID = 2752389841215169269L;
 	public final int sqlType;
     public final Serializable value;
+    private transient ParameterBinder binder;
 
     /**
      * Constructor
@@ -39,6 +40,7 @@ public class SQLParameter implements Serializable, Cloneable
     {
         this.sqlType = sqlType;
         this.value = value;
+        this.binder = ParameterBinder.forType(sqlType);
     }
 
     /**
@@ -59,6 +61,19 @@ public class SQLParameter implements Serializable, Cloneable
         return this.value;
     }
 
+    /**
+     * Method to get the {@link ParameterBinder} resolved for the SqlType
+     * @return The ParameterBinder binding the value
+     */
+    ParameterBinder getBinder()
+    {
+        if (this.binder==null)
+        {
+            this.binder = ParameterBinder.forType(this.sqlType);
+        }
+        return this.binder;
+    }
+
     /**
      * Overrides Object's toString()
      * @return A String rappresenting a SQLParameter
@@ -0,0 +1,621 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.apache.commons.beanutils.BasicDynaClass;
+import org.apache.commons.beanutils.DynaBean;
+import org.apache.commons.beanutils.DynaProperty;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Result of a SQL SELECT keeping in memory the rows up to a heap budget and writing the others
+ * to a temporary file in a compact binary format, read back through memory mapped buffers.
+ * Rows are DynaBeans with the properties named like the lower-cased columns, as RowSetDynaClass does, accessed by index
+ * or through {@link #iterator()}; CLOB and BLOB values are read as String and byte[].
+ * The temporary file is deleted by {@link #close()}.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class SpillableResult
+{
+    private final static Log log = LogFactory.getLog(SpillableResult.class);
+
+    private final static long SEGMENT_SIZE = 1L<<30;
+    private final static int ROW_OVERHEAD = 32;
+
+    private final static byte NULL = 0;
+    private final static byte STRING = 1;
+    private final static byte INTEGER = 2;
+    private final static byte LONG = 3;
+    private final static byte DOUBLE = 4;
+    private final static byte FLOAT = 5;
+    private final static byte SHORT = 6;
+    private final static byte BYTE = 7;
+    private final static byte BOOLEAN = 8;
+    private final static byte DECIMAL = 9;
+    private final static byte BIG_INTEGER = 10;
+    private final static byte DATE = 11;
+    private final static byte TIME = 12;
+    private final static byte TIMESTAMP = 13;
+    private final static byte BYTES = 14;
+    private final static byte SERIALIZED = 15;
+
+    private final long heapBudget;
+    private DynaProperty[] properties = null;
+    private BasicDynaClass dynaClass = null;
+    private final List memoryRows = new ArrayList();
+    private long memoryBytes = 0;
+    private int rowCount = 0;
+
+    private File file = null;
+    private DataOutputStream fileOut = null;
+    private long filePosition = 0;
+    private final ByteArrayOutputStream rowBytes = new ByteArrayOutputStream(256);
+    private final DataOutputStream rowOut = new DataOutputStream(this.rowBytes);
+    private long[] offsets = null;
+    private long[] segmentStarts = null;
+    private int segmentCount = 0;
+    private MappedByteBuffer[] segments = null;
+    private boolean closed = false;
+
+    /**
+     * Package protected constructor: use {@link SQLManager#spillableSelect(String, SQLParameter[], long)}
+     * @param heapBudget The estimated bytes of rows to keep in memory
+     */
+    SpillableResult(final long heapBudget)
+    {
+        if (heapBudget<0)
+        {
+            throw new IllegalArgumentException("Heap budget must not be negative: "+heapBudget);
+        }
+        this.heapBudget = heapBudget;
+    }
+
+    /**
+     * @return The properties of the rows, one for each column
+     */
+    public DynaProperty[] getDynaProperties()
+    {
+        return this.properties==null ? new DynaProperty[0] : this.properties;
+    }
+
+    /**
+     * @return The number of rows
+     */
+    public int getRowCount()
+    {
+        return this.rowCount;
+    }
+
+    /**
+     * @return The number of rows kept in memory
+     */
+    public int getMemoryRowCount()
+    {
+        return this.memoryRows.size();
+    }
+
+    /**
+     * @return true if some rows have been written to the temporary file
+     */
+    public boolean isSpilled()
+    {
+        return this.file!=null;
+    }
+
+    /**
+     * @return The bytes of the temporary file
+     */
+    public long getSpilledBytes()
+    {
+        return this.filePosition;
+    }
+
+    /**
+     * Method to get a row: rows read from the temporary file are new DynaBeans at each call
+     * @param index The index of the row, starting from 0
+     * @return The row
+     */
+    public DynaBean getRow(final int index)
+    {
+        if (this.closed)
+        {
+            throw new IllegalStateException("Result closed");
+        }
+        if (index<0 || index>=this.rowCount)
+        {
+            throw new IndexOutOfBoundsException("Row "+index+" of "+this.rowCount);
+        }
+        if (index<this.memoryRows.size())
+        {
+            return (DynaBean)this.memoryRows.get(index);
+        }
+        try
+        {
+            return readRow(index-this.memoryRows.size());
+        }
+        catch (IOException e)
+        {
+            final IllegalStateException ise = new IllegalStateException("Error reading row "+index+": "+e.getMessage());
+            ise.initCause(e);
+            throw ise;
+        }
+    }
+
+    /**
+     * @return An Iterator over the rows, in order
+     */
+    public Iterator iterator()
+    {
+        return new Iterator()
+        {
+            private int next = 0;
+
+            public boolean hasNext()
+            {
+                return this.next<SpillableResult.this.rowCount;
+            }
+
+            public Object next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+                return getRow(this.next++);
+            }
+
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /**
+     * Method to release the rows and delete the temporary file
+     */
+    public void close()
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        this.closed = true;
+        this.memoryRows.clear();
+        this.segments = null;
+        if (this.fileOut!=null)
+        {
+            try
+            {
+                this.fileOut.close();
+            }
+            catch (IOException e)
+            {
+                log.warn("Error closing '"+this.file+"'", e);
+            }
+            this.fileOut = null;
+        }
+        if (this.file!=null && !this.file.delete())
+        {
+            // a mapped file cannot be deleted on some platforms until the buffers are collected
+            log.debug("Temporary file '"+this.file+"' will be deleted on exit");
+            this.file.deleteOnExit();
+        }
+    }
+
+    public String toString()
+    {
+        return "SpillableResult[rows="+this.rowCount+"; memoryRows="+this.memoryRows.size()+"; spilledBytes="+this.filePosition+"]";
+    }
+
+    /**
+     * Method to add the current row of the ResultSet
+     */
+    void add(final ResultSet rs) throws SQLException, IOException
+    {
+        if (this.properties==null)
+        {
+            introspect(rs.getMetaData());
+        }
+        final Object[] values = new Object[this.properties.length];
+        long size = ROW_OVERHEAD+8*values.length;
+        for (int i=0; i<values.length; i++)
+        {
+            values[i] = getValue(rs, i+1);
+            size += ResultCache.estimateSize(values[i]);
+        }
+        if (this.file==null && this.memoryBytes+size<=this.heapBudget)
+        {
+            this.memoryRows.add(toBean(values));
+            this.memoryBytes += size;
+        }
+        else
+        {
+            writeRow(values);
+        }
+        this.rowCount++;
+    }
+
+    /**
+     * Method to call when all rows have been added: the temporary file is mapped for reading
+     */
+    void complete() throws IOException
+    {
+        if (this.file==null)
+        {
+            return;
+        }
+        this.fileOut.close();
+        this.fileOut = null;
+        final RandomAccessFile raf = new RandomAccessFile(this.file, "r");
+        try
+        {
+            final FileChannel channel = raf.getChannel();
+            this.segments = new MappedByteBuffer[this.segmentCount];
+            for (int i=0; i<this.segmentCount; i++)
+            {
+                final long end = i+1<this.segmentCount ? this.segmentStarts[i+1] : this.filePosition;
+                this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, this.segmentStarts[i], end-this.segmentStarts[i]);
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+        if (log.isDebugEnabled())
+        {
+            log.debug("Spilled "+(this.rowCount-this.memoryRows.size())+" rows to '"+this.file+"' ("+this.filePosition+" bytes)");
+        }
+    }
+
+    private void introspect(final ResultSetMetaData meta) throws SQLException
+    {
+        this.properties = new DynaProperty[meta.getColumnCount()];
+        for (int i=0; i<this.properties.length; i++)
+        {
+            final String name = meta.getColumnName(i+1).toLowerCase();
+            Class type = Object.class;
+            try
+            {
+                final String className = meta.getColumnClassName(i+1);
+                if (className!=null)
+                {
+                    type = Class.forName(className, false, getClass().getClassLoader());
+                }
+            }
+            catch (ClassNotFoundException e)
+            {
+                log.debug("Column '"+name+"' read as Object: "+e.getMessage());
+            }
+            if (Clob.class.isAssignableFrom(type))
+            {
+                type = String.class;
+            }
+            else if (Blob.class.isAssignableFrom(type))
+            {
+                type = byte[].class;
+            }
+            this.properties[i] = new DynaProperty(name, type);
+        }
+        this.dynaClass = new BasicDynaClass("SpillableResult", null, this.properties);
+    }
+
+    private Object getValue(final ResultSet rs, final int column) throws SQLException
+    {
+        final Object value = rs.getObject(column);
+        if (value instanceof Clob)
+        {
+            final Clob clob = (Clob)value;
+            return clob.getSubString(1, (int)clob.length());
+        }
+        if (value instanceof Blob)
+        {
+            final Blob blob = (Blob)value;
+            return blob.getBytes(1, (int)blob.length());
+        }
+        if (value!=null && !this.properties[column-1].getType().isInstance(value))
+        {
+            // drivers may return a different class than declared: rows must stay valid beans
+            this.properties[column-1] = new DynaProperty(this.properties[column-1].getName(), Object.class);
+            this.dynaClass = new BasicDynaClass("SpillableResult", null, this.properties);
+        }
+        return value;
+    }
+
+    private DynaBean toBean(final Object[] values)
+    {
+        final DynaBean bean;
+        try
+        {
+            bean = this.dynaClass.newInstance();
+        }
+        catch (Exception e)
+        {
+            final IllegalStateException ise = new IllegalStateException("Cannot create a row: "+e.getMessage());
+            ise.initCause(e);
+            throw ise;
+        }
+        for (int i=0; i<values.length; i++)
+        {
+            bean.set(this.properties[i].getName(), values[i]);
+        }
+        return bean;
+    }
+
+    private void writeRow(final Object[] values) throws IOException
+    {
+        if (this.file==null)
+        {
+            this.file = File.createTempFile("sqlutil", ".spill");
+            this.fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(this.file), 64*1024));
+            this.offsets = new long[1024];
+            this.segmentStarts = new long[4];
+            this.segmentCount = 1;
+            log.debug("Heap budget of "+this.heapBudget+" bytes exceeded after "+this.memoryRows.size()+" rows: spilling to '"+this.file+"'");
+        }
+        this.rowBytes.reset();
+        for (int i=0; i<values.length; i++)
+        {
+            writeValue(values[i]);
+        }
+        final int size = this.rowBytes.size();
+        if (this.filePosition+size-this.segmentStarts[this.segmentCount-1]>SEGMENT_SIZE)
+        {
+            if (this.segmentCount==this.segmentStarts.length)
+            {
+                this.segmentStarts = grow(this.segmentStarts);
+            }
+            this.segmentStarts[this.segmentCount++] = this.filePosition;
+        }
+        final int row = this.rowCount-this.memoryRows.size();
+        if (row==this.offsets.length)
+        {
+            this.offsets = grow(this.offsets);
+        }
+        this.offsets[row] = this.filePosition;
+        this.rowBytes.writeTo(this.fileOut);
+        this.filePosition += size;
+    }
+
+    private void writeValue(final Object value) throws IOException
+    {
+        final DataOutputStream out = this.rowOut;
+        if (value==null)
+        {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof String)
+        {
+            out.writeByte(STRING);
+            writeBytes(((String)value).getBytes("UTF-8"));
+        }
+        else if (value instanceof Integer)
+        {
+            out.writeByte(INTEGER);
+            out.writeInt(((Integer)value).intValue());
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong(((Long)value).longValue());
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble(((Double)value).doubleValue());
+        }
+        else if (value instanceof Float)
+        {
+            out.writeByte(FLOAT);
+            out.writeFloat(((Float)value).floatValue());
+        }
+        else if (value instanceof Short)
+        {
+            out.writeByte(SHORT);
+            out.writeShort(((Short)value).shortValue());
+        }
+        else if (value instanceof Byte)
+        {
+            out.writeByte(BYTE);
+            out.writeByte(((Byte)value).byteValue());
+        }
+        else if (value instanceof Boolean)
+        {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean(((Boolean)value).booleanValue());
+        }
+        else if (value instanceof BigDecimal)
+        {
+            final BigDecimal decimal = (BigDecimal)value;
+            out.writeByte(DECIMAL);
+            out.writeInt(decimal.scale());
+            writeBytes(decimal.unscaledValue().toByteArray());
+        }
+        else if (value instanceof BigInteger)
+        {
+            out.writeByte(BIG_INTEGER);
+            writeBytes(((BigInteger)value).toByteArray());
+        }
+        else if (value.getClass()==Date.class)
+        {
+            out.writeByte(DATE);
+            out.writeLong(((Date)value).getTime());
+        }
+        else if (value.getClass()==Time.class)
+        {
+            out.writeByte(TIME);
+            out.writeLong(((Time)value).getTime());
+        }
+        else if (value.getClass()==Timestamp.class)
+        {
+            final Timestamp timestamp = (Timestamp)value;
+            out.writeByte(TIMESTAMP);
+            out.writeLong(timestamp.getTime());
+            out.writeInt(timestamp.getNanos());
+        }
+        else if (value instanceof byte[])
+        {
+            out.writeByte(BYTES);
+            writeBytes((byte[])value);
+        }
+        else if (value instanceof Serializable)
+        {
+            final ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            final ObjectOutputStream oos = new ObjectOutputStream(serialized);
+            oos.writeObject(value);
+            oos.close();
+            out.writeByte(SERIALIZED);
+            writeBytes(serialized.toByteArray());
+        }
+        else
+        {
+            throw new IOException("Cannot write a value of "+value.getClass().getName());
+        }
+    }
+
+    private void writeBytes(final byte[] bytes) throws IOException
+    {
+        this.rowOut.writeInt(bytes.length);
+        this.rowOut.write(bytes);
+    }
+
+    private DynaBean readRow(final int row) throws IOException
+    {
+        final long offset = this.offsets[row];
+        int segment = this.segmentCount-1;
+        while (this.segmentStarts[segment]>offset)
+        {
+            segment--;
+        }
+        final ByteBuffer in = this.segments[segment].duplicate();
+        in.position((int)(offset-this.segmentStarts[segment]));
+        final Object[] values = new Object[this.properties.length];
+        for (int i=0; i<values.length; i++)
+        {
+            values[i] = readValue(in);
+        }
+        return toBean(values);
+    }
+
+    private Object readValue(final ByteBuffer in) throws IOException
+    {
+        final byte tag = in.get();
+        switch (tag)
+        {
+            case NULL:
+                return null;
+            case STRING:
+                return toString(readBytes(in));
+            case INTEGER:
+                return new Integer(in.getInt());
+            case LONG:
+                return new Long(in.getLong());
+            case DOUBLE:
+                return new Double(in.getDouble());
+            case FLOAT:
+                return new Float(in.getFloat());
+            case SHORT:
+                return new Short(in.getShort());
+            case BYTE:
+                return new Byte(in.get());
+            case BOOLEAN:
+                return in.get()==0 ? Boolean.FALSE : Boolean.TRUE;
+            case DECIMAL:
+                final int scale = in.getInt();
+                return new BigDecimal(new BigInteger(readBytes(in)), scale);
+            case BIG_INTEGER:
+                return new BigInteger(readBytes(in));
+            case DATE:
+                return new Date(in.getLong());
+            case TIME:
+                return new Time(in.getLong());
+            case TIMESTAMP:
+                final Timestamp timestamp = new Timestamp(in.getLong());
+                timestamp.setNanos(in.getInt());
+                return timestamp;
+            case BYTES:
+                return readBytes(in);
+            case SERIALIZED:
+                final ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(readBytes(in)));
+                try
+                {
+                    return ois.readObject();
+                }
+                catch (ClassNotFoundException e)
+                {
+                    final IOException ioe = new IOException("Cannot read a value: "+e.getMessage());
+                    ioe.initCause(e);
+                    throw ioe;
+                }
+                finally
+                {
+                    ois.close();
+                }
+            default:
+                throw new IOException("Unknown value tag "+tag);
+        }
+    }
+
+    private static byte[] readBytes(final ByteBuffer in)
+    {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static String toString(final byte[] bytes) throws UnsupportedEncodingException
+    {
+        return new String(bytes, "UTF-8");
+    }
+
+    private static long[] grow(final long[] array)
+    {
+        final long[] result = new long[array.length*2];
+        System.arraycopy(array, 0, result, 0, array.length);
+        return result;
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Bounded LRU cache of PreparedStatements (and CallableStatements) bound to a single Connection.
+ * Statements are keyed by SQL text and result set type; a statement is
+ * removed from the cache while in use, so the same SQL can be safely executed
+ * in a nested way, and given back when released. Evicted statements are closed.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class StatementCache
+{
+    private final static Log log = LogFactory.getLog(StatementCache.class);
+
+    private final int maxSize;
+    private final LinkedHashMap statements;
+    private final Map inUse = new IdentityHashMap();
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructor
+     * @param maxSize The maximum number of statements kept open
+     */
+    public StatementCache(final int maxSize)
+    {
+        if (maxSize<1)
+        {
+            throw new IllegalArgumentException("Statement cache size must be greater than 0: "+maxSize);
+        }
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap(maxSize*4/3+1, 0.75f, true)
+        {
+            private static final long serialVersionUID = -3169206371652367042L;
+
+            protected boolean removeEldestEntry(final Map.Entry eldest)
+            {
+                if (size()>StatementCache.this.maxSize)
+                {
+                    StatementCache.this.evictions++;
+                    log.debug("Evicting statement '"+eldest.getKey()+"' from cache");
+                    closeStatement((Statement)eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Method to get a PreparedStatement from the cache or to prepare it on the Connection
+     * @param dbConn The Connection the cache is bound to
+     * @param sql The SQL text to prepare
+     * @param resultSetType A ResultSet type (eg. ResultSet.TYPE_FORWARD_ONLY)
+     * @param resultSetConcurrency A ResultSet concurrency (eg. ResultSet.CONCUR_READ_ONLY)
+     * @return A PreparedStatement to be given back with {@link #release(Statement)}
+     * @throws SQLException
+     */
+    public synchronized PreparedStatement prepareStatement(final Connection dbConn, final String sql, final int resultSetType, final int resultSetConcurrency) throws SQLException
+    {
+        final Object key = getKey(sql, resultSetType, resultSetConcurrency);
+        PreparedStatement pstmt = (PreparedStatement)this.statements.remove(key);
+        if (pstmt!=null)
+        {
+            this.hits++;
+            pstmt.clearParameters();
+        }
+        else
+        {
+            this.misses++;
+            pstmt = dbConn.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+        this.inUse.put(pstmt, key);
+        return pstmt;
+    }
+
+    /**
+     * Method to get a CallableStatement from the cache or to prepare it on the Connection
+     * @param dbConn The Connection the cache is bound to
+     * @param sql The call text to prepare
+     * @return A CallableStatement to be given back with {@link #release(Statement)}
+     * @throws SQLException
+     */
+    public synchronized CallableStatement prepareCall(final Connection dbConn, final String sql) throws SQLException
+    {
+        final Object key = "call/"+sql;
+        CallableStatement call = (CallableStatement)this.statements.remove(key);
+        if (call!=null)
+        {
+            this.hits++;
+            call.clearParameters();
+        }
+        else
+        {
+            this.misses++;
+            call = dbConn.prepareCall(sql);
+        }
+        this.inUse.put(call, key);
+        return call;
+    }
+
+    /**
+     * Method to give back a statement obtained from this cache
+     * @param stmt The statement to release
+     * @return true if the statement belongs to this cache and must not be closed by the caller
+     */
+    public synchronized boolean release(final Statement stmt)
+    {
+        final Object key = this.inUse.remove(stmt);
+        if (key==null)
+        {
+            return false;
+        }
+        final Statement previous = (Statement)this.statements.put(key, stmt);
+        if (previous!=null && previous!=stmt)
+        {
+            closeStatement(previous);
+        }
+        return true;
+    }
+
+    /**
+     * Method to close and remove all cached statements
+     */
+    public synchronized void clear()
+    {
+        for (Iterator it=this.statements.values().iterator(); it.hasNext();)
+        {
+            closeStatement((Statement)it.next());
+        }
+        this.statements.clear();
+    }
+
+    /**
+     * @return The number of statements found in cache
+     */
+    public synchronized long getHits()
+    {
+        return this.hits;
+    }
+
+    /**
+     * @return The number of statements prepared because not found in cache
+     */
+    public synchronized long getMisses()
+    {
+        return this.misses;
+    }
+
+    /**
+     * @return The number of statements closed because evicted from cache
+     */
+    public synchronized long getEvictions()
+    {
+        return this.evictions;
+    }
+
+    /**
+     * @return The number of statements actually cached
+     */
+    public synchronized int getSize()
+    {
+        return this.statements.size();
+    }
+
+    /**
+     * @return The maximum number of statements kept open
+     */
+    public int getMaxSize()
+    {
+        return this.maxSize;
+    }
+
+    public String toString()
+    {
+        return "StatementCache[size="+getSize()+"/"+this.maxSize+"; hits="+getHits()+"; misses="+getMisses()+"; evictions="+getEvictions()+"]";
+    }
+
+    private static Object getKey(final String sql, final int resultSetType, final int resultSetConcurrency)
+    {
+        if (resultSetType==ResultSet.TYPE_FORWARD_ONLY && resultSetConcurrency==ResultSet.CONCUR_READ_ONLY)
+        {
+            return sql;
+        }
+        return resultSetType+"/"+resultSetConcurrency+"/"+sql;
+    }
+
+    private static void closeStatement(final Statement stmt)
+    {
+        try{stmt.close();}catch(Exception e){log.error("Error closing cached statement", e);}
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+/**
+ * Options applied to a statement before its execution (see {@link SQLManager#setStatementOptions(String, StatementOptions)}):
+ * a value of 0 leaves the driver default.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class StatementOptions
+{
+    private int fetchSize = 0;
+    private int maxRows = 0;
+    private int queryTimeout = 0;
+
+    /**
+     * @param fetchSize The number of rows to get from the database in each round trip
+     */
+    public void setFetchSize(final int fetchSize)
+    {
+        if (fetchSize<0)
+        {
+            throw new IllegalArgumentException("Fetch size must not be negative: "+fetchSize);
+        }
+        this.fetchSize = fetchSize;
+    }
+
+    public int getFetchSize()
+    {
+        return this.fetchSize;
+    }
+
+    /**
+     * @param maxRows The maximum number of rows returned by a select, the others are silently dropped
+     */
+    public void setMaxRows(final int maxRows)
+    {
+        if (maxRows<0)
+        {
+            throw new IllegalArgumentException("Max rows must not be negative: "+maxRows);
+        }
+        this.maxRows = maxRows;
+    }
+
+    public int getMaxRows()
+    {
+        return this.maxRows;
+    }
+
+    /**
+     * @param queryTimeout The seconds the driver waits for the statement to execute
+     */
+    public void setQueryTimeout(final int queryTimeout)
+    {
+        if (queryTimeout<0)
+        {
+            throw new IllegalArgumentException("Query timeout must not be negative: "+queryTimeout);
+        }
+        this.queryTimeout = queryTimeout;
+    }
+
+    public int getQueryTimeout()
+    {
+        return this.queryTimeout;
+    }
+
+    public String toString()
+    {
+        return "StatementOptions[fetchSize="+this.fetchSize+"; maxRows="+this.maxRows+"; queryTimeout="+this.queryTimeout+"]";
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+/**
+ * Execution counters of a single statement fingerprint. Counters are striped:
+ * each thread updates the stripe chosen by its identity hash, so threads
+ * running the same statement seldom contend on the same lock; reads merge all stripes.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class StatementStats
+{
+    /** Upper bounds (in millis) of the latency histogram buckets; the last bucket is unbounded */
+    public final static long[] LATENCY_BUCKETS = {0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000};
+
+    private final static int STRIPES;
+    static
+    {
+        int stripes = 1;
+        while (stripes<Runtime.getRuntime().availableProcessors()*2)
+        {
+            stripes <<= 1;
+        }
+        STRIPES = stripes;
+    }
+
+    private final String fingerprint;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * Constructor
+     * @param fingerprint The normalized SQL text these stats refer to
+     */
+    public StatementStats(final String fingerprint)
+    {
+        this.fingerprint = fingerprint;
+        for (int i=0; i<STRIPES; i++)
+        {
+            this.stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Method to record an execution
+     * @param elapsedMillis The execution time
+     * @param rows The number of rows returned or affected
+     * @param failed true if the execution ended with an error
+     */
+    public void record(final long elapsedMillis, final long rows, final boolean failed)
+    {
+        record(elapsedMillis, 0, 0, 0, rows, failed);
+    }
+
+    /**
+     * Method to record an execution timed by phase (see {@link StatementTimer})
+     * @param elapsedMillis The execution time
+     * @param prepareMillis The time spent preparing and binding the statement
+     * @param executeMillis The time spent executing the statement
+     * @param fetchMillis The time spent reading the results
+     * @param rows The number of rows returned or affected
+     * @param failed true if the execution ended with an error
+     */
+    public void record(final long elapsedMillis, final long prepareMillis, final long executeMillis, final long fetchMillis, final long rows, final boolean failed)
+    {
+        int bucket = 0;
+        while (bucket<LATENCY_BUCKETS.length && elapsedMillis>LATENCY_BUCKETS[bucket])
+        {
+            bucket++;
+        }
+        final Stripe stripe = this.stripes[System.identityHashCode(Thread.currentThread()) & (STRIPES-1)];
+        synchronized (stripe)
+        {
+            stripe.calls++;
+            if (failed)
+            {
+                stripe.errors++;
+            }
+            stripe.rows += rows;
+            stripe.totalMillis += elapsedMillis;
+            stripe.prepareMillis += prepareMillis;
+            stripe.executeMillis += executeMillis;
+            stripe.fetchMillis += fetchMillis;
+            if (elapsedMillis>stripe.maxMillis)
+            {
+                stripe.maxMillis = elapsedMillis;
+            }
+            stripe.buckets[bucket]++;
+        }
+    }
+
+    /**
+     * @return The normalized SQL text these stats refer to
+     */
+    public String getFingerprint()
+    {
+        return this.fingerprint;
+    }
+
+    /**
+     * @return The number of executions
+     */
+    public long getCalls()
+    {
+        long result = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                result += this.stripes[i].calls;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of executions ended with an error
+     */
+    public long getErrors()
+    {
+        long result = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                result += this.stripes[i].errors;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The number of rows returned or affected by all executions
+     */
+    public long getRows()
+    {
+        long result = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                result += this.stripes[i].rows;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The time spent in all executions in millis
+     */
+    public long getTotalMillis()
+    {
+        long result = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                result += this.stripes[i].totalMillis;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The time spent preparing and binding in all executions in millis
+     */
+    public long getPrepareMillis()
+    {
+        long result = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                result += this.stripes[i].prepareMillis;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The time spent executing in all executions in millis
+     */
+    public long getExecuteMillis()
+    {
+        long result = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                result += this.stripes[i].executeMillis;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The time spent reading results in all executions in millis
+     */
+    public long getFetchMillis()
+    {
+        long result = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                result += this.stripes[i].fetchMillis;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return The slowest execution time in millis
+     */
+    public long getMaxMillis()
+    {
+        long result = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            synchronized (this.stripes[i])
+            {
+                result = Math.max(result, this.stripes[i].maxMillis);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Method to estimate a latency percentile from the histogram
+     * @param percentile A value between 0 and 100 (eg. 99 for the 99th percentile)
+     * @return The upper bound in millis of the bucket containing the percentile
+     */
+    public long getLatencyPercentile(final double percentile)
+    {
+        final long[] buckets = new long[LATENCY_BUCKETS.length+1];
+        long calls = 0;
+        long max = 0;
+        for (int i=0; i<STRIPES; i++)
+        {
+            final Stripe stripe = this.stripes[i];
+            synchronized (stripe)
+            {
+                for (int j=0; j<buckets.length; j++)
+                {
+                    buckets[j] += stripe.buckets[j];
+                }
+                calls += stripe.calls;
+                max = Math.max(max, stripe.maxMillis);
+            }
+        }
+        if (calls==0)
+        {
+            return 0;
+        }
+        final double threshold = calls*Math.min(100, Math.max(0, percentile))/100;
+        long cumulated = 0;
+        for (int j=0; j<LATENCY_BUCKETS.length; j++)
+        {
+            cumulated += buckets[j];
+            if (cumulated>=threshold)
+            {
+                return Math.min(LATENCY_BUCKETS[j], max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Method to set all counters to 0
+     */
+    public void reset()
+    {
+        for (int i=0; i<STRIPES; i++)
+        {
+            final Stripe stripe = this.stripes[i];
+            synchronized (stripe)
+            {
+                stripe.calls = 0;
+                stripe.errors = 0;
+                stripe.rows = 0;
+                stripe.totalMillis = 0;
+                stripe.prepareMillis = 0;
+                stripe.executeMillis = 0;
+                stripe.fetchMillis = 0;
+                stripe.maxMillis = 0;
+                for (int j=0; j<stripe.buckets.length; j++)
+                {
+                    stripe.buckets[j] = 0;
+                }
+            }
+        }
+    }
+
+    public String toString()
+    {
+        return "calls="+getCalls()+"; errors="+getErrors()+"; rows="+getRows()+"; totalMillis="+getTotalMillis()
+            +" (prepare="+getPrepareMillis()+"; execute="+getExecuteMillis()+"; fetch="+getFetchMillis()+")"
+            +"; p50="+getLatencyPercentile(50)+"; p95="+getLatencyPercentile(95)+"; p99="+getLatencyPercentile(99)
+            +"; max="+getMaxMillis()+" -> "+this.fingerprint;
+    }
+
+    private static final class Stripe
+    {
+        private long calls;
+        private long errors;
+        private long rows;
+        private long totalMillis;
+        private long prepareMillis;
+        private long executeMillis;
+        private long fetchMillis;
+        private long maxMillis;
+        private final long[] buckets = new long[LATENCY_BUCKETS.length+1];
+        /* padding to keep stripes on different cache lines */
+        protected long p1, p2, p3, p4, p5, p6, p7;
+    }
+}
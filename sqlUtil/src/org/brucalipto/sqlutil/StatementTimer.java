@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+/**
+ * Splits the time of a statement execution in prepare (getting the connection, preparing and binding),
+ * execute (until the first result is available) and fetch (reading the results).
+ * Phases not marked last until the next mark, or until {@link #finished()}.
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class StatementTimer
+{
+    private final long startMillis;
+    private long preparedMillis = -1;
+    private long executedMillis = -1;
+    private long finishedMillis = -1;
+
+    /**
+     * Constructor starting the timer now
+     */
+    public StatementTimer()
+    {
+        this(System.currentTimeMillis());
+    }
+
+    /**
+     * Constructor
+     * @param startMillis The System.currentTimeMillis() when the execution started
+     */
+    public StatementTimer(final long startMillis)
+    {
+        this.startMillis = startMillis;
+    }
+
+    /**
+     * Method to call when the statement is prepared and bound
+     */
+    public void prepared()
+    {
+        this.preparedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Method to call when the statement has been executed
+     */
+    public void executed()
+    {
+        if (this.preparedMillis<0)
+        {
+            prepared();
+        }
+        this.executedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Method to stop the timer: only the first call counts
+     */
+    public void finished()
+    {
+        if (this.finishedMillis<0)
+        {
+            this.finishedMillis = System.currentTimeMillis();
+        }
+    }
+
+    public long getStartMillis()
+    {
+        return this.startMillis;
+    }
+
+    /**
+     * @return true if {@link #prepared()} has been called, so that the execute time is known
+     */
+    public boolean isPrepared()
+    {
+        return this.preparedMillis>=0;
+    }
+
+    /**
+     * @return The millis from the start to the end (or to now if not finished)
+     */
+    public long getElapsedMillis()
+    {
+        return getEndMillis()-this.startMillis;
+    }
+
+    public long getPrepareMillis()
+    {
+        return (this.preparedMillis<0 ? getEndMillis() : this.preparedMillis)-this.startMillis;
+    }
+
+    public long getExecuteMillis()
+    {
+        if (this.preparedMillis<0)
+        {
+            return 0;
+        }
+        return (this.executedMillis<0 ? getEndMillis() : this.executedMillis)-this.preparedMillis;
+    }
+
+    public long getFetchMillis()
+    {
+        return this.executedMillis<0 ? 0 : getEndMillis()-this.executedMillis;
+    }
+
+    public String toString()
+    {
+        return getElapsedMillis()+" millis: prepare="+getPrepareMillis()+"; execute="+getExecuteMillis()+"; fetch="+getFetchMillis();
+    }
+
+    private long getEndMillis()
+    {
+        return this.finishedMillis<0 ? System.currentTimeMillis() : this.finishedMillis;
+    }
+}
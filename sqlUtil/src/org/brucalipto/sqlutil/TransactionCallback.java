@@ -0,0 +1,35 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.SQLException;
+
+/**
+ * Callback running SQLManager operations inside a {@link UnitOfWork}
+ * (see {@link SQLManager#executeInTransaction(TransactionCallback)})
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public interface TransactionCallback
+{
+    /**
+     * Method called with the unit of work already begun: it is committed when the method returns
+     * and rolled back if it throws an exception or the unit of work is marked rollback only
+     * @param unitOfWork The active {@link UnitOfWork}
+     * @return Any result to be returned by executeInTransaction
+     * @throws SQLException
+     */
+    public Object doInTransaction(final UnitOfWork unitOfWork) throws SQLException;
+}
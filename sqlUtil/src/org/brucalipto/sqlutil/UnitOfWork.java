@@ -0,0 +1,277 @@
+/*
+ * Copyright 2011 Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+*/
+package org.brucalipto.sqlutil;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Savepoint;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * A transaction running any mix of {@link SQLManager} operations on a single Connection with
+ * auto-commit disabled. While active it is bound to the thread that began it: the operations of the
+ * SQLManager called by that thread (asynchronous ones excluded) use its Connection, including selects.
+ * A failed operation marks the unit of work rollback only, unless rolled back to a savepoint set before it.
+ * <pre>
+ * final UnitOfWork uow = sqlManager.beginUnitOfWork();
+ * try
+ * {
+ *     sqlManager.insert(...);
+ *     sqlManager.update(...);
+ *     uow.commit();
+ * }
+ * finally
+ * {
+ *     uow.close();
+ * }
+ * </pre>
+ * @author Piero Ottuzzi <piero.ottuzzi@brucalipto.org>
+ */
+public class UnitOfWork
+{
+    private final static Log log = LogFactory.getLog(UnitOfWork.class);
+
+    private final SQLManager manager;
+    private final Connection connection;
+    private final boolean closeConnection;
+    private final boolean previousAutoCommit;
+    private final Map failuresBySavepoint = new IdentityHashMap();
+    private final Set modifications = new HashSet();
+    private int failures = 0;
+    private boolean rollbackOnly = false;
+    private boolean written = false;
+    private boolean closed = false;
+
+    /**
+     * Constructor
+     * @param manager The SQLManager the unit of work is bound to
+     * @param connection The Connection to use
+     * @param closeConnection true to close the Connection when the unit of work is closed
+     * @throws SQLException
+     */
+    UnitOfWork(final SQLManager manager, final Connection connection, final boolean closeConnection) throws SQLException
+    {
+        this.manager = manager;
+        this.connection = connection;
+        this.closeConnection = closeConnection;
+        this.previousAutoCommit = connection.getAutoCommit();
+        if (this.previousAutoCommit)
+        {
+            connection.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * @return The Connection used by this unit of work
+     */
+    public Connection getConnection()
+    {
+        return this.connection;
+    }
+
+    /**
+     * Method to make permanent all changes: if the unit of work is rollback only the changes are rolled back
+     * @throws SQLException If the unit of work is rollback only or the commit fails
+     */
+    public void commit() throws SQLException
+    {
+        checkActive();
+        if (isRollbackOnly())
+        {
+            rollback();
+            throw new SQLException("Unit of work marked rollback only: changes rolled back");
+        }
+        this.connection.commit();
+        log.debug("Unit of work committed");
+        this.written = false;
+        invalidateModified();
+        this.failuresBySavepoint.clear();
+    }
+
+    /**
+     * Method to undo all changes
+     * @throws SQLException
+     */
+    public void rollback() throws SQLException
+    {
+        checkActive();
+        this.connection.rollback();
+        log.debug("Unit of work rolled back");
+        this.written = false;
+        invalidateModified();
+        this.failuresBySavepoint.clear();
+        this.failures = 0;
+        this.rollbackOnly = false;
+    }
+
+    /**
+     * Method to set a savepoint
+     * @param name The savepoint name
+     * @return The Savepoint, to be used with {@link #rollback(Savepoint)} and {@link #releaseSavepoint(Savepoint)}
+     * @throws SQLException
+     */
+    public Savepoint setSavepoint(final String name) throws SQLException
+    {
+        checkActive();
+        final Savepoint savepoint = this.connection.setSavepoint(name);
+        this.failuresBySavepoint.put(savepoint, new Integer(this.failures));
+        return savepoint;
+    }
+
+    /**
+     * Method to undo the changes made after a savepoint, failed operations included
+     * @param savepoint The Savepoint to roll back to
+     * @throws SQLException
+     */
+    public void rollback(final Savepoint savepoint) throws SQLException
+    {
+        checkActive();
+        this.connection.rollback(savepoint);
+        final Integer failuresAtSavepoint = (Integer)this.failuresBySavepoint.get(savepoint);
+        if (failuresAtSavepoint!=null)
+        {
+            this.failures = failuresAtSavepoint.intValue();
+        }
+    }
+
+    /**
+     * Method to release a savepoint
+     * @param savepoint The Savepoint to release
+     * @throws SQLException
+     */
+    public void releaseSavepoint(final Savepoint savepoint) throws SQLException
+    {
+        checkActive();
+        this.connection.releaseSavepoint(savepoint);
+        this.failuresBySavepoint.remove(savepoint);
+    }
+
+    /**
+     * Method to make sure the unit of work will never be committed
+     */
+    public void setRollbackOnly()
+    {
+        this.rollbackOnly = true;
+    }
+
+    /**
+     * @return true if the unit of work cannot be committed because explicitly marked or an operation failed
+     */
+    public boolean isRollbackOnly()
+    {
+        return this.rollbackOnly || this.failures>0;
+    }
+
+    public boolean isClosed()
+    {
+        return this.closed;
+    }
+
+    /**
+     * Method to end the unit of work: changes not committed are rolled back,
+     * auto-commit is restored and the Connection released.
+     * If the Connection already had auto-commit disabled when the unit of work began (eg. a SQLManager bound
+     * to a Connection whose transaction is managed by the caller) the rollback happens only if statements
+     * changing data ran since the last commit or rollback, and it discards the earlier uncommitted changes
+     * of the caller as well: commit or roll back explicitly to keep control of them.
+     */
+    public void close()
+    {
+        if (this.closed)
+        {
+            return;
+        }
+        this.closed = true;
+        this.manager.endUnitOfWork(this);
+        try
+        {
+            if (this.previousAutoCommit || this.written)
+            {
+                this.connection.rollback();
+            }
+            if (this.previousAutoCommit)
+            {
+                this.connection.setAutoCommit(true);
+            }
+        }
+        catch (SQLException e)
+        {
+            log.error("Error ending unit of work", e);
+        }
+        finally
+        {
+            if (this.closeConnection)
+            {
+                SQLManager.closeResources(this.connection);
+            }
+            invalidateModified();
+        }
+    }
+
+    /**
+     * Method called by the SQLManager when an operation fails
+     */
+    void operationFailed()
+    {
+        this.failures++;
+    }
+
+    /**
+     * Method called by the SQLManager when a statement changes data, to invalidate cached results on commit
+     * @param sql The executed SQL text
+     */
+    void modified(final String sql)
+    {
+        this.modifications.add(sql);
+        this.written = true;
+    }
+
+    /**
+     * Method called by the SQLManager when a statement that may have changed data ran
+     */
+    void written()
+    {
+        this.written = true;
+    }
+
+    /**
+     * Method to invalidate the cached results reading the tables modified so far, once they have been
+     * committed or rolled back: results read by other threads in the meantime may be stale either way
+     */
+    private void invalidateModified()
+    {
+        final Object[] modified = this.modifications.toArray();
+        this.modifications.clear();
+        for (int i=0; i<modified.length; i++)
+        {
+            this.manager.invalidateCachedResults((String)modified[i]);
+        }
+    }
+
+    private void checkActive() throws SQLException
+    {
+        if (this.closed)
+        {
+            throw new SQLException("Unit of work already closed");
+        }
+    }
+}